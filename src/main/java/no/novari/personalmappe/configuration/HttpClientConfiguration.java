@@ -0,0 +1,71 @@
+package no.novari.personalmappe.configuration;
+
+import io.netty.channel.ChannelOption;
+import no.novari.personalmappe.model.EndpointType;
+import no.novari.personalmappe.properties.ProvisioningProperties;
+import no.novari.personalmappe.repository.FintWebClients;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.web.reactive.function.client.ExchangeStrategies;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.netty.http.HttpProtocol;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+import reactor.netty.resources.LoopResources;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * One connection pool per class of FINT endpoint, so a large collection download can never take the
+ * connections needed by status polls or GraphQL requests.
+ */
+@Configuration
+public class HttpClientConfiguration {
+
+    @Bean
+    public FintWebClients fintWebClients(WebClient.Builder builder, ProvisioningProperties provisioningProperties, LoopResources fintLoopResources) {
+        ProvisioningProperties.HttpProperties http = provisioningProperties.getHttp();
+
+        ExchangeStrategies exchangeStrategies = ExchangeStrategies.builder()
+                .codecs(configurer -> configurer.defaultCodecs().maxInMemorySize(-1))
+                .build();
+
+        Map<EndpointType, WebClient> webClients = new EnumMap<>(EndpointType.class);
+
+        for (EndpointType endpointType : EndpointType.values()) {
+            ProvisioningProperties.PoolProperties pool = http.getPools().getOrDefault(endpointType, new ProvisioningProperties.PoolProperties());
+
+            webClients.put(endpointType, builder.clone()
+                    .clientConnector(new ReactorClientHttpConnector(httpClient(endpointType, pool, http, fintLoopResources)))
+                    .exchangeStrategies(exchangeStrategies)
+                    .build());
+        }
+
+        return new FintWebClients(webClients);
+    }
+
+    private HttpClient httpClient(EndpointType endpointType, ProvisioningProperties.PoolProperties pool, ProvisioningProperties.HttpProperties http, LoopResources loopResources) {
+        ConnectionProvider connectionProvider = ConnectionProvider.builder("fint-" + endpointType.name().toLowerCase())
+                .maxConnections(pool.getMaxConnections())
+                .pendingAcquireMaxCount(pool.getPendingAcquireMaxCount())
+                .pendingAcquireTimeout(pool.getPendingAcquireTimeout())
+                .maxLifeTime(Duration.ofHours(6))
+                .maxIdleTime(Duration.ofMinutes(5))
+                .metrics(true)
+                .build();
+
+        HttpProtocol[] protocols = http.isHttp2()
+                ? new HttpProtocol[]{HttpProtocol.H2, HttpProtocol.HTTP11}
+                : new HttpProtocol[]{HttpProtocol.HTTP11};
+
+        return HttpClient.create(connectionProvider)
+                .runOn(loopResources)
+                .protocol(protocols)
+                .compress(http.isCompress())
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) http.getConnectTimeout().toMillis())
+                .responseTimeout(http.getResponseTimeout());
+    }
+}
@@ -0,0 +1,166 @@
+package no.novari.personalmappe.configuration;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import reactor.core.Disposable;
+import reactor.core.scheduler.Scheduler;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Counts the tasks waiting for and running on a scheduler, and exports them as queue depth and utilisation
+ * gauges tagged with the scheduler name. Periodic tasks only count while they run.
+ */
+class MeteredScheduler implements Scheduler {
+
+    private final Scheduler delegate;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+
+    MeteredScheduler(Scheduler delegate, String name, int capacity, MeterRegistry meterRegistry) {
+        this.delegate = delegate;
+
+        Gauge.builder("provisioning.scheduler.queued", queued, AtomicInteger::get)
+                .tag("scheduler", name)
+                .register(meterRegistry);
+        Gauge.builder("provisioning.scheduler.active", active, AtomicInteger::get)
+                .tag("scheduler", name)
+                .register(meterRegistry);
+        Gauge.builder("provisioning.scheduler.capacity", () -> capacity)
+                .tag("scheduler", name)
+                .register(meterRegistry);
+        Gauge.builder("provisioning.scheduler.utilisation", active, count -> (double) count.get() / capacity)
+                .tag("scheduler", name)
+                .register(meterRegistry);
+    }
+
+    @Override
+    public Disposable schedule(Runnable task) {
+        return submit(task, metered -> delegate.schedule(metered));
+    }
+
+    @Override
+    public Disposable schedule(Runnable task, long delay, TimeUnit unit) {
+        return submit(task, metered -> delegate.schedule(metered, delay, unit));
+    }
+
+    @Override
+    public Disposable schedulePeriodically(Runnable task, long initialDelay, long period, TimeUnit unit) {
+        return delegate.schedulePeriodically(running(task), initialDelay, period, unit);
+    }
+
+    @Override
+    public long now(TimeUnit unit) {
+        return delegate.now(unit);
+    }
+
+    @Override
+    public Worker createWorker() {
+        Worker worker = delegate.createWorker();
+
+        return new Worker() {
+            @Override
+            public Disposable schedule(Runnable task) {
+                return submit(task, metered -> worker.schedule(metered));
+            }
+
+            @Override
+            public Disposable schedule(Runnable task, long delay, TimeUnit unit) {
+                return submit(task, metered -> worker.schedule(metered, delay, unit));
+            }
+
+            @Override
+            public Disposable schedulePeriodically(Runnable task, long initialDelay, long period, TimeUnit unit) {
+                return worker.schedulePeriodically(running(task), initialDelay, period, unit);
+            }
+
+            @Override
+            public void dispose() {
+                worker.dispose();
+            }
+
+            @Override
+            public boolean isDisposed() {
+                return worker.isDisposed();
+            }
+        };
+    }
+
+    @Override
+    public void init() {
+        delegate.init();
+    }
+
+    @Override
+    public void dispose() {
+        delegate.dispose();
+    }
+
+    @Override
+    public boolean isDisposed() {
+        return delegate.isDisposed();
+    }
+
+    private Disposable submit(Runnable task, Function<Runnable, Disposable> scheduler) {
+        Task metered = new Task(task);
+
+        try {
+            Disposable scheduled = scheduler.apply(metered);
+
+            return new Disposable() {
+                @Override
+                public void dispose() {
+                    metered.dequeue();
+                    scheduled.dispose();
+                }
+
+                @Override
+                public boolean isDisposed() {
+                    return scheduled.isDisposed();
+                }
+            };
+        } catch (RuntimeException e) {
+            metered.dequeue();
+            throw e;
+        }
+    }
+
+    private Runnable running(Runnable task) {
+        return () -> {
+            active.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                active.decrementAndGet();
+            }
+        };
+    }
+
+    /**
+     * Leaves the queue when it starts, or when it is disposed before it got to run.
+     */
+    private final class Task implements Runnable {
+        private final Runnable task;
+        private final AtomicBoolean dequeued = new AtomicBoolean();
+
+        private Task(Runnable task) {
+            this.task = task;
+            queued.incrementAndGet();
+        }
+
+        @Override
+        public void run() {
+            dequeue();
+            running(task).run();
+        }
+
+        void dequeue() {
+            if (dequeued.compareAndSet(false, true)) {
+                queued.decrementAndGet();
+            }
+        }
+    }
+}
@@ -1,9 +1,9 @@
 package no.novari.personalmappe.configuration;
 
 import org.springframework.context.annotation.Configuration;
-import org.springframework.data.mongodb.config.EnableMongoAuditing;
+import org.springframework.data.mongodb.config.EnableReactiveMongoAuditing;
 
-@EnableMongoAuditing
+@EnableReactiveMongoAuditing
 @Configuration
 public class MongoDBConfiguration {
 }
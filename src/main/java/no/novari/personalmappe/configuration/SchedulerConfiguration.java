@@ -0,0 +1,83 @@
+package no.novari.personalmappe.configuration;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+import no.novari.personalmappe.properties.ProvisioningProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import reactor.core.observability.micrometer.Micrometer;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import reactor.netty.resources.LoopResources;
+
+import java.util.stream.StreamSupport;
+
+/**
+ * One named, bounded scheduler per class of work:
+ * <ul>
+ *     <li>{@code cpuScheduler} for mapping and factory logic, one thread per core.</li>
+ *     <li>{@code blockingScheduler} for work that still blocks, such as Nashorn transformations and XLSX
+ *     generation. Tasks run on virtual threads, at most {@code provisioning.blocking.concurrency} at a time, so
+ *     they never occupy a Reactor Netty event loop.</li>
+ *     <li>{@code fintLoopResources}, the Netty event loops of the FINT clients.</li>
+ * </ul>
+ * Each exports queue depth and utilisation as {@code provisioning.scheduler.*} gauges.
+ */
+@Configuration
+public class SchedulerConfiguration {
+
+    @Bean(destroyMethod = "dispose")
+    public Scheduler cpuScheduler(ProvisioningProperties provisioningProperties, MeterRegistry meterRegistry) {
+        int parallelism = parallelism(provisioningProperties.getCpu().getParallelism());
+
+        Scheduler scheduler = new MeteredScheduler(Schedulers.newParallel("cpu", parallelism), "cpu", parallelism, meterRegistry);
+
+        return Micrometer.timedScheduler(scheduler, meterRegistry, "provisioning.scheduler.cpu");
+    }
+
+    @Bean(destroyMethod = "dispose")
+    public Scheduler blockingScheduler(ProvisioningProperties provisioningProperties, MeterRegistry meterRegistry) {
+        ProvisioningProperties.BlockingProperties blocking = provisioningProperties.getBlocking();
+
+        Scheduler scheduler = new MeteredScheduler(Schedulers.newBoundedElastic(
+                blocking.getConcurrency(),
+                blocking.getQueueCapacity(),
+                Thread.ofVirtual().name("blocking-", 0).factory(),
+                60), "blocking", blocking.getConcurrency(), meterRegistry);
+
+        return Micrometer.timedScheduler(scheduler, meterRegistry, "provisioning.scheduler.blocking");
+    }
+
+    @Bean(destroyMethod = "dispose")
+    public LoopResources fintLoopResources(ProvisioningProperties provisioningProperties, MeterRegistry meterRegistry) {
+        int threads = provisioningProperties.getIo().getThreads() > 0
+                ? provisioningProperties.getIo().getThreads()
+                : LoopResources.DEFAULT_IO_WORKER_COUNT;
+
+        LoopResources loopResources = LoopResources.create("fint-io", threads, true);
+        EventLoopGroup eventLoopGroup = loopResources.onClient(true);
+
+        Gauge.builder("provisioning.scheduler.queued", eventLoopGroup, SchedulerConfiguration::pendingTasks)
+                .tag("scheduler", "io")
+                .register(meterRegistry);
+        Gauge.builder("provisioning.scheduler.capacity", () -> threads)
+                .tag("scheduler", "io")
+                .register(meterRegistry);
+
+        return loopResources;
+    }
+
+    private static int parallelism(int configured) {
+        return configured > 0 ? configured : Runtime.getRuntime().availableProcessors();
+    }
+
+    private static double pendingTasks(EventLoopGroup eventLoopGroup) {
+        return StreamSupport.stream(eventLoopGroup.spliterator(), false)
+                .filter(SingleThreadEventExecutor.class::isInstance)
+                .map(SingleThreadEventExecutor.class::cast)
+                .mapToInt(SingleThreadEventExecutor::pendingTasks)
+                .sum();
+    }
+}
@@ -1,26 +1,17 @@
 package no.novari.personalmappe.configuration;
 
-import io.netty.channel.ChannelOption;
-import io.netty.handler.timeout.ReadTimeoutHandler;
-import io.netty.handler.timeout.WriteTimeoutHandler;
+import no.novari.personalmappe.properties.ProvisioningProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.http.client.reactive.ClientHttpConnector;
-import org.springframework.http.client.reactive.ReactorClientHttpConnector;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.config.annotation.web.reactive.EnableWebFluxSecurity;
 import org.springframework.security.config.web.server.ServerHttpSecurity;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.oauth2.client.*;
 import org.springframework.security.oauth2.client.registration.ReactiveClientRegistrationRepository;
-import org.springframework.security.oauth2.client.web.reactive.function.client.ServerOAuth2AuthorizedClientExchangeFilterFunction;
 import org.springframework.security.oauth2.core.endpoint.OAuth2ParameterNames;
 import org.springframework.security.web.server.SecurityWebFilterChain;
-import org.springframework.web.reactive.function.client.ExchangeStrategies;
-import org.springframework.web.reactive.function.client.WebClient;
 import reactor.core.publisher.Mono;
-import reactor.netty.http.client.HttpClient;
-import reactor.netty.resources.ConnectionProvider;
 
 import java.time.Duration;
 import java.util.Collections;
@@ -49,10 +40,15 @@ public class SecurityConfiguration {
 
     @Bean
     public ReactiveOAuth2AuthorizedClientManager authorizedClientManager(ReactiveClientRegistrationRepository clientRegistrationRepository,
-                                                                         ReactiveOAuth2AuthorizedClientService authorizedClientService) {
+                                                                         ReactiveOAuth2AuthorizedClientService authorizedClientService,
+                                                                         ProvisioningProperties provisioningProperties) {
+
+        Duration refreshBefore = provisioningProperties.getToken().getRefreshBefore();
 
         ReactiveOAuth2AuthorizedClientProvider authorizedClientProvider = ReactiveOAuth2AuthorizedClientProviderBuilder.builder()
-                .password().refreshToken().build();
+                .password(password -> password.clockSkew(refreshBefore))
+                .refreshToken(refreshToken -> refreshToken.clockSkew(refreshBefore))
+                .build();
 
         AuthorizedClientServiceReactiveOAuth2AuthorizedClientManager authorizedClientManager =
                 new AuthorizedClientServiceReactiveOAuth2AuthorizedClientManager(clientRegistrationRepository, authorizedClientService);
@@ -72,31 +68,4 @@ public class SecurityConfiguration {
             return Mono.just(contextAttributes);
         };
     }
-
-    @Bean
-    public ClientHttpConnector clientHttpConnector() {
-        HttpClient httpClient = HttpClient.create(ConnectionProvider.builder("laidback").maxLifeTime(Duration.ofHours(6)).maxIdleTime(Duration.ofMinutes(5)).build())
-                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 300000)
-                .doOnConnected(connection -> connection
-                        .addHandlerLast(new ReadTimeoutHandler(120))
-                        .addHandlerLast(new WriteTimeoutHandler(120)));
-
-        return new ReactorClientHttpConnector(httpClient);
-    }
-
-    @Bean
-    public WebClient webClient(WebClient.Builder builder, ReactiveOAuth2AuthorizedClientManager authorizedClientManager, ClientHttpConnector clientHttpConnector) {
-        ExchangeStrategies exchangeStrategies = ExchangeStrategies.builder()
-                .codecs(configurer -> configurer.defaultCodecs().maxInMemorySize(-1))
-                .build();
-
-        ServerOAuth2AuthorizedClientExchangeFilterFunction authorizedClientExchangeFilterFunction =
-                new ServerOAuth2AuthorizedClientExchangeFilterFunction(authorizedClientManager);
-
-        return builder
-                .clientConnector(clientHttpConnector)
-                .exchangeStrategies(exchangeStrategies)
-                .filter(authorizedClientExchangeFilterFunction)
-                .build();
-    }
 }
@@ -2,26 +2,37 @@ package no.novari.personalmappe.controller;
 
 import lombok.extern.slf4j.Slf4j;
 import no.fint.model.resource.arkiv.personal.PersonalmappeResource;
+import no.novari.personalmappe.model.DryRunReport;
+import no.novari.personalmappe.model.JobEvent;
+import no.novari.personalmappe.model.LatencyStats;
+import no.novari.personalmappe.model.MongoDBJob;
 import no.novari.personalmappe.model.MongoDBPersonalmappe;
+import no.novari.personalmappe.model.ReconciliationReport;
 import no.novari.personalmappe.properties.OrganisationProperties;
 import no.novari.personalmappe.repository.MongoDBRepository;
 import no.novari.personalmappe.service.BulkService;
+import no.novari.personalmappe.service.DryRunService;
 import no.novari.personalmappe.service.FileService;
+import no.novari.personalmappe.service.JobRegistry;
+import no.novari.personalmappe.service.LatencyService;
 import no.novari.personalmappe.service.ProvisionService;
+import no.novari.personalmappe.service.ProvisioningExecutor;
+import no.novari.personalmappe.service.ReconciliationService;
+import no.novari.personalmappe.service.WorkQueueService;
+import org.springframework.boot.convert.DurationStyle;
 import org.springframework.core.io.InputStreamResource;
 import org.springframework.core.io.Resource;
 import org.springframework.data.domain.Sort;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
-import java.io.InputStream;
 import java.time.LocalDateTime;
-import java.util.List;
 import java.util.Optional;
-import java.util.stream.Collectors;
 
 @Slf4j
 @RestController("/api")
@@ -30,38 +41,45 @@ public class ApiController {
     private final OrganisationProperties organisationProperties;
     private final BulkService bulkService;
     private final ProvisionService provisionService;
+    private final ProvisioningExecutor provisioningExecutor;
     private final FileService fileService;
+    private final DryRunService dryRunService;
+    private final LatencyService latencyService;
+    private final WorkQueueService workQueueService;
+    private final JobRegistry jobRegistry;
+    private final ReconciliationService reconciliationService;
 
-    public ApiController(MongoDBRepository mongoDBRepository, OrganisationProperties organisationProperties, BulkService bulkService, ProvisionService provisionService, FileService fileService) {
+    public ApiController(MongoDBRepository mongoDBRepository, OrganisationProperties organisationProperties, BulkService bulkService, ProvisionService provisionService, ProvisioningExecutor provisioningExecutor, FileService fileService, DryRunService dryRunService, LatencyService latencyService,
+                         WorkQueueService workQueueService, JobRegistry jobRegistry, ReconciliationService reconciliationService) {
         this.mongoDBRepository = mongoDBRepository;
         this.organisationProperties = organisationProperties;
         this.bulkService = bulkService;
         this.provisionService = provisionService;
+        this.provisioningExecutor = provisioningExecutor;
         this.fileService = fileService;
+        this.dryRunService = dryRunService;
+        this.latencyService = latencyService;
+        this.workQueueService = workQueueService;
+        this.jobRegistry = jobRegistry;
+        this.reconciliationService = reconciliationService;
     }
 
     @GetMapping("/provisioning/state")
-    public ResponseEntity<List<MongoDBPersonalmappe>> getProvisioningState() {
-        return ResponseEntity.ok(mongoDBRepository
-                .findAll(Sort.by(Sort.Direction.DESC, "lastModifiedDate"))
-                .stream()
-                .filter(pm -> pm.getOrgId().equals(organisationProperties.getOrgId()) &&
-                        pm.getLastModifiedDate().isAfter(LocalDateTime.now().minusDays(
-                                Optional.of(organisationProperties.getHistoryLimit())
-                                        .filter(limit -> limit > 0)
-                                        .orElse(365))))
-                .collect(Collectors.toList())
-        );
+    public Flux<MongoDBPersonalmappe> getProvisioningState() {
+        return mongoDBRepository.findByOrgIdAndLastModifiedDateAfter(organisationProperties.getOrgId(),
+                LocalDateTime.now().minusDays(Optional.of(organisationProperties.getHistoryLimit())
+                        .filter(limit -> limit > 0)
+                        .orElse(365)),
+                Sort.by(Sort.Direction.DESC, "lastModifiedDate"));
     }
 
     @GetMapping("/provisioning/download/{status}")
-    public ResponseEntity<Resource> getFile(@PathVariable(value = "status") String status, @RequestParam String searchValue) {
-        InputStream inputStream = fileService.getFile(organisationProperties.getOrgId(), status, searchValue);
-
-        return ResponseEntity.ok()
-                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=personalmapper.xlsx")
-                .contentType(MediaType.parseMediaType("application/vnd.ms-excel"))
-                .body(new InputStreamResource(inputStream));
+    public Mono<ResponseEntity<Resource>> getFile(@PathVariable(value = "status") String status, @RequestParam String searchValue) {
+        return fileService.getFile(organisationProperties.getOrgId(), status, searchValue)
+                .map(inputStream -> ResponseEntity.ok()
+                        .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=personalmapper.xlsx")
+                        .contentType(MediaType.parseMediaType("application/vnd.ms-excel"))
+                        .body(new InputStreamResource(inputStream)));
     }
 
     @GetMapping("/provisioning/username/{username}")
@@ -70,12 +88,42 @@ public class ApiController {
     }
 
     @PostMapping("/provisioning/username/{username}")
-    public void provisionPersonalmappeByUsername(@PathVariable String username) {
-        provisionService.provisionOne(username);
+    public Mono<Void> provisionPersonalmappeByUsername(@PathVariable String username) {
+        return workQueueService.supersede(username)
+                .then(Mono.fromRunnable(() -> provisioningExecutor.provisionOne(username)));
     }
 
     @PostMapping("/provisioning/limit/{limit}")
-    public void provisionLimitedNumberOfPersonalmapper(@PathVariable int limit) {
-        bulkService.bulk(limit);
+    public Mono<MongoDBJob> provisionLimitedNumberOfPersonalmapper(@PathVariable int limit) {
+        return bulkService.bulk(limit);
+    }
+
+    @GetMapping(value = "/provisioning/jobs/{id}/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public Mono<ResponseEntity<Flux<ServerSentEvent<JobEvent>>>> getJobEvents(@PathVariable String id) {
+        return workQueueService.getJob(id)
+                .map(job -> ResponseEntity.ok(jobRegistry.events(job, workQueueService.getJob(id))
+                        .map(event -> ServerSentEvent.builder(event)
+                                .event(event.getType().name().toLowerCase())
+                                .build())))
+                .defaultIfEmpty(ResponseEntity.notFound().build());
+    }
+
+    @PostMapping("/provisioning/dry-run/limit/{limit}")
+    public Mono<DryRunReport> dryRunLimitedNumberOfPersonalmapper(@PathVariable long limit) {
+        return dryRunService.dryRun(limit);
+    }
+
+    @PostMapping("/provisioning/reconcile")
+    public Mono<ReconciliationReport> reconcile(@RequestParam(defaultValue = "false") boolean repair) {
+        return reconciliationService.reconcile(repair);
+    }
+
+    @GetMapping("/provisioning/stats")
+    public ResponseEntity<LatencyStats> getProvisioningStats(@RequestParam(defaultValue = "1h") String window) {
+        try {
+            return ResponseEntity.ok(latencyService.stats(DurationStyle.detectAndParse(window)));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
     }
 }
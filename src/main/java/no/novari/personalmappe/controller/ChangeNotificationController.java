@@ -0,0 +1,54 @@
+package no.novari.personalmappe.controller;
+
+import no.novari.personalmappe.model.ChangeNotification;
+import no.novari.personalmappe.model.MongoDBJob;
+import no.novari.personalmappe.properties.ProvisioningProperties;
+import no.novari.personalmappe.service.ChangeNotificationService;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+@RestController
+public class ChangeNotificationController {
+    private final ChangeNotificationService changeNotificationService;
+    private final ProvisioningProperties.WebhookProperties properties;
+
+    public ChangeNotificationController(ChangeNotificationService changeNotificationService, ProvisioningProperties provisioningProperties) {
+        this.changeNotificationService = changeNotificationService;
+        this.properties = provisioningProperties.getWebhook();
+    }
+
+    @PostMapping("/provisioning/changes")
+    public Mono<ResponseEntity<MongoDBJob>> changes(@RequestHeader(value = "X-Webhook-Secret", required = false) String secret, @RequestBody ChangeNotification notification) {
+        if (!authorized(secret)) {
+            return Mono.just(ResponseEntity.status(HttpStatus.UNAUTHORIZED).build());
+        }
+
+        if (!changeNotificationService.allowed(notification)) {
+            return Mono.just(ResponseEntity.badRequest().build());
+        }
+
+        return changeNotificationService.accept(notification)
+                .map(job -> ResponseEntity.accepted().body(job))
+                .defaultIfEmpty(ResponseEntity.accepted().build());
+    }
+
+    // Without a configured secret every notification is refused.
+    private boolean authorized(String secret) {
+        if (StringUtils.isBlank(properties.getSecret())) {
+            return false;
+        }
+
+        return secret != null && MessageDigest.isEqual(
+                properties.getSecret().getBytes(StandardCharsets.UTF_8),
+                secret.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -1,7 +1,26 @@
 package no.novari.personalmappe.exception;
 
+import java.net.URI;
+import java.time.Duration;
+
 public class FinalStatusPendingException extends RuntimeException {
+    private final URI location;
+    private final Duration retryAfter;
+
+    public FinalStatusPendingException(URI location, Duration retryAfter) {
+        super("Final status pending at " + location);
+        this.location = location;
+        this.retryAfter = retryAfter;
+    }
+
+    public URI getLocation() {
+        return location;
+    }
 
-    public FinalStatusPendingException() {
+    /**
+     * When to ask again, from the {@code Retry-After} header of the last status response, or {@code null}.
+     */
+    public Duration getRetryAfter() {
+        return retryAfter;
     }
 }
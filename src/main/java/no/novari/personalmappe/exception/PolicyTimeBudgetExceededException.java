@@ -0,0 +1,10 @@
+package no.novari.personalmappe.exception;
+
+import java.time.Duration;
+
+public class PolicyTimeBudgetExceededException extends RuntimeException {
+
+    public PolicyTimeBudgetExceededException(String script, Duration budget) {
+        super(String.format("Transformation script %s exceeded its time budget of %d ms", script, budget.toMillis()));
+    }
+}
@@ -8,7 +8,10 @@ import no.fint.model.felles.kompleksedatatyper.Personnavn;
 import no.fint.model.resource.Link;
 import no.fint.model.resource.arkiv.personal.PersonalmappeResource;
 import no.novari.personalmappe.model.GraphQLPersonalmappe;
+import no.novari.personalmappe.model.Personnel;
+import no.novari.personalmappe.model.Transition;
 import no.novari.personalmappe.properties.OrganisationProperties;
+import no.novari.personalmappe.utilities.StringInterner;
 import org.springframework.stereotype.Component;
 
 import java.time.LocalDateTime;
@@ -20,41 +23,105 @@ import java.util.function.Predicate;
 @Slf4j
 public class PersonalmappeResourceFactory {
 
-    public PersonalmappeResource toPersonalmappeResource(GraphQLPersonalmappe.Personalressurs personalressurs, OrganisationProperties organisationProperties, List<String> administrativEnheter) {
+    // An arbeidsforhold counts this many weeks before it starts, so the folder is ready on the first day.
+    private static final int ACTIVATION_WEEKS = 2;
 
-        PersonalmappeResource personalmappeResource = new PersonalmappeResource();
+    private static final String PERSON = Link.with(Person.class, "fodselsnummer").getHref() + "/";
+    private static final String PERSONALRESSURS = Link.with(Personalressurs.class, "brukernavn").getHref() + "/";
+    private static final String ORGANISASJONSELEMENT = Link.with(Organisasjonselement.class, "organisasjonsid").getHref() + "/";
+
+    public PersonalmappeResource toPersonalmappeResource(GraphQLPersonalmappe.Personalressurs personalressurs, OrganisationProperties organisationProperties, List<String> administrativEnheter) {
+        return toPersonnel(personalressurs, organisationProperties, administrativEnheter)
+                .map(this::toPersonalmappeResource)
+                .orElseGet(PersonalmappeResource::new);
+    }
 
-        Optional<GraphQLPersonalmappe.Arbeidsforhold> arbeidsforhold = Optional.ofNullable(personalressurs)
+    /**
+     * Reduces the GraphQL graph to the identifiers the personnel folder needs. Usernames and organisation ids are
+     * interned, as the same leaders and workplaces recur for many employees.
+     */
+    public Optional<Personnel> toPersonnel(GraphQLPersonalmappe.Personalressurs personalressurs, OrganisationProperties organisationProperties, List<String> administrativEnheter) {
+        return Optional.ofNullable(personalressurs)
                 .map(GraphQLPersonalmappe.Personalressurs::getArbeidsforhold)
                 .orElseGet(Collections::emptyList)
                 .stream()
                 .filter(forhold -> validArbeidsforhold().test(forhold, organisationProperties.getPersonnelResourceCategory()))
                 .min(Comparator.comparing(forhold -> Optional.ofNullable(forhold.getGyldighetsperiode())
                         .map(GraphQLPersonalmappe.Periode::getStart)
-                        .orElse(LocalDateTime.MAX)));
-
-        arbeidsforhold.ifPresent(forhold -> {
-            getNavn(forhold).ifPresent(personalmappeResource::setNavn);
-            getPerson(forhold).map(Link.apply(Person.class, "fodselsnummer")).ifPresent(personalmappeResource::addPerson);
-            getPersonalressurs(forhold).map(Link.apply(Personalressurs.class, "brukernavn")).ifPresent(personalmappeResource::addPersonalressurs);
-
-            getLeder(forhold).ifPresent(leder -> {
-                if (getPersonalressurs(forhold).filter(leder::equalsIgnoreCase).isPresent() || !getArbeidssted(forhold).filter(administrativEnheter::contains).isPresent()) {
-                    getLedersLeder(forhold).map(Link.apply(Personalressurs.class, "brukernavn")).ifPresent(personalmappeResource::addLeder);
-                    getLedersArbeidssted(forhold).map(Link.apply(Organisasjonselement.class, "organisasjonsid")).ifPresent(personalmappeResource::addArbeidssted);
-                } else {
-                    personalmappeResource.addLeder(Link.with(Personalressurs.class, "brukernavn", leder));
-                    getArbeidssted(forhold).map(Link.apply(Organisasjonselement.class, "organisasjonsid")).ifPresent(personalmappeResource::addArbeidssted);
-                }
-            });
-
-            // TODO? personalmappeResource.setPart(Collections.singletonList(new PartResource()));
-            personalmappeResource.setTittel("DUMMY");
-        });
+                        .orElse(LocalDateTime.MAX)))
+                .map(forhold -> {
+                    String username = getPersonalressurs(forhold).orElse(null);
+                    String leader = null;
+                    String workplace = null;
+
+                    Optional<String> leder = getLeder(forhold);
+
+                    if (leder.isPresent()) {
+                        if (leder.get().equalsIgnoreCase(username) || !getArbeidssted(forhold).filter(administrativEnheter::contains).isPresent()) {
+                            leader = getLedersLeder(forhold).orElse(null);
+                            workplace = getLedersArbeidssted(forhold).orElse(null);
+                        } else {
+                            leader = leder.get();
+                            workplace = getArbeidssted(forhold).orElse(null);
+                        }
+                    }
+
+                    return new Personnel(StringInterner.intern(username), getPerson(forhold).orElse(null), getNavn(forhold).orElse(null),
+                            StringInterner.intern(leader), StringInterner.intern(workplace));
+                });
+    }
+
+    /**
+     * Expands the compact form to the resource sent to the archive.
+     */
+    public PersonalmappeResource toPersonalmappeResource(Personnel personnel) {
+        PersonalmappeResource personalmappeResource = new PersonalmappeResource();
+
+        Optional.ofNullable(personnel.name()).map(navn -> {
+            Personnavn personnavn = new Personnavn();
+            personnavn.setFornavn(navn.fornavn());
+            personnavn.setMellomnavn(navn.mellomnavn());
+            personnavn.setEtternavn(navn.etternavn());
+            return personnavn;
+        }).ifPresent(personalmappeResource::setNavn);
+
+        Optional.ofNullable(personnel.nin()).map(PERSON::concat).map(Link::with).ifPresent(personalmappeResource::addPerson);
+        Optional.ofNullable(personnel.username()).map(PERSONALRESSURS::concat).map(Link::with).ifPresent(personalmappeResource::addPersonalressurs);
+        Optional.ofNullable(personnel.leader()).map(PERSONALRESSURS::concat).map(Link::with).ifPresent(personalmappeResource::addLeder);
+        Optional.ofNullable(personnel.workplace()).map(ORGANISASJONSELEMENT::concat).map(Link::with).ifPresent(personalmappeResource::addArbeidssted);
+
+        // TODO? personalmappeResource.setPart(Collections.singletonList(new PartResource()));
+        personalmappeResource.setTittel("DUMMY");
 
         return personalmappeResource;
     }
 
+    /**
+     * The instants after {@code now} at which an arbeidsforhold that counts for the personnel folder comes within
+     * the activation window or ends, earliest first.
+     */
+    public List<Transition> getTransitions(GraphQLPersonalmappe.Personalressurs personalressurs, OrganisationProperties organisationProperties, LocalDateTime now) {
+        return Optional.ofNullable(personalressurs)
+                .map(GraphQLPersonalmappe.Personalressurs::getArbeidsforhold)
+                .orElseGet(Collections::emptyList)
+                .stream()
+                .filter(forhold -> isHovedstilling().test(forhold) && hasPersonalressurskategori().test(forhold, organisationProperties.getPersonnelResourceCategory()))
+                .map(GraphQLPersonalmappe.Arbeidsforhold::getGyldighetsperiode)
+                .filter(Objects::nonNull)
+                .<Transition>mapMulti((periode, transitions) -> {
+                    if (periode.getStart() != null) {
+                        transitions.accept(new Transition(Transition.Kind.ACTIVATION, periode.getStart().minusWeeks(ACTIVATION_WEEKS)));
+                    }
+                    if (periode.getSlutt() != null) {
+                        transitions.accept(new Transition(Transition.Kind.DEACTIVATION, periode.getSlutt()));
+                    }
+                })
+                .filter(transition -> transition.at().isAfter(now))
+                .distinct()
+                .sorted(Comparator.comparing(Transition::at))
+                .toList();
+    }
+
     private Optional<String> getPersonalressurs(GraphQLPersonalmappe.Arbeidsforhold arbeidsforhold) {
         return Optional.ofNullable(arbeidsforhold.getPersonalressurs())
                 .map(GraphQLPersonalmappe.Personalressurs::getBrukernavn)
@@ -68,17 +135,11 @@ public class PersonalmappeResourceFactory {
                 .map(GraphQLPersonalmappe.Identifikator::getIdentifikatorverdi);
     }
 
-    private Optional<Personnavn> getNavn(GraphQLPersonalmappe.Arbeidsforhold arbeidsforhold) {
+    private Optional<Personnel.Name> getNavn(GraphQLPersonalmappe.Arbeidsforhold arbeidsforhold) {
         return Optional.ofNullable(arbeidsforhold.getPersonalressurs())
                 .map(GraphQLPersonalmappe.Personalressurs::getPerson)
                 .map(GraphQLPersonalmappe.Person::getNavn)
-                .map(navn -> {
-                    Personnavn personnavn = new Personnavn();
-                    personnavn.setFornavn(navn.getFornavn());
-                    personnavn.setMellomnavn(navn.getMellomnavn());
-                    personnavn.setEtternavn(navn.getEtternavn());
-                    return personnavn;
-                });
+                .map(navn -> new Personnel.Name(navn.getFornavn(), navn.getMellomnavn(), navn.getEtternavn()));
     }
 
     private Optional<String> getLeder(GraphQLPersonalmappe.Arbeidsforhold arbeidsforhold) {
@@ -119,10 +180,10 @@ public class PersonalmappeResourceFactory {
             if (arbeidsforhold == null || arbeidsforhold.getGyldighetsperiode() == null) return false;
 
             if (arbeidsforhold.getGyldighetsperiode().getSlutt() == null) {
-                return now.plusWeeks(2).isAfter(arbeidsforhold.getGyldighetsperiode().getStart());
+                return now.plusWeeks(ACTIVATION_WEEKS).isAfter(arbeidsforhold.getGyldighetsperiode().getStart());
             } else {
                 return now.isBefore(arbeidsforhold.getGyldighetsperiode().getSlutt())
-                        && now.plusWeeks(2).isAfter(arbeidsforhold.getGyldighetsperiode().getStart());
+                        && now.plusWeeks(ACTIVATION_WEEKS).isAfter(arbeidsforhold.getGyldighetsperiode().getStart());
             }
         };
     }
@@ -0,0 +1,18 @@
+package no.novari.personalmappe.model;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@Data
+public class ChangeNotification {
+    private Type type = Type.PERSONALRESSURS;
+    private List<String> usernames = new ArrayList<>();
+    private List<String> links = new ArrayList<>();
+
+    public enum Type {
+        PERSONALRESSURS,
+        ARBEIDSFORHOLD
+    }
+}
@@ -0,0 +1,17 @@
+package no.novari.personalmappe.model;
+
+import lombok.Builder;
+import lombok.Data;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+@Data
+@Builder
+public class DryRunReport {
+    private long total;
+    private Duration duration;
+    private Map<DryRunResult.Outcome, Long> outcomes;
+    private List<DryRunResult> results;
+}
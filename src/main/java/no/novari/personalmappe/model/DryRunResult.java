@@ -0,0 +1,24 @@
+package no.novari.personalmappe.model;
+
+import lombok.Builder;
+import lombok.Data;
+
+@Data
+@Builder
+public class DryRunResult {
+    private String username;
+    private Outcome outcome;
+    private String leader;
+    private String previousLeader;
+    private String workplace;
+    private String previousWorkplace;
+    private String message;
+
+    public enum Outcome {
+        NEW,
+        CHANGED_LEADER,
+        CHANGED_WORKPLACE,
+        UNCHANGED,
+        INVALID
+    }
+}
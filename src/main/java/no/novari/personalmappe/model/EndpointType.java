@@ -0,0 +1,8 @@
+package no.novari.personalmappe.model;
+
+public enum EndpointType {
+    GRAPHQL,
+    STATUS,
+    COLLECTION,
+    ARCHIVE
+}
@@ -0,0 +1,6 @@
+package no.novari.personalmappe.model;
+
+public enum ErrorClass {
+    TRANSIENT,
+    PERMANENT
+}
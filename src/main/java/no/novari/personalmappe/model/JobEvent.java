@@ -0,0 +1,26 @@
+package no.novari.personalmappe.model;
+
+import lombok.Builder;
+import lombok.Data;
+
+import java.time.Duration;
+
+@Data
+@Builder
+public class JobEvent {
+    private String jobId;
+    private Type type;
+    private String username;
+    private String outcome;
+    private long processed;
+    private long total;
+    private long failed;
+    private double ratePerMinute;
+    private Duration eta;
+
+    public enum Type {
+        USER,
+        PROGRESS,
+        COMPLETED
+    }
+}
@@ -0,0 +1,9 @@
+package no.novari.personalmappe.model;
+
+public enum LatencyStage {
+    QUEUED,
+    GRAPHQL,
+    WRITE,
+    FINAL_STATUS,
+    TOTAL
+}
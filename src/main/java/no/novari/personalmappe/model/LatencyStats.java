@@ -0,0 +1,28 @@
+package no.novari.personalmappe.model;
+
+import lombok.Builder;
+import lombok.Data;
+
+import java.time.Duration;
+import java.util.List;
+
+@Data
+@Builder
+public class LatencyStats {
+    private Duration window;
+    private List<Entry> entries;
+
+    @Data
+    @Builder
+    public static class Entry {
+        private String orgId;
+        private String outcome;
+        private LatencyStage stage;
+        private long count;
+        private double throughputPerMinute;
+        private long p50;
+        private long p95;
+        private long p99;
+        private long max;
+    }
+}
@@ -0,0 +1,38 @@
+package no.novari.personalmappe.model;
+
+import lombok.Builder;
+import lombok.Data;
+import org.springframework.data.annotation.CreatedDate;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.LastModifiedDate;
+import org.springframework.data.annotation.Version;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.net.URI;
+import java.time.LocalDateTime;
+
+@Data
+@Builder
+@Document
+public class MongoDBArkivressurs {
+
+    @Id
+    private String id;
+    private String orgId;
+    private URI selfLink;
+    private String hash;
+    /**
+     * The HTTP status code of the last synchronisation, {@code 0} if it was never synchronised.
+     */
+    private int status;
+    private String message;
+
+    @Version
+    private long version;
+
+    @CreatedDate
+    private LocalDateTime createdDate;
+
+    @LastModifiedDate
+    private LocalDateTime lastModifiedDate;
+}
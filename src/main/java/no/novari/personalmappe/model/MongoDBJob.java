@@ -0,0 +1,43 @@
+package no.novari.personalmappe.model;
+
+import lombok.Builder;
+import lombok.Data;
+import org.springframework.data.annotation.CreatedDate;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.LastModifiedDate;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.LocalDateTime;
+
+@Data
+@Builder
+@Document
+public class MongoDBJob {
+
+    @Id
+    private String id;
+    private String orgId;
+    private Priority priority;
+    private Kind kind;
+    private State state;
+    private long total;
+    private long processed;
+    private long failed;
+
+    @CreatedDate
+    private LocalDateTime createdDate;
+
+    @LastModifiedDate
+    private LocalDateTime lastModifiedDate;
+
+    public enum State {
+        ENQUEUEING,
+        RUNNING,
+        COMPLETED
+    }
+
+    public enum Kind {
+        PROVISIONING,
+        RECONCILIATION
+    }
+}
@@ -6,13 +6,22 @@ import org.springframework.data.annotation.CreatedDate;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.annotation.LastModifiedDate;
 import org.springframework.data.annotation.Version;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.mapping.Document;
 import org.springframework.http.HttpStatus;
 
 import java.net.URI;
 import java.time.LocalDateTime;
+import java.util.Map;
 
 @Data
 @Builder
+// The collection name is the one derived from the class name before the annotation was added.
+@Document(collection = "mongoDBPersonalmappe")
+@CompoundIndex(name = "retry", def = "{'orgId': 1, 'nextAttemptAt': 1}")
+@CompoundIndex(name = "leader", def = "{'orgId': 1, 'leader': 1}")
+@CompoundIndex(name = "workplace", def = "{'orgId': 1, 'workplace': 1}")
+@CompoundIndex(name = "pendingStatus", def = "{'orgId': 1, 'pendingStatus.checkAt': 1}")
 public class MongoDBPersonalmappe {
 
     @Id
@@ -24,6 +33,12 @@ public class MongoDBPersonalmappe {
     private URI association;
     private HttpStatus status;
     private String message;
+    private ErrorClass errorClass;
+    private int attempts;
+    private LocalDateTime nextAttemptAt;
+    private boolean deadLetter;
+    private PendingStatus pendingStatus;
+    private Map<LatencyStage, Long> timings;
 
     @Version
     private long version;
@@ -0,0 +1,25 @@
+package no.novari.personalmappe.model;
+
+import lombok.Builder;
+import lombok.Data;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+@Data
+@Builder
+@Document
+@CompoundIndex(name = "due", def = "{'orgId': 1, 'dueAt': 1}")
+public class MongoDBSchedule {
+
+    @Id
+    private String id;
+    private String orgId;
+    private String username;
+    private LocalDateTime dueAt;
+    private int claims;
+    private List<Transition> transitions;
+}
@@ -0,0 +1,39 @@
+package no.novari.personalmappe.model;
+
+import lombok.Builder;
+import lombok.Data;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.LocalDateTime;
+
+@Data
+@Builder
+@Document
+@CompoundIndex(name = "claim", def = "{'orgId': 1, 'priority': 1, 'state': 1, 'enqueuedAt': 1, 'sequence': 1}")
+@CompoundIndex(name = "username", def = "{'orgId': 1, 'username': 1, 'state': 1}")
+@CompoundIndex(name = "job", def = "{'jobId': 1, 'state': 1}")
+public class MongoDBWorkItem {
+
+    @Id
+    private String id;
+    private String jobId;
+    private String orgId;
+    private String username;
+    private Priority priority;
+    private State state;
+    private long sequence;
+    private int attempts;
+    private LocalDateTime enqueuedAt;
+    private LocalDateTime requestedAt;
+    private LocalDateTime notBefore;
+    private LocalDateTime claimedAt;
+
+    public enum State {
+        QUEUED,
+        CLAIMED,
+        DONE,
+        FAILED
+    }
+}
@@ -0,0 +1,11 @@
+package no.novari.personalmappe.model;
+
+import java.net.URI;
+import java.time.LocalDateTime;
+
+/**
+ * A status location that did not report a final status while the personnel folder was provisioned. It is
+ * polled in the background from {@code checkAt}.
+ */
+public record PendingStatus(URI location, LocalDateTime since, LocalDateTime checkAt) {
+}
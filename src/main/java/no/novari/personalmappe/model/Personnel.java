@@ -0,0 +1,12 @@
+package no.novari.personalmappe.model;
+
+/**
+ * The personnel folder as it is kept inside the pipeline. Relations are held as interned identifiers rather than
+ * links, and the folder is only expanded to a {@code PersonalmappeResource} when it is transformed, sent to the
+ * archive or shown.
+ */
+public record Personnel(String username, String nin, Name name, String leader, String workplace) {
+
+    public record Name(String fornavn, String mellomnavn, String etternavn) {
+    }
+}
@@ -0,0 +1,25 @@
+package no.novari.personalmappe.model;
+
+import lombok.Builder;
+import lombok.Data;
+
+import java.time.Duration;
+import java.util.Map;
+
+@Data
+@Builder
+public class PolicyBatchReport {
+    private String source;
+    private long total;
+    private long evaluated;
+    private long failed;
+    private long unchanged;
+    private Duration duration;
+    private double throughputPerSecond;
+    private double p50Millis;
+    private double p95Millis;
+    private double p99Millis;
+    private double maxMillis;
+    private Map<String, Long> errors;
+    private Map<String, Long> changes;
+}
@@ -0,0 +1,8 @@
+package no.novari.personalmappe.model;
+
+public enum Priority {
+    INTERACTIVE,
+    DELTA,
+    RETRY,
+    BULK
+}
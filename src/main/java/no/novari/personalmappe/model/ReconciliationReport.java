@@ -0,0 +1,40 @@
+package no.novari.personalmappe.model;
+
+import lombok.Builder;
+import lombok.Data;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+@Data
+@Builder
+public class ReconciliationReport {
+    private long archived;
+    private long stored;
+    private long matched;
+    private Duration duration;
+    private Map<Drift.Kind, Long> drift;
+    private List<Drift> details;
+    private String repairJobId;
+    private String repairRefused;
+
+    @Data
+    @Builder
+    public static class Drift {
+        private Kind kind;
+        private String username;
+        private URI association;
+        private String leader;
+        private String archivedLeader;
+        private String workplace;
+        private String archivedWorkplace;
+
+        public enum Kind {
+            MISSING,
+            ORPHANED,
+            MISMATCHED
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package no.novari.personalmappe.model;
+
+import java.time.LocalDateTime;
+
+/**
+ * A future instant at which an employee's personnel folder changes without any change in FINT, because an
+ * arbeidsforhold comes within the activation window or ends.
+ */
+public record Transition(Kind kind, LocalDateTime at) {
+
+    public enum Kind {
+        ACTIVATION,
+        DEACTIVATION
+    }
+}
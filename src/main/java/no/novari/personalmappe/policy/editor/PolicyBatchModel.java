@@ -0,0 +1,16 @@
+package no.novari.personalmappe.policy.editor;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import no.novari.personalmappe.model.PolicyBatchReport;
+import org.springframework.http.codec.multipart.FilePart;
+
+@Data
+@NoArgsConstructor
+public class PolicyBatchModel {
+    private String js;
+    private Integer size;
+    private FilePart file;
+    private PolicyBatchReport report;
+    private String error;
+}
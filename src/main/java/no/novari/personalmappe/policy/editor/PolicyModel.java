@@ -1,15 +1,24 @@
 package no.novari.personalmappe.policy.editor;
 
-import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import no.fint.model.resource.arkiv.personal.PersonalmappeResource;
 
 @Data
-@AllArgsConstructor
 @NoArgsConstructor
 public class PolicyModel {
     private String json;
     private String js;
     private PersonalmappeResource result;
+    private Double costMillis;
+    private String error;
+    private Long calls;
+    private Double meanMillis;
+    private Double maxMillis;
+
+    public PolicyModel(String json, String js, PersonalmappeResource result) {
+        this.json = json;
+        this.js = js;
+        this.result = result;
+    }
 }
@@ -3,22 +3,42 @@ package no.novari.personalmappe.policy.editor;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import no.fint.model.resource.arkiv.personal.PersonalmappeResource;
+import no.novari.personalmappe.model.PolicyBatchReport;
+import no.novari.personalmappe.properties.ProvisioningProperties;
+import no.novari.personalmappe.service.PolicyBatchService;
 import no.novari.personalmappe.service.PolicyService;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.codec.StringDecoder;
+import org.springframework.http.codec.multipart.FilePart;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.ModelAttribute;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 @Controller
 @RequestMapping("/policy/editor")
 public class PolicyTestController {
 
     private final PolicyService policyService;
+    private final PolicyBatchService policyBatchService;
+    private final ProvisioningProperties.PolicyProperties properties;
+    private final Scheduler blockingScheduler;
 
-    public PolicyTestController(PolicyService policyService) {
+    public PolicyTestController(PolicyService policyService, PolicyBatchService policyBatchService, ProvisioningProperties provisioningProperties,
+                                @Qualifier("blockingScheduler") Scheduler blockingScheduler) {
         this.policyService = policyService;
+        this.policyBatchService = policyBatchService;
+        this.properties = provisioningProperties.getPolicy();
+        this.blockingScheduler = blockingScheduler;
     }
 
     @GetMapping
@@ -80,18 +100,55 @@ public class PolicyTestController {
                         "  return o;\n" +
                         "}",
                 null));
+        model.addAttribute("batchSize", properties.getBatchSize());
+        model.addAttribute("batchMaxSize", properties.getBatchMaxSize());
         return "policy-editor";
     }
 
     @PostMapping
-    public String evaluate(@ModelAttribute PolicyModel policyModel) {
-        try {
-            PersonalmappeResource transform = policyService.transform(policyModel.getJs(), new ObjectMapper().readValue(policyModel.getJson(), PersonalmappeResource.class));
-            policyModel.setResult(transform);
-        } catch (JsonProcessingException e) {
-            e.printStackTrace();
-        }
+    public Mono<String> evaluate(@ModelAttribute PolicyModel policyModel) {
+        return Mono.fromCallable(() -> {
+                    try {
+                        PolicyService.Evaluation evaluation = policyService.evaluate(policyModel.getJs(), new ObjectMapper().readValue(policyModel.getJson(), PersonalmappeResource.class));
+                        policyModel.setResult(evaluation.result());
+                        policyModel.setCostMillis(evaluation.duration().toNanos() / 1e6);
+                        policyModel.setError(evaluation.error() == null ? null : evaluation.error().getMessage());
+                    } catch (JsonProcessingException e) {
+                        e.printStackTrace();
+                    } catch (RuntimeException e) {
+                        policyModel.setResult(null);
+                        policyModel.setError(StringUtils.defaultIfBlank(e.getMessage(), e.getClass().getSimpleName()));
+                    }
+
+                    policyService.getTimer(policyModel.getJs()).ifPresent(timer -> {
+                        policyModel.setCalls(timer.count());
+                        policyModel.setMeanMillis(timer.mean(TimeUnit.MILLISECONDS));
+                        policyModel.setMaxMillis(timer.max(TimeUnit.MILLISECONDS));
+                    });
+
+                    return "result";
+                })
+                .subscribeOn(blockingScheduler);
+    }
+
+    /**
+     * Runs the script against a sample of stored personnel folders built through the factory, or against the
+     * personnel folders in an uploaded JSON lines file.
+     */
+    @PostMapping("/batch")
+    public Mono<String> batch(@ModelAttribute PolicyBatchModel policyBatchModel) {
+        FilePart file = policyBatchModel.getFile();
+
+        Mono<PolicyBatchReport> report = file == null || StringUtils.isBlank(file.filename())
+                ? policyBatchService.sample(policyBatchModel.getJs(), Optional.ofNullable(policyBatchModel.getSize()).orElse(properties.getBatchSize()))
+                : policyBatchService.upload(policyBatchModel.getJs(), StringDecoder.textPlainOnly().decode(file.content(), ResolvableType.forClass(String.class), null, null));
 
-        return "result";
+        return report
+                .doOnNext(policyBatchModel::setReport)
+                .onErrorResume(error -> {
+                    policyBatchModel.setError(error.getMessage());
+                    return Mono.empty();
+                })
+                .thenReturn("batch");
     }
 }
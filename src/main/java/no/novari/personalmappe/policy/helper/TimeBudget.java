@@ -0,0 +1,160 @@
+package no.novari.personalmappe.policy.helper;
+
+import no.novari.personalmappe.exception.PolicyTimeBudgetExceededException;
+
+import javax.script.ScriptException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Deadline of the running policy. Nashorn cannot be interrupted, so {@link #instrument(String)} makes every
+ * loop iteration and function call of a script check the deadline, and a runaway script is aborted with
+ * {@link PolicyTimeBudgetExceededException}.
+ */
+public class TimeBudget {
+
+    public static final String NAME = "__budget";
+
+    private static final String CHECK = NAME + ".check();";
+
+    private volatile String script;
+    private volatile Duration budget;
+    private volatile long deadline = Long.MAX_VALUE;
+
+    public void start(String script, Duration budget) {
+        this.script = script;
+        this.budget = budget;
+        this.deadline = System.nanoTime() + budget.toNanos();
+    }
+
+    public void stop() {
+        deadline = Long.MAX_VALUE;
+    }
+
+    public void check() {
+        if (System.nanoTime() - deadline > 0) {
+            throw new PolicyTimeBudgetExceededException(script, budget);
+        }
+    }
+
+    /**
+     * Inserts a deadline check first in the body of every {@code for}, {@code while}, {@code do} and
+     * {@code function}. A loop without braces has no body to check in and is rejected, apart from the
+     * {@code while} that ends a braced {@code do}.
+     */
+    public static String instrument(String script) throws ScriptException {
+        StringBuilder instrumented = new StringBuilder(script.length() + 64);
+        int length = script.length();
+        int index = 0;
+
+        // One entry per open brace, telling whether it opened the body of a do, so the while ending it is known.
+        Deque<Boolean> braces = new ArrayDeque<>();
+        boolean closedDo = false;
+
+        while (index < length) {
+            char c = script.charAt(index);
+
+            if (c == '"' || c == '\'' || c == '`') {
+                int end = skipString(script, index);
+                instrumented.append(script, index, end);
+                index = end;
+                closedDo = false;
+            } else if (script.startsWith("//", index) || script.startsWith("/*", index)) {
+                int end = script.startsWith("//", index) ? script.indexOf('\n', index) : script.indexOf("*/", index + 2) + 1;
+                end = end <= 0 ? length : end + 1;
+                instrumented.append(script, index, Math.min(end, length));
+                index = Math.min(end, length);
+            } else if (Character.isJavaIdentifierStart(c)) {
+                int end = index;
+                while (end < length && Character.isJavaIdentifierPart(script.charAt(end))) {
+                    end++;
+                }
+
+                String word = script.substring(index, end);
+                boolean endsDo = closedDo && word.equals("while");
+                instrumented.append(word);
+                index = end;
+                closedDo = false;
+
+                int body = switch (word) {
+                    case "for", "while", "function" -> bodyAfterParentheses(script, index);
+                    case "do" -> skipWhitespace(script, index);
+                    default -> -1;
+                };
+
+                if (body >= 0 && body < length && script.charAt(body) == '{') {
+                    instrumented.append(script, index, body + 1).append(CHECK);
+                    index = body + 1;
+                    braces.push(word.equals("do"));
+                } else if (body >= 0 && body < length && !word.equals("function") && !endsDo) {
+                    throw new ScriptException("The body of the " + word + " loop must be enclosed in braces", null, line(script, body));
+                }
+            } else {
+                if (c == '{') {
+                    braces.push(false);
+                } else if (c == '}') {
+                    closedDo = !braces.isEmpty() && braces.pop();
+                } else if (!Character.isWhitespace(c)) {
+                    closedDo = false;
+                }
+
+                instrumented.append(c);
+                index++;
+            }
+        }
+
+        return instrumented.toString();
+    }
+
+    private static int bodyAfterParentheses(String script, int index) {
+        int open = script.indexOf('(', index);
+
+        if (open < 0 || !script.substring(index, open).trim().matches("[\\w$]*")) {
+            return -1;
+        }
+
+        int depth = 0;
+        for (int i = open; i < script.length(); i++) {
+            char c = script.charAt(i);
+
+            if (c == '"' || c == '\'' || c == '`') {
+                i = skipString(script, i) - 1;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')' && --depth == 0) {
+                return skipWhitespace(script, i + 1);
+            }
+        }
+
+        return -1;
+    }
+
+    private static int line(String script, int index) {
+        return (int) script.substring(0, index).chars().filter(c -> c == '\n').count() + 1;
+    }
+
+    private static int skipWhitespace(String script, int index) {
+        while (index < script.length() && Character.isWhitespace(script.charAt(index))) {
+            index++;
+        }
+
+        return index;
+    }
+
+    private static int skipString(String script, int start) {
+        char quote = script.charAt(start);
+
+        for (int i = start + 1; i < script.length(); i++) {
+            char c = script.charAt(i);
+
+            if (c == '\\') {
+                i++;
+            } else if (c == quote) {
+                return i + 1;
+            }
+        }
+
+        return script.length();
+    }
+}
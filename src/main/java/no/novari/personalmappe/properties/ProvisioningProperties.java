@@ -0,0 +1,212 @@
+package no.novari.personalmappe.properties;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import no.novari.personalmappe.model.EndpointType;
+import no.novari.personalmappe.model.Priority;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+
+@Data
+@ConfigurationProperties("provisioning")
+public class ProvisioningProperties {
+
+    private ExecutorProperties executor = new ExecutorProperties();
+    private WorkQueueProperties workQueue = new WorkQueueProperties();
+    private DryRunProperties dryRun = new DryRunProperties();
+    private ArchiveResourceProperties archiveResource = new ArchiveResourceProperties();
+    private TokenProperties token = new TokenProperties();
+    private HttpProperties http = new HttpProperties();
+    private HttpCacheProperties httpCache = new HttpCacheProperties();
+    private CpuProperties cpu = new CpuProperties();
+    private BlockingProperties blocking = new BlockingProperties();
+    private IoProperties io = new IoProperties();
+    private PreviewCacheProperties previewCache = new PreviewCacheProperties();
+    private RetryProperties retry = new RetryProperties();
+    private JobsProperties jobs = new JobsProperties();
+    private WebhookProperties webhook = new WebhookProperties();
+    private CoalesceProperties coalesce = new CoalesceProperties();
+    private BulkProperties bulk = new BulkProperties();
+    private PolicyProperties policy = new PolicyProperties();
+    private ScheduleProperties schedule = new ScheduleProperties();
+    private ReconciliationProperties reconciliation = new ReconciliationProperties();
+    private HedgeProperties hedge = new HedgeProperties();
+    private StatusProperties status = new StatusProperties();
+
+    @Data
+    public static class ExecutorProperties {
+        private int concurrency = 8;
+        private int laneCapacity = 256;
+        private Duration dispatchInterval = Duration.ofSeconds(1);
+        private Map<Priority, Integer> weights = new EnumMap<>(Map.of(
+                Priority.INTERACTIVE, 8,
+                Priority.DELTA, 4,
+                Priority.RETRY, 2,
+                Priority.BULK, 1));
+    }
+
+    @Data
+    public static class WorkQueueProperties {
+        private int batchSize = 32;
+        private Duration pollInterval = Duration.ofSeconds(1);
+        private Duration lease = Duration.ofMinutes(10);
+    }
+
+    @Data
+    public static class DryRunProperties {
+        private int concurrency = 16;
+    }
+
+    @Data
+    public static class ArchiveResourceProperties {
+        private int concurrency = 4;
+        private Duration interval = Duration.ofMillis(250);
+    }
+
+    @Data
+    public static class TokenProperties {
+        private Duration refreshBefore = Duration.ofMinutes(5);
+        private Duration checkInterval = Duration.ofSeconds(30);
+    }
+
+    @Data
+    public static class HttpProperties {
+        private boolean http2 = true;
+        private boolean compress = true;
+        private Duration connectTimeout = Duration.ofMinutes(5);
+        private Duration responseTimeout = Duration.ofSeconds(120);
+        private Map<EndpointType, PoolProperties> pools = new EnumMap<>(Map.of(
+                EndpointType.GRAPHQL, new PoolProperties(32),
+                EndpointType.STATUS, new PoolProperties(16),
+                EndpointType.COLLECTION, new PoolProperties(4),
+                EndpointType.ARCHIVE, new PoolProperties(16)));
+    }
+
+    @Data
+    @NoArgsConstructor
+    public static class PoolProperties {
+        private int maxConnections = 16;
+        private int pendingAcquireMaxCount = 1000;
+        private Duration pendingAcquireTimeout = Duration.ofSeconds(45);
+
+        public PoolProperties(int maxConnections) {
+            this.maxConnections = maxConnections;
+        }
+    }
+
+    @Data
+    public static class HttpCacheProperties {
+        private boolean enabled = true;
+        private long maximumBytes = 32 * 1024 * 1024;
+    }
+
+    @Data
+    public static class CpuProperties {
+        private int parallelism;
+    }
+
+    @Data
+    public static class IoProperties {
+        private int threads;
+    }
+
+    @Data
+    public static class BlockingProperties {
+        private int concurrency = 64;
+        private int queueCapacity = 10000;
+    }
+
+    @Data
+    public static class PreviewCacheProperties {
+        private Duration ttl = Duration.ofSeconds(30);
+        private long maximumSize = 1000;
+    }
+
+    @Data
+    public static class RetryProperties {
+        private int maxAttempts = 8;
+        private Duration initialBackoff = Duration.ofMinutes(5);
+        private Duration maxBackoff = Duration.ofHours(24);
+        private Duration pollInterval = Duration.ofMinutes(1);
+        private Duration lease = Duration.ofMinutes(30);
+        private int batchSize = 100;
+    }
+
+    @Data
+    public static class JobsProperties {
+        private int bufferSize = 256;
+    }
+
+    @Data
+    public static class WebhookProperties {
+        private String secret;
+    }
+
+    @Data
+    public static class CoalesceProperties {
+        private Duration window = Duration.ofMinutes(1);
+        private Duration maxDelay = Duration.ofMinutes(5);
+        private Set<Priority> priorities = EnumSet.of(Priority.DELTA);
+    }
+
+    @Data
+    public static class BulkProperties {
+        private int pageSize = 500;
+        private boolean sorted = true;
+        private int sortChunkSize = 10000;
+    }
+
+    @Data
+    public static class PolicyProperties {
+        private Duration timeBudget = Duration.ofSeconds(2);
+        private int batchSize = 50;
+        private int batchMaxSize = 1000;
+        private int batchConcurrency = 8;
+    }
+
+    @Data
+    public static class ScheduleProperties {
+        private boolean enabled = true;
+        private Duration pollInterval = Duration.ofMinutes(1);
+        private Duration lease = Duration.ofMinutes(30);
+        private int batchSize = 500;
+        private int maxClaims = 5;
+    }
+
+    @Data
+    public static class ReconciliationProperties {
+        private int maxDetails = 1000;
+        private double maxMissingRatio = 0.25;
+        private int concurrency = 8;
+    }
+
+    @Data
+    public static class HedgeProperties {
+        private boolean enabled = false;
+        private double percentile = 95;
+        private Duration window = Duration.ofMinutes(5);
+        private Duration minDelay = Duration.ofMillis(100);
+        private int minSamples = 100;
+        private double budget = 0.05;
+        private double maxTokens = 10;
+    }
+
+    @Data
+    public static class StatusProperties {
+        private Duration timeout = Duration.ofMinutes(2);
+        private Duration initialInterval = Duration.ofSeconds(1);
+        private Duration maxInterval = Duration.ofMinutes(1);
+        private Duration window = Duration.ofHours(1);
+        private int minSamples = 20;
+        private Duration pendingPollInterval = Duration.ofSeconds(30);
+        private Duration pendingMaxInterval = Duration.ofHours(1);
+        private Duration pendingMaxAge = Duration.ofHours(24);
+        private Duration pendingLease = Duration.ofMinutes(5);
+        private int pendingBatchSize = 100;
+    }
+}
@@ -0,0 +1,138 @@
+package no.novari.personalmappe.repository;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import no.novari.personalmappe.properties.OrganisationProperties;
+import no.novari.personalmappe.properties.ProvisioningProperties;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.oauth2.client.OAuth2AuthorizeRequest;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+import org.springframework.security.oauth2.client.ReactiveOAuth2AuthorizedClientManager;
+import org.springframework.security.oauth2.core.OAuth2AccessToken;
+import org.springframework.security.oauth2.core.endpoint.OAuth2ParameterNames;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps the access token used by {@link FintRepository}. The token is refreshed in the background before it
+ * expires, and concurrent callers that find it expired share a single refresh.
+ */
+@Slf4j
+@Component
+public class AccessTokenHolder {
+
+    private final ReactiveOAuth2AuthorizedClientManager authorizedClientManager;
+    private final OrganisationProperties organisationProperties;
+    private final Authentication principal;
+    private final ProvisioningProperties.TokenProperties properties;
+    private final MeterRegistry meterRegistry;
+
+    private final AtomicReference<OAuth2AccessToken> accessToken = new AtomicReference<>();
+    private final AtomicReference<Mono<OAuth2AccessToken>> refreshing = new AtomicReference<>();
+
+    private Disposable refresher;
+
+    public AccessTokenHolder(ReactiveOAuth2AuthorizedClientManager authorizedClientManager, OrganisationProperties organisationProperties,
+                             Authentication principal, ProvisioningProperties provisioningProperties, MeterRegistry meterRegistry) {
+        this.authorizedClientManager = authorizedClientManager;
+        this.organisationProperties = organisationProperties;
+        this.principal = principal;
+        this.properties = provisioningProperties.getToken();
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void start() {
+        refresher = Flux.interval(Duration.ZERO, properties.getCheckInterval())
+                .filter(tick -> expiresWithin(accessToken.get(), properties.getRefreshBefore()))
+                .subscribe(tick -> refresh().subscribe(
+                        token -> log.debug("Access token refreshed, expires at {}", token.getExpiresAt()),
+                        error -> log.warn("Unable to refresh access token: {}", error.getMessage())));
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (refresher != null) {
+            refresher.dispose();
+        }
+    }
+
+    public Mono<String> getToken() {
+        OAuth2AccessToken token = accessToken.get();
+
+        if (!expiresWithin(token, Duration.ZERO)) {
+            return Mono.just(token.getTokenValue());
+        }
+
+        return refresh().map(OAuth2AccessToken::getTokenValue);
+    }
+
+    Mono<OAuth2AccessToken> refresh() {
+        while (true) {
+            Mono<OAuth2AccessToken> inFlight = refreshing.get();
+
+            if (inFlight != null) {
+                return inFlight;
+            }
+
+            Sinks.One<OAuth2AccessToken> sink = Sinks.one();
+            Mono<OAuth2AccessToken> refresh = sink.asMono();
+
+            if (refreshing.compareAndSet(null, refresh)) {
+                Timer.Sample sample = Timer.start(meterRegistry);
+
+                authorize().subscribe(
+                        token -> {
+                            sample.stop(meterRegistry.timer("provisioning.token.fetch", "outcome", "success"));
+                            accessToken.set(token);
+                            refreshing.set(null);
+                            sink.tryEmitValue(token);
+                        },
+                        error -> {
+                            sample.stop(meterRegistry.timer("provisioning.token.fetch", "outcome", "failure"));
+                            meterRegistry.counter("provisioning.token.failures").increment();
+                            refreshing.set(null);
+                            sink.tryEmitError(error);
+                        },
+                        () -> {
+                            refreshing.set(null);
+                            sink.tryEmitError(new IllegalStateException("No access token for " + organisationProperties.getRegistration()));
+                        });
+
+                return refresh;
+            }
+        }
+    }
+
+    private Mono<OAuth2AccessToken> authorize() {
+        OAuth2AuthorizeRequest authorizeRequest = OAuth2AuthorizeRequest.withClientRegistrationId(organisationProperties.getRegistration())
+                .principal(principal)
+                .attributes(attrs -> {
+                    attrs.put(OAuth2ParameterNames.USERNAME, organisationProperties.getUsername());
+                    attrs.put(OAuth2ParameterNames.PASSWORD, organisationProperties.getPassword());
+                }).build();
+
+        return authorizedClientManager.authorize(authorizeRequest)
+                .map(OAuth2AuthorizedClient::getAccessToken);
+    }
+
+    private static boolean expiresWithin(OAuth2AccessToken token, Duration window) {
+        if (token == null) {
+            return true;
+        }
+
+        Instant expiresAt = token.getExpiresAt();
+
+        return expiresAt != null && expiresAt.minus(window).isBefore(Instant.now());
+    }
+}
@@ -2,90 +2,178 @@ package no.novari.personalmappe.repository;
 
 import lombok.extern.slf4j.Slf4j;
 import no.fint.model.resource.arkiv.personal.PersonalmappeResource;
+import no.novari.personalmappe.model.EndpointType;
 import no.novari.personalmappe.model.GraphQLQuery;
 import no.novari.personalmappe.model.LastUpdated;
 import no.novari.personalmappe.properties.OrganisationProperties;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
-import org.springframework.security.core.Authentication;
-import org.springframework.security.oauth2.client.OAuth2AuthorizeRequest;
-import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
-import org.springframework.security.oauth2.client.ReactiveOAuth2AuthorizedClientManager;
-import org.springframework.security.oauth2.client.web.reactive.function.client.ServerOAuth2AuthorizedClientExchangeFilterFunction;
-import org.springframework.security.oauth2.core.endpoint.OAuth2ParameterNames;
 import org.springframework.stereotype.Repository;
-import org.springframework.web.reactive.function.client.WebClient;
 import org.springframework.web.util.UriComponentsBuilder;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import java.net.URI;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
 
 @Slf4j
 @Repository
 public class FintRepository {
-    private final WebClient webClient;
-    private final ReactiveOAuth2AuthorizedClientManager authorizedClientManager;
+    private final FintWebClients webClients;
+    private final AccessTokenHolder accessTokenHolder;
+    private final HttpResponseCache httpResponseCache;
     private final OrganisationProperties organisationProperties;
-    private final Authentication principal;
+    private final HedgedRequests hedgedRequests;
 
     private final Map<String, Long> sinceTimestamp = Collections.synchronizedMap(new HashMap<>());
 
-    public FintRepository(WebClient webClient, ReactiveOAuth2AuthorizedClientManager authorizedClientManager, OrganisationProperties organisationProperties, Authentication principal) {
-        this.webClient = webClient;
-        this.authorizedClientManager = authorizedClientManager;
+    public FintRepository(FintWebClients webClients, AccessTokenHolder accessTokenHolder, HttpResponseCache httpResponseCache, OrganisationProperties organisationProperties,
+                          HedgedRequests hedgedRequests) {
+        this.webClients = webClients;
+        this.accessTokenHolder = accessTokenHolder;
+        this.httpResponseCache = httpResponseCache;
         this.organisationProperties = organisationProperties;
-        this.principal = principal;
+        this.hedgedRequests = hedgedRequests;
     }
 
+    /**
+     * Collections are revalidated against {@link HttpResponseCache}. A cached body is decoded for every caller.
+     */
     public <T> Mono<T> get(Class<T> clazz, URI uri) {
-        return authorizedClient().flatMap(client ->
-                webClient.get()
-                        .uri(uri)
-                        .attributes(ServerOAuth2AuthorizedClientExchangeFilterFunction.oauth2AuthorizedClient(client))
-                        .retrieve()
-                        .bodyToMono(clazz)
-        );
+        if (!httpResponseCache.isEnabled()) {
+            return getResource(clazz, uri);
+        }
+
+        return Mono.defer(() -> {
+            Optional<HttpResponseCache.Entry> cached = httpResponseCache.get(uri);
+
+            return accessTokenHolder.getToken().flatMap(token ->
+                    webClients.get(EndpointType.COLLECTION).get()
+                            .uri(uri)
+                            .headers(headers -> {
+                                headers.setBearerAuth(token);
+                                cached.ifPresent(entry -> entry.applyTo(headers));
+                            })
+                            .exchangeToMono(response -> {
+                                if (cached.isPresent() && response.statusCode().isSameCodeAs(HttpStatus.NOT_MODIFIED)) {
+                                    log.debug("{} not modified, using cached response", uri);
+                                    httpResponseCache.revalidated(false);
+                                    return response.releaseBody().then(Mono.fromCallable(() -> httpResponseCache.decode(cached.get().body(), clazz)));
+                                }
+
+                                if (response.statusCode().isError()) {
+                                    return response.createError();
+                                }
+
+                                cached.ifPresent(entry -> httpResponseCache.revalidated(true));
+
+                                return response.bodyToMono(byte[].class)
+                                        .doOnNext(body -> httpResponseCache.put(uri, response.headers().asHttpHeaders(), body))
+                                        .map(body -> httpResponseCache.decode(body, clazz));
+                            })
+            );
+        });
     }
 
     public <T> Mono<T> getUpdates(Class<T> clazz, URI uri) {
-        Long since = sinceTimestamp.getOrDefault(organisationProperties.getOrgId(), 0L);
+        Long since = sinceTimestamp.getOrDefault(sinceKey(uri), 0L);
 
-        return get(LastUpdated.class, UriComponentsBuilder.fromUri(uri).pathSegment("last-updated").build().toUri())
+        return getResource(LastUpdated.class, UriComponentsBuilder.fromUri(uri).pathSegment("last-updated").build().toUri())
                 .flatMap(lastUpdated -> {
-                    sinceTimestamp.put(organisationProperties.getOrgId(), lastUpdated.getLastUpdated());
+                    sinceTimestamp.put(sinceKey(uri), lastUpdated.getLastUpdated());
+
+                    return getResource(clazz, UriComponentsBuilder.fromUri(uri).queryParam("sinceTimeStamp", since).build().toUri());
+                });
+    }
+
+    /**
+     * Like {@link #getUpdates(Class, URI)}, but the first call only records where to continue from. After a restart
+     * the whole collection is therefore not reported as changed.
+     */
+    public <T> Mono<T> getChanges(Class<T> clazz, URI uri) {
+        if (sinceTimestamp.containsKey(sinceKey(uri))) {
+            return getUpdates(clazz, uri);
+        }
+
+        return getResource(LastUpdated.class, UriComponentsBuilder.fromUri(uri).pathSegment("last-updated").build().toUri())
+                .doOnNext(lastUpdated -> sinceTimestamp.put(sinceKey(uri), lastUpdated.getLastUpdated()))
+                .then(Mono.empty());
+    }
+
+    /**
+     * Streams a collection page by page using FINT {@code size} and {@code offset} paging. The next page is only
+     * requested when the previous one has been consumed, and the stream ends with the first short page.
+     */
+    public <T, R> Flux<R> getPaged(Class<T> clazz, URI uri, int pageSize, Function<T, List<R>> content) {
+        return Flux.<Long, Long>generate(() -> 0L, (offset, sink) -> {
+                    sink.next(offset);
+                    return offset + pageSize;
+                })
+                .concatMap(offset -> getResource(clazz, UriComponentsBuilder.fromUri(uri)
+                        .replaceQueryParam("size", pageSize)
+                        .replaceQueryParam("offset", offset)
+                        .build()
+                        .toUri()), 0)
+                .map(content)
+                .takeUntil(page -> page.size() < pageSize)
+                .concatMapIterable(page -> page);
+    }
+
+    public <T, R> Flux<R> getUpdatesPaged(Class<T> clazz, URI uri, int pageSize, Function<T, List<R>> content) {
+        Long since = sinceTimestamp.getOrDefault(sinceKey(uri), 0L);
+
+        return getResource(LastUpdated.class, UriComponentsBuilder.fromUri(uri).pathSegment("last-updated").build().toUri())
+                .flatMapMany(lastUpdated -> {
+                    sinceTimestamp.put(sinceKey(uri), lastUpdated.getLastUpdated());
 
-                    return get(clazz, UriComponentsBuilder.fromUri(uri).queryParam("sinceTimeStamp", since).build().toUri());
+                    return getPaged(clazz, UriComponentsBuilder.fromUri(uri).queryParam("sinceTimeStamp", since).build().toUri(), pageSize, content);
                 });
     }
 
+    public <T> Mono<T> getResource(Class<T> clazz, URI uri) {
+        return accessTokenHolder.getToken().flatMap(token ->
+                webClients.get(EndpointType.COLLECTION).get()
+                        .uri(uri)
+                        .headers(headers -> headers.setBearerAuth(token))
+                        .retrieve()
+                        .bodyToMono(clazz)
+        );
+    }
+
     public <T> Mono<ResponseEntity<T>> getForEntity(Class<T> clazz, URI uri) {
-        return authorizedClient().flatMap(client ->
-                webClient.get()
+        return accessTokenHolder.getToken().flatMap(token ->
+                webClients.get(EndpointType.STATUS).get()
                         .uri(uri)
-                        .attributes(ServerOAuth2AuthorizedClientExchangeFilterFunction.oauth2AuthorizedClient(client))
+                        .headers(headers -> headers.setBearerAuth(token))
                         .retrieve()
                         .toEntity(clazz)
         );
     }
 
+    /**
+     * GraphQL queries only read, so a slow one is hedged, see {@link HedgedRequests}.
+     */
     public <T> Mono<T> post(Class<T> clazz, GraphQLQuery graphQLQuery, URI uri) {
-        return authorizedClient().flatMap(client ->
-                webClient.post()
+        return accessTokenHolder.getToken().flatMap(token -> hedgedRequests.hedge("graphql", () ->
+                webClients.get(EndpointType.GRAPHQL).post()
                         .uri(uri)
-                        .attributes(ServerOAuth2AuthorizedClientExchangeFilterFunction.oauth2AuthorizedClient(client))
+                        .headers(headers -> headers.setBearerAuth(token))
                         .bodyValue(graphQLQuery)
                         .retrieve()
-                        .bodyToMono(clazz)
+                        .bodyToMono(clazz))
         );
     }
 
     public Mono<ResponseEntity<Void>> postForEntity(PersonalmappeResource personalmappeResource, URI uri) {
-        return authorizedClient().flatMap(client ->
-                webClient.post()
+        return accessTokenHolder.getToken().flatMap(token ->
+                webClients.get(EndpointType.ARCHIVE).post()
                         .uri(uri)
-                        .attributes(ServerOAuth2AuthorizedClientExchangeFilterFunction.oauth2AuthorizedClient(client))
+                        .headers(headers -> headers.setBearerAuth(token))
                         .bodyValue(personalmappeResource)
                         .retrieve()
                         .toBodilessEntity()
@@ -93,33 +181,26 @@ public class FintRepository {
     }
 
     public <T> Mono<ResponseEntity<Void>> putForEntity(T resource, URI uri) {
-        return authorizedClient().flatMap(client ->
-                webClient.put()
+        return accessTokenHolder.getToken().flatMap(token ->
+                webClients.get(EndpointType.ARCHIVE).put()
                         .uri(uri)
-                        .attributes(ServerOAuth2AuthorizedClientExchangeFilterFunction.oauth2AuthorizedClient(client))
+                        .headers(headers -> headers.setBearerAuth(token))
                         .bodyValue(resource)
                         .retrieve()
                         .toBodilessEntity()
         );
     }
 
-    private Mono<OAuth2AuthorizedClient> authorizedClient() {
-        OAuth2AuthorizeRequest authorizeRequest = OAuth2AuthorizeRequest.withClientRegistrationId(organisationProperties.getRegistration())
-                .principal(principal)
-                .attributes(attrs -> {
-                    attrs.put(OAuth2ParameterNames.USERNAME, organisationProperties.getUsername());
-                    attrs.put(OAuth2ParameterNames.PASSWORD, organisationProperties.getPassword());
-                }).build();
-
-        return authorizedClientManager.authorize(authorizeRequest);
-    }
-
     public Mono<ResponseEntity<Void>> headForEntity(URI uri) {
-        return authorizedClient().flatMap(client ->
-                webClient.head()
+        return accessTokenHolder.getToken().flatMap(token ->
+                webClients.get(EndpointType.STATUS).head()
                         .uri(uri)
-                        .attributes(ServerOAuth2AuthorizedClientExchangeFilterFunction.oauth2AuthorizedClient(client))
+                        .headers(headers -> headers.setBearerAuth(token))
                         .retrieve()
                         .toBodilessEntity());
     }
+
+    private String sinceKey(URI uri) {
+        return organisationProperties.getOrgId() + "_" + uri;
+    }
 }
@@ -0,0 +1,28 @@
+package no.novari.personalmappe.repository;
+
+import no.novari.personalmappe.model.EndpointType;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+public class FintWebClients {
+
+    private final Map<EndpointType, WebClient> webClients;
+
+    public FintWebClients(Map<EndpointType, WebClient> webClients) {
+        this.webClients = new EnumMap<>(webClients);
+    }
+
+    public static FintWebClients of(WebClient webClient) {
+        return new FintWebClients(Arrays.stream(EndpointType.values())
+                .collect(Collectors.toMap(Function.identity(), endpointType -> webClient)));
+    }
+
+    public WebClient get(EndpointType endpointType) {
+        return webClients.get(endpointType);
+    }
+}
@@ -0,0 +1,125 @@
+package no.novari.personalmappe.repository;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import no.novari.personalmappe.properties.ProvisioningProperties;
+import no.novari.personalmappe.utilities.LatencyHistogram;
+import no.novari.personalmappe.utilities.RollingHistogram;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Hedges idempotent requests. When a request has not answered within the rolling percentile of its own recent
+ * latencies, a duplicate is sent and the first answer is used. Each request earns a fraction of a hedge, and a
+ * hedge is only sent when a whole one is available, so hedges never exceed that fraction of the traffic.
+ */
+@Component
+public class HedgedRequests {
+
+    private final ProvisioningProperties.HedgeProperties properties;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, State> states = new ConcurrentHashMap<>();
+
+    public HedgedRequests(ProvisioningProperties provisioningProperties, MeterRegistry meterRegistry) {
+        this.properties = provisioningProperties.getHedge();
+        this.meterRegistry = meterRegistry;
+    }
+
+    public <T> Mono<T> hedge(String name, Supplier<Mono<T>> request) {
+        if (!properties.isEnabled()) {
+            return request.get();
+        }
+
+        return Mono.defer(() -> {
+            State state = states.computeIfAbsent(name, this::state);
+            state.earn();
+            meterRegistry.counter("provisioning.hedge.requests", "request", name).increment();
+
+            Mono<T> primary = timed(state, request.get());
+            Duration delay = state.delay();
+
+            if (delay == null) {
+                return primary;
+            }
+
+            Mono<T> hedge = Mono.delay(delay)
+                    .flatMap(tick -> {
+                        if (!state.spend()) {
+                            meterRegistry.counter("provisioning.hedge.denied", "request", name).increment();
+                            return Mono.never();
+                        }
+
+                        meterRegistry.counter("provisioning.hedge.sent", "request", name).increment();
+
+                        return timed(state, request.get())
+                                .doOnNext(value -> meterRegistry.counter("provisioning.hedge.won", "request", name).increment())
+                                // A failing hedge leaves the answer to the primary request.
+                                .onErrorResume(error -> Mono.never());
+                    });
+
+            return Mono.firstWithSignal(primary, hedge);
+        });
+    }
+
+    // A request cancelled because the other one answered first is recorded with the time it had run, which is a
+    // lower bound, so slow requests still count towards the percentile.
+    private <T> Mono<T> timed(State state, Mono<T> request) {
+        return Mono.defer(() -> {
+            long started = System.currentTimeMillis();
+
+            return request.doFinally(signal -> {
+                long now = System.currentTimeMillis();
+                state.histogram.record(now - started, now);
+            });
+        });
+    }
+
+    private State state(String name) {
+        State state = new State();
+        Gauge.builder("provisioning.hedge.delay", state, s -> s.delayMillis)
+                .tag("request", name)
+                .baseUnit("milliseconds")
+                .register(meterRegistry);
+        return state;
+    }
+
+    private class State {
+        private final RollingHistogram histogram = new RollingHistogram(properties.getWindow().dividedBy(10), 10);
+        private double tokens;
+        private volatile long delayMillis;
+        private long computedAt;
+
+        synchronized void earn() {
+            tokens = Math.min(properties.getMaxTokens(), tokens + properties.getBudget());
+        }
+
+        synchronized boolean spend() {
+            if (tokens < 1) {
+                return false;
+            }
+
+            tokens -= 1;
+            return true;
+        }
+
+        // The percentile is recomputed at most once a second. Until enough requests are seen nothing is hedged.
+        synchronized Duration delay() {
+            long now = System.currentTimeMillis();
+
+            if (now - computedAt >= 1000) {
+                LatencyHistogram snapshot = histogram.snapshot(properties.getWindow(), now);
+                delayMillis = snapshot.getCount() < properties.getMinSamples()
+                        ? 0
+                        : Math.max(properties.getMinDelay().toMillis(), snapshot.percentile(properties.getPercentile()));
+                computedAt = now;
+            }
+
+            return delayMillis == 0 ? null : Duration.ofMillis(delayMillis);
+        }
+    }
+}
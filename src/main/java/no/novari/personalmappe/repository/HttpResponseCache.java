@@ -0,0 +1,102 @@
+package no.novari.personalmappe.repository;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import no.novari.personalmappe.properties.ProvisioningProperties;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.util.Optional;
+
+/**
+ * Validators and raw bodies of collection responses, used to revalidate with {@code If-None-Match} and
+ * {@code If-Modified-Since} instead of downloading unchanged collections again. Bodies are kept as bytes, bounded
+ * by {@code provisioning.http-cache.maximum-bytes}, and every hit is decoded into a new object, so callers never
+ * share, or corrupt, a cached collection.
+ */
+@Component
+public class HttpResponseCache {
+
+    private final boolean enabled;
+    private final long maximumBytes;
+    private final Cache<URI, Entry> cache;
+    private final ObjectMapper objectMapper;
+    private final MeterRegistry meterRegistry;
+
+    public HttpResponseCache(ProvisioningProperties provisioningProperties, ObjectMapper objectMapper, MeterRegistry meterRegistry) {
+        this.enabled = provisioningProperties.getHttpCache().isEnabled();
+        this.maximumBytes = provisioningProperties.getHttpCache().getMaximumBytes();
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maximumBytes)
+                .<URI, Entry>weigher((uri, entry) -> entry.body().length)
+                .recordStats()
+                .build();
+        this.objectMapper = objectMapper;
+        this.meterRegistry = meterRegistry;
+
+        GuavaCacheMetrics.monitor(meterRegistry, cache, "provisioning.http-cache");
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public Optional<Entry> get(URI uri) {
+        if (!enabled) {
+            return Optional.empty();
+        }
+
+        return Optional.ofNullable(cache.getIfPresent(uri));
+    }
+
+    /**
+     * Keeps the body with its validators. A response without validators, or too large to cache, replaces
+     * whatever was cached for the uri with nothing.
+     */
+    public void put(URI uri, HttpHeaders headers, byte[] body) {
+        if (!enabled) {
+            return;
+        }
+
+        String eTag = headers.getETag();
+        String lastModified = headers.getFirst(HttpHeaders.LAST_MODIFIED);
+
+        if ((eTag == null && lastModified == null) || body.length > maximumBytes) {
+            cache.invalidate(uri);
+            return;
+        }
+
+        cache.put(uri, new Entry(eTag, lastModified, body));
+    }
+
+    public <T> T decode(byte[] body, Class<T> clazz) {
+        try {
+            return objectMapper.readValue(body, clazz);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void revalidated(boolean modified) {
+        meterRegistry.counter("provisioning.http-cache.revalidations", "result", modified ? "modified" : "not-modified").increment();
+    }
+
+    public record Entry(String eTag, String lastModified, byte[] body) {
+
+        public void applyTo(HttpHeaders headers) {
+            if (eTag != null) {
+                headers.setIfNoneMatch(eTag);
+            }
+
+            if (lastModified != null) {
+                headers.set(HttpHeaders.IF_MODIFIED_SINCE, lastModified);
+            }
+        }
+    }
+}
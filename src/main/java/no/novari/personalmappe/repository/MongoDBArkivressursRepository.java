@@ -0,0 +1,9 @@
+package no.novari.personalmappe.repository;
+
+import no.novari.personalmappe.model.MongoDBArkivressurs;
+import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface MongoDBArkivressursRepository extends ReactiveMongoRepository<MongoDBArkivressurs, String> {
+}
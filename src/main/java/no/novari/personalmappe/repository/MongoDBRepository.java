@@ -1,9 +1,25 @@
 package no.novari.personalmappe.repository;
 
 import no.novari.personalmappe.model.MongoDBPersonalmappe;
-import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
 import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
 
 @Repository
-public interface MongoDBRepository extends MongoRepository<MongoDBPersonalmappe, String> {
+public interface MongoDBRepository extends ReactiveMongoRepository<MongoDBPersonalmappe, String> {
+
+    Flux<MongoDBPersonalmappe> findByOrgIdAndLastModifiedDateAfter(String orgId, LocalDateTime lastModifiedDate, Sort sort);
+
+    Flux<MongoDBPersonalmappe> findByOrgIdAndNextAttemptAtLessThanEqual(String orgId, LocalDateTime nextAttemptAt, Limit limit);
+
+    Flux<MongoDBPersonalmappe> findByOrgIdAndPendingStatusCheckAtLessThanEqual(String orgId, LocalDateTime checkAt, Limit limit);
+
+    Flux<MongoDBPersonalmappe> findByOrgIdAndLeaderIn(String orgId, Collection<String> leaders);
+
+    Flux<MongoDBPersonalmappe> findByOrgIdAndWorkplaceIn(String orgId, Collection<String> workplaces);
 }
@@ -0,0 +1,15 @@
+package no.novari.personalmappe.repository;
+
+import no.novari.personalmappe.model.MongoDBSchedule;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
+
+import java.time.LocalDateTime;
+
+@Repository
+public interface MongoDBScheduleRepository extends ReactiveMongoRepository<MongoDBSchedule, String> {
+
+    Flux<MongoDBSchedule> findByOrgIdAndDueAtLessThanEqual(String orgId, LocalDateTime dueAt, Limit limit);
+}
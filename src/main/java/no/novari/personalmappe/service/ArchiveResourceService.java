@@ -0,0 +1,277 @@
+package no.novari.personalmappe.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.hash.Hashing;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import no.fint.model.resource.Link;
+import no.fint.model.resource.administrasjon.personal.PersonalressursResource;
+import no.fint.model.resource.administrasjon.personal.PersonalressursResources;
+import no.fint.model.resource.arkiv.noark.ArkivressursResource;
+import no.fint.model.resource.arkiv.noark.ArkivressursResources;
+import no.novari.personalmappe.model.MongoDBArkivressurs;
+import no.novari.personalmappe.properties.OrganisationProperties;
+import no.novari.personalmappe.properties.ProvisioningProperties;
+import no.novari.personalmappe.repository.FintRepository;
+import no.novari.personalmappe.repository.MongoDBArkivressursRepository;
+import no.novari.personalmappe.utilities.ExternalSort;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SynchronousSink;
+import reactor.core.scheduler.Scheduler;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+
+/**
+ * Synchronises {@code arkivressurs} with the archive. Only arkivressurs whose content, or the content of the
+ * linked personalressurs, changed since the last successful synchronisation are put. Puts are paced and run
+ * with bounded concurrency, the final status is polled and the outcome is stored per arkivressurs.
+ */
+@Slf4j
+@Service
+public class ArchiveResourceService {
+    private static final String PERSONNEL = "0";
+    private static final String ARCHIVE = "1";
+
+    @Value("${fint.endpoints.archive-resource}")
+    private URI archiveResourceEndpoint;
+
+    @Value("${fint.endpoints.personnel-resource}")
+    private URI personnelResourceEndpoint;
+
+    private final FintRepository fintRepository;
+    private final StatusService statusService;
+    private final MongoDBArkivressursRepository mongoDBArkivressursRepository;
+    private final OrganisationProperties organisationProperties;
+    private final ProvisioningProperties.ArchiveResourceProperties properties;
+    private final ProvisioningProperties.BulkProperties bulk;
+    private final ObjectMapper objectMapper;
+    private final MeterRegistry meterRegistry;
+    private final Scheduler blockingScheduler;
+
+    public ArchiveResourceService(FintRepository fintRepository, StatusService statusService, MongoDBArkivressursRepository mongoDBArkivressursRepository,
+                                  OrganisationProperties organisationProperties, ProvisioningProperties provisioningProperties, ObjectMapper objectMapper, MeterRegistry meterRegistry,
+                                  @Qualifier("blockingScheduler") Scheduler blockingScheduler) {
+        this.fintRepository = fintRepository;
+        this.statusService = statusService;
+        this.mongoDBArkivressursRepository = mongoDBArkivressursRepository;
+        this.organisationProperties = organisationProperties;
+        this.properties = provisioningProperties.getArchiveResource();
+        this.bulk = provisioningProperties.getBulk();
+        this.objectMapper = objectMapper;
+        this.meterRegistry = meterRegistry;
+        this.blockingScheduler = blockingScheduler;
+    }
+
+    /**
+     * Both collections are streamed page by page and joined on the personalressurs link with an external sort, so
+     * neither collection, nor a hash per personalressurs, is held in memory.
+     */
+    public void updateArchiveResource() {
+        run()
+                .subscribe(outcomes -> log.info("Updated Arkivressurs objects: {}", outcomes),
+                        error -> log.error("Error updating Arkivressurs objects: {}", error.getMessage()));
+    }
+
+    /**
+     * Synchronises the changed arkivressurs and counts them by the resulting status code.
+     */
+    Mono<Map<Integer, Long>> run() {
+        return candidates()
+                .concatMap(this::load)
+                .filter(this::isChanged)
+                .delayElements(properties.getInterval())
+                .flatMap(this::synchronise, properties.getConcurrency())
+                .collect(Collectors.groupingBy(MongoDBArkivressurs::getStatus, Collectors.counting()));
+    }
+
+    /**
+     * Every personalressurs self link becomes a line with the hash of the personalressurs, and every arkivressurs a
+     * line with its content under its first personalressurs link. Sorted, the lines of a link are adjacent with the
+     * hash first, so each arkivressurs is matched with its personalressurs in one pass.
+     */
+    private Flux<Candidate> candidates() {
+        Flux<String> personnel = fintRepository.getPaged(PersonalressursResources.class, personnelResourceEndpoint, bulk.getPageSize(), PersonalressursResources::getContent)
+                .concatMapIterable(personalressurs -> {
+                    String hash = hash(personalressurs);
+
+                    return personalressurs.getSelfLinks().stream()
+                            .map(Link::getHref)
+                            .filter(StringUtils::isNotBlank)
+                            .map(href -> String.join("\t", href, PERSONNEL, hash))
+                            .toList();
+                });
+
+        Flux<String> archive = fintRepository.getPaged(ArkivressursResources.class, archiveResourceEndpoint, bulk.getPageSize(), ArkivressursResources::getContent)
+                .<String>handle((arkivressurs, sink) -> arkivressurs.getPersonalressurs().stream()
+                        .map(Link::getHref)
+                        .filter(StringUtils::isNotBlank)
+                        .findFirst()
+                        .ifPresent(href -> {
+                            try {
+                                sink.next(String.join("\t", href, ARCHIVE, objectMapper.writeValueAsString(arkivressurs)));
+                            } catch (JsonProcessingException e) {
+                                log.warn("Unable to write Arkivressurs {}: {}", href, e.getMessage());
+                            }
+                        }));
+
+        return Flux.defer(() -> {
+            Join join = new Join();
+
+            return ExternalSort.sort(Flux.concat(personnel, archive), Comparator.naturalOrder(), bulk.getSortChunkSize(), blockingScheduler)
+                    .handle(join);
+        });
+    }
+
+    /**
+     * Loads the stored state of the candidate once and hashes it once, for both the change check and the
+     * synchronisation. Arkivressurs without a self link cannot be put and are dropped.
+     */
+    private Mono<Synchronisation> load(Candidate candidate) {
+        Optional<URI> selfLink = getSelfLink(candidate.arkivressurs());
+
+        if (selfLink.isEmpty()) {
+            return Mono.empty();
+        }
+
+        String id = getId(selfLink.get());
+
+        return mongoDBArkivressursRepository.findById(id)
+                .defaultIfEmpty(MongoDBArkivressurs.builder()
+                        .id(id)
+                        .orgId(organisationProperties.getOrgId())
+                        .selfLink(selfLink.get())
+                        .build())
+                .map(mongoDBArkivressurs -> new Synchronisation(candidate.arkivressurs(), selfLink.get(), hash(candidate), mongoDBArkivressurs));
+    }
+
+    private boolean isChanged(Synchronisation synchronisation) {
+        MongoDBArkivressurs stored = synchronisation.stored();
+
+        if (stored.getStatus() != 0 && !HttpStatusCode.valueOf(stored.getStatus()).isError()
+                && synchronisation.hash() != null && synchronisation.hash().equals(stored.getHash())) {
+            meterRegistry.counter("provisioning.archive-resource", "outcome", "unchanged").increment();
+            return false;
+        }
+
+        return true;
+    }
+
+    private Mono<MongoDBArkivressurs> synchronise(Synchronisation synchronisation) {
+        MongoDBArkivressurs mongoDBArkivressurs = synchronisation.stored();
+        Timer.Sample sample = Timer.start(meterRegistry);
+
+        return fintRepository.putForEntity(synchronisation.arkivressurs(), synchronisation.selfLink())
+                .flatMap(response -> Optional.ofNullable(response.getHeaders().getLocation())
+                        .map(location -> statusService.poll(response).map(ResponseEntity::getStatusCode))
+                        .orElseGet(() -> Mono.just(response.getStatusCode())))
+                .map(statusCode -> {
+                    mongoDBArkivressurs.setStatus(statusCode.value());
+                    mongoDBArkivressurs.setHash(synchronisation.hash());
+                    mongoDBArkivressurs.setMessage(null);
+                    return mongoDBArkivressurs;
+                })
+                .onErrorResume(WebClientResponseException.class, ex -> {
+                    mongoDBArkivressurs.setStatus(ex.getStatusCode().value());
+                    mongoDBArkivressurs.setMessage(ex.getResponseBodyAsString());
+                    return Mono.just(mongoDBArkivressurs);
+                })
+                .onErrorResume(ex -> {
+                    mongoDBArkivressurs.setStatus(HttpStatus.INTERNAL_SERVER_ERROR.value());
+                    mongoDBArkivressurs.setMessage(ex.getMessage());
+                    return Mono.just(mongoDBArkivressurs);
+                })
+                .doOnNext(arkivressurs -> {
+                    String outcome = HttpStatusCode.valueOf(arkivressurs.getStatus()).isError() ? "failed" : "updated";
+                    sample.stop(meterRegistry.timer("provisioning.archive-resource.duration", "outcome", outcome));
+                    meterRegistry.counter("provisioning.archive-resource", "outcome", outcome).increment();
+                    log.info("Arkivressurs: {} {}", arkivressurs.getStatus(), arkivressurs.getSelfLink());
+                })
+                .flatMap(mongoDBArkivressursRepository::save);
+    }
+
+    private Optional<URI> getSelfLink(ArkivressursResource arkivressurs) {
+        return arkivressurs.getSelfLinks()
+                .stream()
+                .map(Link::getHref)
+                .filter(StringUtils::isNotBlank)
+                .map(URI::create)
+                .findAny();
+    }
+
+    private String getId(URI selfLink) {
+        return organisationProperties.getOrgId() + "_" + StringUtils.substringAfterLast(selfLink.getPath(), "/");
+    }
+
+    private String hash(Candidate candidate) {
+        try {
+            String content = objectMapper.writeValueAsString(candidate.arkivressurs()) + candidate.personalressursHash();
+            return Hashing.sha256().hashString(content, StandardCharsets.UTF_8).toString();
+        } catch (JsonProcessingException e) {
+            return null;
+        }
+    }
+
+    private String hash(PersonalressursResource personalressurs) {
+        try {
+            return Hashing.sha256().hashString(objectMapper.writeValueAsString(personalressurs), StandardCharsets.UTF_8).toString();
+        } catch (JsonProcessingException e) {
+            return "";
+        }
+    }
+
+    /**
+     * Remembers the hash of the personalressurs of the current link while its arkivressurs lines are read.
+     */
+    private class Join implements BiConsumer<String, SynchronousSink<Candidate>> {
+        private String link;
+        private String hash;
+
+        @Override
+        public void accept(String line, SynchronousSink<Candidate> sink) {
+            String[] fields = line.split("\t", 3);
+
+            if (fields.length < 3) {
+                return;
+            }
+
+            if (PERSONNEL.equals(fields[1])) {
+                link = fields[0];
+                hash = fields[2];
+                return;
+            }
+
+            if (!fields[0].equals(link)) {
+                return;
+            }
+
+            try {
+                sink.next(new Candidate(objectMapper.readValue(fields[2], ArkivressursResource.class), hash));
+            } catch (JsonProcessingException e) {
+                log.warn("Unable to read Arkivressurs {}: {}", link, e.getMessage());
+            }
+        }
+    }
+
+    private record Candidate(ArkivressursResource arkivressurs, String personalressursHash) {
+    }
+
+    private record Synchronisation(ArkivressursResource arkivressurs, URI selfLink, String hash, MongoDBArkivressurs stored) {
+    }
+}
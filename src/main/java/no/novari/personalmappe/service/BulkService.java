@@ -2,14 +2,22 @@ package no.novari.personalmappe.service;
 
 import lombok.extern.slf4j.Slf4j;
 import no.fint.model.resource.administrasjon.personal.PersonalressursResources;
+import no.novari.personalmappe.model.MongoDBJob;
+import no.novari.personalmappe.model.Priority;
 import no.novari.personalmappe.properties.OrganisationProperties;
+import no.novari.personalmappe.properties.ProvisioningProperties;
 import no.novari.personalmappe.repository.FintRepository;
+import no.novari.personalmappe.utilities.ExternalSort;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
 
 import java.net.URI;
-import java.util.List;
+import java.util.Comparator;
 
 @Slf4j
 @Service
@@ -18,45 +26,77 @@ public class BulkService {
     private URI personnelResourceEndpoint;
 
     private final ProvisionService provisionService;
+    private final WorkQueueService workQueueService;
+    private final ArchiveResourceService archiveResourceService;
     private final FintRepository fintRepository;
     private final OrganisationProperties organisationProperties;
+    private final ProvisioningProperties.BulkProperties properties;
+    private final Scheduler blockingScheduler;
 
-    public BulkService(ProvisionService provisionService, FintRepository fintRepository, OrganisationProperties organisationProperties) {
+    public BulkService(ProvisionService provisionService, WorkQueueService workQueueService, ArchiveResourceService archiveResourceService, FintRepository fintRepository,
+                       OrganisationProperties organisationProperties, ProvisioningProperties provisioningProperties, @Qualifier("blockingScheduler") Scheduler blockingScheduler) {
         this.provisionService = provisionService;
+        this.workQueueService = workQueueService;
+        this.archiveResourceService = archiveResourceService;
         this.fintRepository = fintRepository;
         this.organisationProperties = organisationProperties;
+        this.properties = provisioningProperties.getBulk();
+        this.blockingScheduler = blockingScheduler;
     }
 
     @Scheduled(cron = "${fint.cron.bulk}")
     public void run() {
         if (organisationProperties.isBulk()) {
-            bulk(organisationProperties.getBulkLimit());
+            bulk(organisationProperties.getBulkLimit())
+                    .subscribe(null, error -> log.error("Bulk provisioning failed: {}", error.getMessage()));
         }
     }
 
-    public void bulk(long bulkLimit) {
-        provisionService.updateAdministrativeUnitSystemIds();
-
-        fintRepository.get(PersonalressursResources.class, personnelResourceEndpoint)
-                .flatMapIterable(PersonalressursResources::getContent)
-                .collectList()
-                .subscribe(hardWorkers -> {
-                    if (hardWorkers.isEmpty()) {
-                        throw new IllegalArgumentException("No personalressurs found");
+    /**
+     * Streams the usernames from the personalressurs collection, page by page, into the work queue. Only the
+     * current page, and the current chunk when sorting, is held in memory.
+     */
+    public Mono<MongoDBJob> bulk(long bulkLimit) {
+        return workQueueService.isRunning(Priority.BULK)
+                .filter(running -> {
+                    if (running) {
+                        log.info("A bulk run is still in progress, skipping this one");
                     }
 
+                    return !running;
+                })
+                .doOnNext(running -> provisionService.updateAdministrativeUnitSystemIds())
+                .flatMap(running -> {
                     if (organisationProperties.isArchiveResource()) {
                         log.info("Updating Archive resources...");
 
-                        provisionService.updateArchiveResource(hardWorkers);
+                        archiveResourceService.updateArchiveResource();
                     }
 
-                    List<String> usernames = provisionService.getUsernames(hardWorkers);
+                    Flux<String> usernames = provisionService.getUsernames(fintRepository.getPaged(PersonalressursResources.class, personnelResourceEndpoint,
+                            properties.getPageSize(), PersonalressursResources::getContent));
+
+                    return workQueueService.enqueue(sorted(usernames), bulkLimit == 0 ? Long.MAX_VALUE : bulkLimit, Priority.BULK);
+                })
+                .flatMap(job -> {
+                    if (job.getTotal() == 0) {
+                        return Mono.error(new IllegalArgumentException("No personalressurs found"));
+                    }
 
-                    long limit = (bulkLimit == 0 ? usernames.size() : bulkLimit);
-                    log.info("Bulk provision {} of {} users", limit, usernames.size());
+                    log.info("Bulk provision {} users", job.getTotal());
 
-                    provisionService.run(usernames, limit).subscribe(log::trace);
+                    return Mono.just(job);
                 });
     }
+
+    // Unsorted runs are not de-duplicated, as that would keep every username in memory. A repeated user is
+    // provisioned twice, which only writes the same folder again.
+    private Flux<String> sorted(Flux<String> usernames) {
+        if (!properties.isSorted()) {
+            return usernames;
+        }
+
+        return ExternalSort.sort(usernames, Comparator.reverseOrder(), properties.getSortChunkSize(), blockingScheduler)
+                .distinctUntilChanged();
+    }
 }
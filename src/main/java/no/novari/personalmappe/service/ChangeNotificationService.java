@@ -0,0 +1,139 @@
+package no.novari.personalmappe.service;
+
+import lombok.extern.slf4j.Slf4j;
+import no.fint.model.felles.kompleksedatatyper.Identifikator;
+import no.fint.model.resource.Link;
+import no.fint.model.resource.administrasjon.personal.ArbeidsforholdResource;
+import no.fint.model.resource.administrasjon.personal.PersonalressursResource;
+import no.novari.personalmappe.model.ChangeNotification;
+import no.novari.personalmappe.model.MongoDBJob;
+import no.novari.personalmappe.model.Priority;
+import no.novari.personalmappe.repository.FintRepository;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Optional;
+
+/**
+ * Turns pushed {@code personalressurs} and {@code arbeidsforhold} change notifications into usernames and queues
+ * them on the delta lane right away. The scheduled delta run remains as a safety net. Links are only followed
+ * when they point into the configured {@code personalressurs} or {@code arbeidsforhold} endpoint, as requests to
+ * FINT carry the access token.
+ */
+@Slf4j
+@Service
+public class ChangeNotificationService {
+    private static final String USERNAME_PATH = "/brukernavn/";
+
+    @Value("${fint.endpoints.personnel-resource}")
+    private URI personnelResourceEndpoint;
+
+    @Value("${fint.endpoints.employment:https://api.felleskomponent.no/administrasjon/personal/arbeidsforhold}")
+    private URI employmentEndpoint;
+
+    private final FintRepository fintRepository;
+    private final WorkQueueService workQueueService;
+
+    public ChangeNotificationService(FintRepository fintRepository, WorkQueueService workQueueService) {
+        this.fintRepository = fintRepository;
+        this.workQueueService = workQueueService;
+    }
+
+    /**
+     * Whether every link of the notification points into the endpoint of its type.
+     */
+    public boolean allowed(ChangeNotification notification) {
+        URI endpoint = endpoint(notification.getType());
+
+        return notification.getLinks().stream().allMatch(href -> within(endpoint, href));
+    }
+
+    public Mono<MongoDBJob> accept(ChangeNotification notification) {
+        return Flux.concat(
+                        Flux.fromIterable(notification.getUsernames()),
+                        Flux.fromIterable(notification.getLinks()).flatMap(href -> resolve(notification.getType(), href), 4))
+                .filter(StringUtils::isNotBlank)
+                .distinct()
+                .collectList()
+                .filter(usernames -> !usernames.isEmpty())
+                .flatMap(usernames -> {
+                    log.info("Change notification for {} user(s)", usernames.size());
+
+                    return workQueueService.enqueue(usernames, usernames.size(), Priority.DELTA);
+                });
+    }
+
+    private Mono<String> resolve(ChangeNotification.Type type, String href) {
+        if (!within(endpoint(type), href)) {
+            log.warn("Ignoring {} link outside {}: {}", type, endpoint(type), href);
+            return Mono.empty();
+        }
+
+        Mono<String> username = switch (type) {
+            case PERSONALRESSURS -> getUsername(href);
+            case ARBEIDSFORHOLD -> fintRepository.getResource(ArbeidsforholdResource.class, URI.create(href))
+                    .flatMapIterable(ArbeidsforholdResource::getPersonalressurs)
+                    .next()
+                    .map(Link::getHref)
+                    .flatMap(this::getUsername);
+        };
+
+        return username.onErrorResume(error -> {
+            log.warn("Unable to resolve username from {}: {}", href, error.getMessage());
+            return Mono.empty();
+        });
+    }
+
+    private Mono<String> getUsername(String personalressurs) {
+        if (!within(personnelResourceEndpoint, personalressurs)) {
+            log.warn("Ignoring personalressurs link outside {}: {}", personnelResourceEndpoint, personalressurs);
+            return Mono.empty();
+        }
+
+        if (StringUtils.containsIgnoreCase(personalressurs, USERNAME_PATH)) {
+            return Mono.just(StringUtils.substringAfterLast(personalressurs, "/"));
+        }
+
+        return fintRepository.getResource(PersonalressursResource.class, URI.create(personalressurs))
+                .mapNotNull(resource -> Optional.ofNullable(resource.getBrukernavn())
+                        .map(Identifikator::getIdentifikatorverdi)
+                        .orElse(null));
+    }
+
+    private URI endpoint(ChangeNotification.Type type) {
+        return switch (type) {
+            case PERSONALRESSURS -> personnelResourceEndpoint;
+            case ARBEIDSFORHOLD -> employmentEndpoint;
+        };
+    }
+
+    // Same scheme, host and port, and a path below the endpoint after dot segments are resolved.
+    static boolean within(URI endpoint, String href) {
+        if (href == null) {
+            return false;
+        }
+
+        URI uri;
+
+        try {
+            uri = new URI(href).normalize();
+        } catch (URISyntaxException e) {
+            return false;
+        }
+
+        String prefix = StringUtils.appendIfMissing(endpoint.getPath(), "/");
+
+        return uri.isAbsolute()
+                && uri.getRawUserInfo() == null
+                && StringUtils.equalsIgnoreCase(uri.getScheme(), endpoint.getScheme())
+                && StringUtils.equalsIgnoreCase(uri.getHost(), endpoint.getHost())
+                && uri.getPort() == endpoint.getPort()
+                && uri.getPath() != null
+                && uri.getPath().startsWith(prefix);
+    }
+}
@@ -2,14 +2,17 @@ package no.novari.personalmappe.service;
 
 import lombok.extern.slf4j.Slf4j;
 import no.fint.model.resource.administrasjon.personal.PersonalressursResources;
+import no.novari.personalmappe.model.Priority;
 import no.novari.personalmappe.properties.OrganisationProperties;
+import no.novari.personalmappe.properties.ProvisioningProperties;
 import no.novari.personalmappe.repository.FintRepository;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 import java.net.URI;
-import java.util.List;
 
 @Slf4j
 @Service
@@ -18,13 +21,20 @@ public class DeltaService {
     private URI personnelResourceEndpoint;
 
     private final ProvisionService provisionService;
+    private final WorkQueueService workQueueService;
+    private final ImpactAnalysisService impactAnalysisService;
     private final FintRepository fintRepository;
     private final OrganisationProperties organisationProperties;
+    private final ProvisioningProperties.BulkProperties properties;
 
-    public DeltaService(ProvisionService provisionService, FintRepository fintRepository, OrganisationProperties organisationProperties) {
+    public DeltaService(ProvisionService provisionService, WorkQueueService workQueueService, ImpactAnalysisService impactAnalysisService,
+                        FintRepository fintRepository, OrganisationProperties organisationProperties, ProvisioningProperties provisioningProperties) {
         this.provisionService = provisionService;
+        this.workQueueService = workQueueService;
+        this.impactAnalysisService = impactAnalysisService;
         this.fintRepository = fintRepository;
         this.organisationProperties = organisationProperties;
+        this.properties = provisioningProperties.getBulk();
     }
 
     @Scheduled(cron = "${fint.cron.delta}")
@@ -39,18 +49,22 @@ public class DeltaService {
             provisionService.updateAdministrativeUnitSystemIds();
         }
 
-        fintRepository.getUpdates(PersonalressursResources.class, personnelResourceEndpoint)
-                .flatMapIterable(PersonalressursResources::getContent)
-                .collectList()
-                .subscribe(hardWorkers -> {
-                    if (hardWorkers.isEmpty()) {
-                        throw new IllegalArgumentException("No personalressurs found");
+        Flux<String> usernames = provisionService.getUsernames(fintRepository.getUpdatesPaged(PersonalressursResources.class, personnelResourceEndpoint,
+                properties.getPageSize(), PersonalressursResources::getContent));
+
+        workQueueService.enqueue(usernames.distinct(), Long.MAX_VALUE, Priority.DELTA)
+                .flatMap(job -> {
+                    if (job.getTotal() == 0) {
+                        return Mono.error(new IllegalArgumentException("No personalressurs found"));
                     }
 
-                    List<String> usernames = provisionService.getUsernames(hardWorkers);
-                    log.info("Delta provision {} users", usernames.size());
+                    log.info("Delta provision {} users", job.getTotal());
+
+                    return Mono.just(job);
+                })
+                .subscribe(null, error -> log.error("Delta provisioning failed: {}", error.getMessage()));
 
-                    provisionService.run(usernames, usernames.size()).subscribe(log::trace);
-                });
+        impactAnalysisService.reprovisionAffected()
+                .subscribe(null, error -> log.error("Impact analysis of organisasjonselement changes failed: {}", error.getMessage()));
     }
 }
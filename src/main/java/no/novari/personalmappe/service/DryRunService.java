@@ -0,0 +1,126 @@
+package no.novari.personalmappe.service;
+
+import lombok.extern.slf4j.Slf4j;
+import no.fint.model.resource.administrasjon.personal.PersonalressursResources;
+import no.fint.model.resource.arkiv.personal.PersonalmappeResource;
+import no.novari.personalmappe.model.DryRunReport;
+import no.novari.personalmappe.model.DryRunResult;
+import no.novari.personalmappe.model.MongoDBPersonalmappe;
+import no.novari.personalmappe.properties.ProvisioningProperties;
+import no.novari.personalmappe.repository.FintRepository;
+import no.novari.personalmappe.repository.MongoDBRepository;
+import no.novari.personalmappe.utilities.PersonnelUtilities;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * Runs the provisioning pipeline up to, but not including, the archive. Every employee is fetched, built,
+ * validated and transformed in parallel and compared with the last stored state.
+ */
+@Slf4j
+@Service
+public class DryRunService {
+    @Value("${fint.endpoints.personnel-resource}")
+    private URI personnelResourceEndpoint;
+
+    private final ProvisionService provisionService;
+    private final FintRepository fintRepository;
+    private final MongoDBRepository mongoDBRepository;
+    private final ProvisioningProperties.DryRunProperties properties;
+
+    public DryRunService(ProvisionService provisionService, FintRepository fintRepository, MongoDBRepository mongoDBRepository, ProvisioningProperties provisioningProperties) {
+        this.provisionService = provisionService;
+        this.fintRepository = fintRepository;
+        this.mongoDBRepository = mongoDBRepository;
+        this.properties = provisioningProperties.getDryRun();
+    }
+
+    public Mono<DryRunReport> dryRun(long limit) {
+        if (provisionService.getAdministrativeUnitSystemIds().isEmpty()) {
+            provisionService.updateAdministrativeUnitSystemIds();
+        }
+
+        long started = System.nanoTime();
+
+        return fintRepository.get(PersonalressursResources.class, personnelResourceEndpoint)
+                .map(resources -> provisionService.getUsernames(resources.getContent()))
+                .flatMapMany(usernames -> Flux.fromIterable(usernames).take(limit == 0 ? usernames.size() : limit))
+                .flatMap(this::evaluate, properties.getConcurrency())
+                .collectList()
+                .map(results -> {
+                    log.info("Dry run of {} user(s) completed", results.size());
+
+                    return DryRunReport.builder()
+                            .total(results.size())
+                            .duration(Duration.ofNanos(System.nanoTime() - started))
+                            .outcomes(results.stream().collect(Collectors.groupingBy(DryRunResult::getOutcome,
+                                    () -> new EnumMap<>(DryRunResult.Outcome.class), Collectors.counting())))
+                            .results(results)
+                            .build();
+                });
+    }
+
+    public Mono<DryRunResult> evaluate(String username) {
+        return provisionService.buildPersonnel(username)
+                .flatMap(personnel -> {
+                    if (!provisionService.validPersonnel().test(personnel)) {
+                        return Mono.just(invalid(username, "Invalid personnel folder"));
+                    }
+
+                    PersonalmappeResource personnelFolder = provisionService.toPersonalmappeResource(personnel);
+
+                    return provisionService.transform(personnelFolder)
+                            .flatMap(transformed -> mongoDBRepository.findById(provisionService.getId(transformed)))
+                            .map(Optional::of)
+                            .defaultIfEmpty(Optional.empty())
+                            .map(previous -> compare(username, personnelFolder, previous));
+                })
+                .switchIfEmpty(Mono.fromSupplier(() -> invalid(username, "No personalressurs found")))
+                .onErrorResume(error -> Mono.just(invalid(username, error.getMessage())));
+    }
+
+    private DryRunResult compare(String username, PersonalmappeResource personnelFolder, Optional<MongoDBPersonalmappe> previous) {
+        String leader = PersonnelUtilities.getLeader(personnelFolder);
+        String workplace = PersonnelUtilities.getWorkplace(personnelFolder);
+
+        DryRunResult.DryRunResultBuilder result = DryRunResult.builder()
+                .username(username)
+                .leader(leader)
+                .workplace(workplace);
+
+        if (previous.isEmpty()) {
+            return result.outcome(DryRunResult.Outcome.NEW).build();
+        }
+
+        MongoDBPersonalmappe mongoDBPersonnelFolder = previous.get();
+        result.previousLeader(mongoDBPersonnelFolder.getLeader())
+                .previousWorkplace(mongoDBPersonnelFolder.getWorkplace());
+
+        if (!Objects.equals(leader, mongoDBPersonnelFolder.getLeader())) {
+            return result.outcome(DryRunResult.Outcome.CHANGED_LEADER).build();
+        }
+
+        if (!Objects.equals(workplace, mongoDBPersonnelFolder.getWorkplace())) {
+            return result.outcome(DryRunResult.Outcome.CHANGED_WORKPLACE).build();
+        }
+
+        return result.outcome(DryRunResult.Outcome.UNCHANGED).build();
+    }
+
+    private DryRunResult invalid(String username, String message) {
+        return DryRunResult.builder()
+                .username(username)
+                .outcome(DryRunResult.Outcome.INVALID)
+                .message(message)
+                .build();
+    }
+}
@@ -8,8 +8,11 @@ import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.Workbook;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.data.domain.Sort;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -18,34 +21,44 @@ import java.io.InputStream;
 import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Optional;
-import java.util.stream.Collectors;
 
 @Service
 public class FileService {
     private final MongoDBRepository mongoDBRepository;
     private final OrganisationProperties organisationProperties;
+    private final Scheduler blockingScheduler;
 
     static final String[] HEADERs = {"Username", "Leader", "Workplace", "OrgId", "Association", "Status", "Message", "Version", "CreatedDate", "LastModifiedDate"};
     static final String SHEET = "Personalmapper";
 
-    public FileService(MongoDBRepository mongoDBRepository, OrganisationProperties organisationProperties) {
+    public FileService(MongoDBRepository mongoDBRepository, OrganisationProperties organisationProperties, @Qualifier("blockingScheduler") Scheduler blockingScheduler) {
         this.mongoDBRepository = mongoDBRepository;
         this.organisationProperties = organisationProperties;
+        this.blockingScheduler = blockingScheduler;
     }
 
-    public InputStream getFile(String orgId, String status, String searchValue) {
+    public Mono<InputStream> getFile(String orgId, String status, String searchValue) {
+        return mongoDBRepository.findByOrgIdAndLastModifiedDateAfter(orgId,
+                        LocalDateTime.now().minusDays(Optional.of(organisationProperties.getHistoryLimit())
+                                .filter(limit -> limit > 0)
+                                .orElse(365)),
+                        Sort.by(Sort.Direction.DESC, "lastModifiedDate"))
+                .filter(mappe -> status.equals(mappe.getStatus().name()) || status.equals("all"))
+                .filter(mappe -> searchValue.equals("nosearchvalue") || mappe.getUsername().toLowerCase().contains(searchValue.toLowerCase()))
+                .collectList()
+                .publishOn(blockingScheduler)
+                .map(this::toWorkbook);
+    }
+
+    private InputStream toWorkbook(List<MongoDBPersonalmappe> mongoDBPersonalmappes) {
         try (Workbook workbook = new XSSFWorkbook(); ByteArrayOutputStream out = new ByteArrayOutputStream()) {
             Sheet sheet = workbook.createSheet(SHEET);
-            List<MongoDBPersonalmappe> mongoDBPersonalmappes = createInitialWorkBook(sheet, orgId);
+            createHeader(sheet);
 
             int rowIdx = 1;
             for (MongoDBPersonalmappe mappe : mongoDBPersonalmappes) {
-                if (status.equals(mappe.getStatus().name()) || status.equals("all")) {
-                    if (searchValue.equals("nosearchvalue") || mappe.getUsername().toLowerCase().contains(searchValue.toLowerCase())) {
-                        Row row = sheet.createRow(rowIdx++);
-                        fillRow(row, mappe);
-                    }
-                }
+                Row row = sheet.createRow(rowIdx++);
+                fillRow(row, mappe);
             }
 
             workbook.write(out);
@@ -68,21 +81,12 @@ public class FileService {
         row.createCell(9).setCellValue(mappe.getLastModifiedDate().toString());
     }
 
-    private List<MongoDBPersonalmappe> createInitialWorkBook(Sheet sheet, String orgId) {
-        // Header
+    private void createHeader(Sheet sheet) {
         Row headerRow = sheet.createRow(0);
 
         for (int col = 0; col < HEADERs.length; col++) {
             Cell cell = headerRow.createCell(col);
             cell.setCellValue(HEADERs[col]);
         }
-        return mongoDBRepository
-                .findAll(Sort.by(Sort.Direction.DESC, "lastModifiedDate"))
-                .stream()
-                .filter(pm -> pm.getOrgId().equals(orgId) && pm.getLastModifiedDate().isAfter(LocalDateTime.now()
-                        .minusDays(Optional.of(organisationProperties.getHistoryLimit())
-                                .filter(limit -> limit > 0)
-                                .orElse(365))))
-                .collect(Collectors.toList());
     }
 }
@@ -0,0 +1,94 @@
+package no.novari.personalmappe.service;
+
+import lombok.extern.slf4j.Slf4j;
+import no.fint.model.felles.kompleksedatatyper.Identifikator;
+import no.fint.model.resource.Link;
+import no.fint.model.resource.administrasjon.organisasjon.OrganisasjonselementResource;
+import no.fint.model.resource.administrasjon.organisasjon.OrganisasjonselementResources;
+import no.novari.personalmappe.model.MongoDBJob;
+import no.novari.personalmappe.model.MongoDBPersonalmappe;
+import no.novari.personalmappe.model.Priority;
+import no.novari.personalmappe.properties.OrganisationProperties;
+import no.novari.personalmappe.repository.FintRepository;
+import no.novari.personalmappe.repository.MongoDBRepository;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.net.URI;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Reprovisions the personnel folders affected by changed {@code organisasjonselement}. The leader and workplace
+ * of a folder are taken from the employee's unit, or from its parent unit when the employee leads the unit. A
+ * changed unit therefore affects the folders with the unit as workplace, the folders of its previous and new
+ * leaders, and the folders those leaders are stored as leader of.
+ */
+@Slf4j
+@Service
+public class ImpactAnalysisService {
+    @Value("${fint.endpoints.organisational-element}")
+    private URI organisationalElementEndpoint;
+
+    private final FintRepository fintRepository;
+    private final MongoDBRepository mongoDBRepository;
+    private final WorkQueueService workQueueService;
+    private final OrganisationProperties organisationProperties;
+
+    public ImpactAnalysisService(FintRepository fintRepository, MongoDBRepository mongoDBRepository, WorkQueueService workQueueService, OrganisationProperties organisationProperties) {
+        this.fintRepository = fintRepository;
+        this.mongoDBRepository = mongoDBRepository;
+        this.workQueueService = workQueueService;
+        this.organisationProperties = organisationProperties;
+    }
+
+    public Mono<MongoDBJob> reprovisionAffected() {
+        return fintRepository.getChanges(OrganisasjonselementResources.class, organisationalElementEndpoint)
+                .map(OrganisasjonselementResources::getContent)
+                .filter(changes -> !changes.isEmpty())
+                .flatMap(changes -> getAffectedUsernames(changes)
+                        .doOnNext(usernames -> log.info("{} organisasjonselement changed, reprovisioning {} affected user(s)", changes.size(), usernames.size())))
+                .filter(usernames -> !usernames.isEmpty())
+                .flatMap(usernames -> workQueueService.enqueue(usernames, usernames.size(), Priority.DELTA));
+    }
+
+    public Mono<List<String>> getAffectedUsernames(List<OrganisasjonselementResource> changes) {
+        String orgId = organisationProperties.getOrgId();
+
+        Set<String> units = changes.stream()
+                .map(OrganisasjonselementResource::getOrganisasjonsId)
+                .filter(Objects::nonNull)
+                .map(Identifikator::getIdentifikatorverdi)
+                .filter(StringUtils::isNotBlank)
+                .collect(Collectors.toSet());
+
+        Set<String> newLeaders = changes.stream()
+                .flatMap(change -> change.getLeder().stream())
+                .map(Link::getHref)
+                .filter(href -> StringUtils.containsIgnoreCase(href, "/brukernavn/"))
+                .map(href -> StringUtils.substringAfterLast(href, "/"))
+                .collect(Collectors.toSet());
+
+        return mongoDBRepository.findByOrgIdAndWorkplaceIn(orgId, units)
+                .collectList()
+                .flatMap(members -> {
+                    Set<String> leaders = new HashSet<>(newLeaders);
+                    members.stream().map(MongoDBPersonalmappe::getLeader).filter(Objects::nonNull).forEach(leaders::add);
+
+                    return Flux.concat(
+                                    Flux.fromIterable(members).map(MongoDBPersonalmappe::getUsername),
+                                    Flux.fromIterable(leaders),
+                                    mongoDBRepository.findByOrgIdAndLeaderIn(orgId, leaders).map(MongoDBPersonalmappe::getUsername))
+                            .filter(StringUtils::isNotBlank)
+                            .distinct()
+                            .collectList();
+                });
+    }
+}
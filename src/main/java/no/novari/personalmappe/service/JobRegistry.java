@@ -0,0 +1,110 @@
+package no.novari.personalmappe.service;
+
+import lombok.extern.slf4j.Slf4j;
+import no.novari.personalmappe.model.JobEvent;
+import no.novari.personalmappe.model.MongoDBJob;
+import no.novari.personalmappe.properties.ProvisioningProperties;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.BufferOverflowStrategy;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Live events of running jobs. Every subscriber has its own bounded buffer that drops the oldest events, so a slow
+ * client never holds back provisioning. Events come from concurrent provisionings, so emits that collide are
+ * retried rather than dropped.
+ */
+@Slf4j
+@Service
+public class JobRegistry {
+
+    private static final Sinks.EmitFailureHandler RETRY_COLLISIONS = Sinks.EmitFailureHandler.busyLooping(Duration.ofSeconds(1));
+
+    private final ProvisioningProperties.JobsProperties properties;
+
+    private final Map<String, Sinks.Many<JobEvent>> sinks = new ConcurrentHashMap<>();
+
+    public JobRegistry(ProvisioningProperties provisioningProperties) {
+        this.properties = provisioningProperties.getJobs();
+    }
+
+    /**
+     * The job may complete between it was loaded and the sink is registered, so {@code current} is read again
+     * once the events are subscribed, and a completed job ends the events.
+     */
+    public Flux<JobEvent> events(MongoDBJob job, Mono<MongoDBJob> current) {
+        JobEvent snapshot = progress(job, job.getState() == MongoDBJob.State.COMPLETED ? JobEvent.Type.COMPLETED : JobEvent.Type.PROGRESS);
+
+        if (job.getState() == MongoDBJob.State.COMPLETED) {
+            return Flux.just(snapshot);
+        }
+
+        Sinks.Many<JobEvent> sink = sinks.computeIfAbsent(job.getId(), id -> Sinks.many().multicast().directBestEffort());
+
+        Flux<JobEvent> completed = current
+                .filter(reloaded -> reloaded.getState() == MongoDBJob.State.COMPLETED)
+                .map(reloaded -> progress(reloaded, JobEvent.Type.COMPLETED))
+                .flux();
+
+        return Flux.concat(Flux.just(snapshot), Flux.merge(sink.asFlux()
+                                .onBackpressureBuffer(properties.getBufferSize(), dropped -> log.trace("Dropped {} event for job {}", dropped.getType(), dropped.getJobId()), BufferOverflowStrategy.DROP_OLDEST),
+                        completed))
+                .takeUntil(event -> event.getType() == JobEvent.Type.COMPLETED)
+                .doFinally(signal -> {
+                    if (sink.currentSubscriberCount() == 0) {
+                        sinks.remove(job.getId(), sink);
+                    }
+                });
+    }
+
+    public void acknowledged(MongoDBJob job, String username, String outcome) {
+        Sinks.Many<JobEvent> sink = sinks.get(job.getId());
+
+        if (sink == null) {
+            return;
+        }
+
+        sink.emitNext(JobEvent.builder()
+                .jobId(job.getId())
+                .type(JobEvent.Type.USER)
+                .username(username)
+                .outcome(outcome)
+                .build(), RETRY_COLLISIONS);
+        sink.emitNext(progress(job, JobEvent.Type.PROGRESS), RETRY_COLLISIONS);
+    }
+
+    public void completed(MongoDBJob job) {
+        Sinks.Many<JobEvent> sink = sinks.remove(job.getId());
+
+        if (sink == null) {
+            return;
+        }
+
+        sink.emitNext(progress(job, JobEvent.Type.COMPLETED), RETRY_COLLISIONS);
+        sink.emitComplete(RETRY_COLLISIONS);
+    }
+
+    private JobEvent progress(MongoDBJob job, JobEvent.Type type) {
+        double minutes = job.getCreatedDate() == null
+                ? 0
+                : Duration.between(job.getCreatedDate(), LocalDateTime.now()).toMillis() / 60000.0;
+        double rate = minutes > 0 ? job.getProcessed() / minutes : 0;
+        long remaining = Math.max(0, job.getTotal() - job.getProcessed());
+
+        return JobEvent.builder()
+                .jobId(job.getId())
+                .type(type)
+                .processed(job.getProcessed())
+                .total(job.getTotal())
+                .failed(job.getFailed())
+                .ratePerMinute(rate)
+                .eta(rate > 0 ? Duration.ofSeconds((long) (remaining / rate * 60)) : null)
+                .build();
+    }
+}
@@ -0,0 +1,86 @@
+package no.novari.personalmappe.service;
+
+import no.novari.personalmappe.model.LatencyStage;
+import no.novari.personalmappe.model.LatencyStats;
+import no.novari.personalmappe.properties.OrganisationProperties;
+import no.novari.personalmappe.utilities.LatencyHistogram;
+import no.novari.personalmappe.utilities.RollingHistogram;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Rolling latency histograms per org, outcome and stage. The last hour is kept per minute and the last day per
+ * hour, so percentiles and throughput can be read for any window up to 24 hours.
+ */
+@Service
+public class LatencyService {
+    public static final Duration MAX_WINDOW = Duration.ofHours(24);
+
+    private static final Duration FINE_WINDOW = Duration.ofHours(1);
+
+    private final OrganisationProperties organisationProperties;
+
+    private final Map<Key, History> histories = new ConcurrentHashMap<>();
+
+    public LatencyService(OrganisationProperties organisationProperties) {
+        this.organisationProperties = organisationProperties;
+    }
+
+    public void record(String outcome, Map<LatencyStage, Long> timings) {
+        long now = System.currentTimeMillis();
+
+        timings.forEach((stage, millis) -> histories
+                .computeIfAbsent(new Key(organisationProperties.getOrgId(), outcome, stage), key -> new History())
+                .record(millis, now));
+    }
+
+    public LatencyStats stats(Duration window) {
+        Duration bounded = window.compareTo(MAX_WINDOW) > 0 ? MAX_WINDOW : window;
+        long now = System.currentTimeMillis();
+        double minutes = Math.max(1, bounded.toSeconds()) / 60.0;
+
+        return LatencyStats.builder()
+                .window(bounded)
+                .entries(histories.entrySet().stream()
+                        .sorted(Map.Entry.comparingByKey(Comparator.comparing(Key::outcome).thenComparing(Key::stage)))
+                        .map(entry -> {
+                            LatencyHistogram histogram = entry.getValue().snapshot(bounded, now);
+
+                            return LatencyStats.Entry.builder()
+                                    .orgId(entry.getKey().orgId())
+                                    .outcome(entry.getKey().outcome())
+                                    .stage(entry.getKey().stage())
+                                    .count(histogram.getCount())
+                                    .throughputPerMinute(histogram.getCount() / minutes)
+                                    .p50(histogram.percentile(50))
+                                    .p95(histogram.percentile(95))
+                                    .p99(histogram.percentile(99))
+                                    .max(histogram.getMax())
+                                    .build();
+                        })
+                        .filter(entry -> entry.getCount() > 0)
+                        .toList())
+                .build();
+    }
+
+    private record Key(String orgId, String outcome, LatencyStage stage) {
+    }
+
+    private static class History {
+        private final RollingHistogram minutes = new RollingHistogram(Duration.ofMinutes(1), 60);
+        private final RollingHistogram hours = new RollingHistogram(Duration.ofHours(1), 24);
+
+        void record(long millis, long now) {
+            minutes.record(millis, now);
+            hours.record(millis, now);
+        }
+
+        LatencyHistogram snapshot(Duration window, long now) {
+            return window.compareTo(FINE_WINDOW) <= 0 ? minutes.snapshot(window, now) : hours.snapshot(window, now);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package no.novari.personalmappe.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import no.novari.personalmappe.exception.FinalStatusPendingException;
+import no.novari.personalmappe.model.MongoDBPersonalmappe;
+import no.novari.personalmappe.properties.OrganisationProperties;
+import no.novari.personalmappe.properties.ProvisioningProperties;
+import no.novari.personalmappe.repository.MongoDBRepository;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.LocalDateTime;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+/**
+ * Continues polling the status of personnel folders whose final status was not received while they were
+ * provisioned. Due folders are claimed for the lease period, their status is asked for once, and the outcome is
+ * stored as if it had been received while provisioning, or the next poll is scheduled.
+ */
+@Slf4j
+@Service
+public class PendingStatusService {
+
+    private final StatusService statusService;
+    private final ResponseService responseService;
+    private final MongoDBRepository mongoDBRepository;
+    private final ReactiveMongoTemplate mongoTemplate;
+    private final OrganisationProperties organisationProperties;
+    private final ProvisioningProperties.StatusProperties properties;
+
+    private Disposable poller;
+
+    public PendingStatusService(StatusService statusService, ResponseService responseService, MongoDBRepository mongoDBRepository, ReactiveMongoTemplate mongoTemplate,
+                                OrganisationProperties organisationProperties, ProvisioningProperties provisioningProperties) {
+        this.statusService = statusService;
+        this.responseService = responseService;
+        this.mongoDBRepository = mongoDBRepository;
+        this.mongoTemplate = mongoTemplate;
+        this.organisationProperties = organisationProperties;
+        this.properties = provisioningProperties.getStatus();
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        poller = Flux.interval(properties.getPendingPollInterval())
+                .onBackpressureDrop()
+                .concatMap(tick -> run().onErrorResume(error -> {
+                    log.warn("Pending status poll failed: {}", error.getMessage());
+                    return Mono.empty();
+                }), 1)
+                .subscribe(null, error -> log.error("Pending status poller stopped: {}", error.getMessage()));
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (poller != null) {
+            poller.dispose();
+        }
+    }
+
+    public Mono<Void> run() {
+        LocalDateTime now = LocalDateTime.now();
+
+        return mongoDBRepository.findByOrgIdAndPendingStatusCheckAtLessThanEqual(organisationProperties.getOrgId(), now, Limit.of(properties.getPendingBatchSize()))
+                .concatMap(mongoDBPersonalmappe -> claim(mongoDBPersonalmappe, now))
+                .flatMap(this::check, properties.getPendingBatchSize())
+                .count()
+                .filter(checked -> checked > 0)
+                .doOnNext(checked -> log.info("Checked the pending status of {} personnel folder(s)", checked))
+                .then();
+    }
+
+    private Mono<MongoDBPersonalmappe> claim(MongoDBPersonalmappe mongoDBPersonalmappe, LocalDateTime now) {
+        return mongoTemplate.findAndModify(
+                query(where("_id").is(mongoDBPersonalmappe.getId()).and("pendingStatus.checkAt").is(mongoDBPersonalmappe.getPendingStatus().checkAt())),
+                Update.update("pendingStatus.checkAt", now.plus(properties.getPendingLease())),
+                FindAndModifyOptions.options().returnNew(true),
+                MongoDBPersonalmappe.class);
+    }
+
+    // Any other error leaves the claim to expire, so the status is asked for again after the lease.
+    private Mono<MongoDBPersonalmappe> check(MongoDBPersonalmappe mongoDBPersonalmappe) {
+        return statusService.check(mongoDBPersonalmappe.getPendingStatus().location())
+                .map(entity -> responseService.success(mongoDBPersonalmappe, entity))
+                .onErrorResume(WebClientResponseException.class, ex -> Mono.just(responseService.error(ex, mongoDBPersonalmappe)))
+                .onErrorResume(FinalStatusPendingException.class, ex -> Mono.just(responseService.statusPending(mongoDBPersonalmappe, ex)))
+                .flatMap(mongoDBRepository::save)
+                .doOnNext(saved -> log.debug("Status of {}: {}", saved.getUsername(), saved.getStatus()))
+                .onErrorResume(error -> {
+                    log.warn("Unable to check the pending status of {}: {}", mongoDBPersonalmappe.getUsername(), error.getMessage());
+                    return Mono.empty();
+                });
+    }
+}
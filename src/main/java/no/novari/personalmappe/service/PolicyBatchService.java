@@ -0,0 +1,220 @@
+package no.novari.personalmappe.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.NullNode;
+import lombok.extern.slf4j.Slf4j;
+import no.fint.model.resource.arkiv.personal.PersonalmappeResource;
+import no.novari.personalmappe.model.MongoDBPersonalmappe;
+import no.novari.personalmappe.model.PolicyBatchReport;
+import no.novari.personalmappe.properties.OrganisationProperties;
+import no.novari.personalmappe.properties.ProvisioningProperties;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.match;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.newAggregation;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.sample;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Runs a policy against many personnel folders, either a random sample of the stored folders built through the
+ * factory, or folders uploaded as JSON lines. The report gives throughput, the latency distribution, the errors
+ * and the fields the policy changed.
+ */
+@Slf4j
+@Service
+public class PolicyBatchService {
+    private final PolicyService policyService;
+    private final ProvisionService provisionService;
+    private final ReactiveMongoTemplate mongoTemplate;
+    private final OrganisationProperties organisationProperties;
+    private final ProvisioningProperties.PolicyProperties properties;
+    private final ObjectMapper objectMapper;
+    private final Scheduler blockingScheduler;
+
+    public PolicyBatchService(PolicyService policyService, ProvisionService provisionService, ReactiveMongoTemplate mongoTemplate, OrganisationProperties organisationProperties,
+                              ProvisioningProperties provisioningProperties, ObjectMapper objectMapper, @Qualifier("blockingScheduler") Scheduler blockingScheduler) {
+        this.policyService = policyService;
+        this.provisionService = provisionService;
+        this.mongoTemplate = mongoTemplate;
+        this.organisationProperties = organisationProperties;
+        this.properties = provisioningProperties.getPolicy();
+        this.objectMapper = objectMapper;
+        this.blockingScheduler = blockingScheduler;
+    }
+
+    public Mono<PolicyBatchReport> sample(String policy, int size) {
+        if (provisionService.getAdministrativeUnitSystemIds().isEmpty()) {
+            provisionService.updateAdministrativeUnitSystemIds();
+        }
+
+        Flux<PersonalmappeResource> personnelFolders = mongoTemplate.aggregate(newAggregation(
+                        match(where("orgId").is(organisationProperties.getOrgId())),
+                        sample(limit(size))), MongoDBPersonalmappe.class, MongoDBPersonalmappe.class)
+                .map(MongoDBPersonalmappe::getUsername)
+                .filter(StringUtils::isNotBlank)
+                .flatMap(username -> provisionService.buildPersonnel(username)
+                        .filter(provisionService.validPersonnel())
+                        .map(provisionService::toPersonalmappeResource)
+                        .onErrorResume(error -> {
+                            log.warn("Unable to build personnel folder for {}: {}", username, error.getMessage());
+                            return Mono.empty();
+                        }), properties.getBatchConcurrency());
+
+        return run(policy, "sample", personnelFolders);
+    }
+
+    public Mono<PolicyBatchReport> upload(String policy, Flux<String> lines) {
+        Flux<PersonalmappeResource> personnelFolders = lines
+                .filter(StringUtils::isNotBlank)
+                .take(properties.getBatchMaxSize())
+                .<PersonalmappeResource>handle((line, sink) -> {
+                    try {
+                        sink.next(objectMapper.readValue(line, PersonalmappeResource.class));
+                    } catch (JsonProcessingException e) {
+                        sink.error(new IllegalArgumentException("Invalid JSON line: " + e.getOriginalMessage()));
+                    }
+                });
+
+        return run(policy, "upload", personnelFolders);
+    }
+
+    /**
+     * Evaluations share the engine of {@link PolicyService} and run one at a time, as they do in provisioning,
+     * so the throughput reported is what provisioning gets from the policy.
+     */
+    private Mono<PolicyBatchReport> run(String policy, String source, Flux<PersonalmappeResource> personnelFolders) {
+        long started = System.nanoTime();
+
+        return personnelFolders
+                .flatMap(personnelFolder -> Mono.fromCallable(() -> evaluate(policy, personnelFolder)).subscribeOn(blockingScheduler),
+                        properties.getBatchConcurrency())
+                .collectList()
+                .map(outcomes -> report(source, outcomes, Duration.ofNanos(System.nanoTime() - started)));
+    }
+
+    private Outcome evaluate(String policy, PersonalmappeResource personnelFolder) {
+        JsonNode before = objectMapper.valueToTree(personnelFolder);
+        long started = System.nanoTime();
+        PolicyService.Evaluation evaluation;
+
+        try {
+            evaluation = policyService.evaluate(policy, personnelFolder);
+        } catch (RuntimeException e) {
+            return new Outcome(Duration.ofNanos(System.nanoTime() - started), StringUtils.defaultIfBlank(e.getMessage(), e.getClass().getSimpleName()), List.of());
+        }
+
+        if (evaluation.error() != null) {
+            return new Outcome(evaluation.duration(), StringUtils.defaultIfBlank(evaluation.error().getMessage(), evaluation.error().getClass().getSimpleName()), List.of());
+        }
+
+        if (evaluation.result() == null) {
+            return new Outcome(evaluation.duration(), "The policy returned no result", List.of());
+        }
+
+        List<String> changes = new ArrayList<>();
+        diff("", before, objectMapper.valueToTree(evaluation.result()), changes);
+
+        return new Outcome(evaluation.duration(), null, changes);
+    }
+
+    private PolicyBatchReport report(String source, List<Outcome> outcomes, Duration duration) {
+        Map<String, Long> errors = new TreeMap<>();
+        Map<String, Long> changes = new TreeMap<>();
+        long unchanged = 0;
+        long evaluationNanos = 0;
+        long[] latencies = new long[outcomes.size()];
+
+        for (int i = 0; i < outcomes.size(); i++) {
+            Outcome outcome = outcomes.get(i);
+            latencies[i] = outcome.duration().toNanos();
+            evaluationNanos += latencies[i];
+
+            if (outcome.error() != null) {
+                errors.merge(outcome.error(), 1L, Long::sum);
+            } else if (outcome.changes().isEmpty()) {
+                unchanged++;
+            } else {
+                outcome.changes().forEach(path -> changes.merge(path, 1L, Long::sum));
+            }
+        }
+
+        Arrays.sort(latencies);
+        long failed = errors.values().stream().mapToLong(Long::longValue).sum();
+
+        log.info("Policy batch of {} personnel folder(s) from {} completed, {} failed", outcomes.size(), source, failed);
+
+        return PolicyBatchReport.builder()
+                .source(source)
+                .total(outcomes.size())
+                .evaluated(outcomes.size() - failed)
+                .failed(failed)
+                .unchanged(unchanged)
+                .duration(duration)
+                .throughputPerSecond(evaluationNanos == 0 ? 0 : outcomes.size() / (evaluationNanos / 1e9))
+                .p50Millis(percentile(latencies, 0.50))
+                .p95Millis(percentile(latencies, 0.95))
+                .p99Millis(percentile(latencies, 0.99))
+                .maxMillis(latencies.length == 0 ? 0 : latencies[latencies.length - 1] / 1e6)
+                .errors(errors)
+                .changes(changes)
+                .build();
+    }
+
+    private int limit(int size) {
+        return Math.max(1, Math.min(size, properties.getBatchMaxSize()));
+    }
+
+    static double percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+
+        int index = (int) Math.ceil(quantile * sorted.length) - 1;
+
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+
+    /**
+     * Collects the paths of the fields that differ. Objects are compared field by field, anything else, arrays
+     * included, as a whole.
+     */
+    static void diff(String path, JsonNode before, JsonNode after, Collection<String> changes) {
+        if (before != null && after != null && before.isObject() && after.isObject()) {
+            Set<String> fields = new TreeSet<>();
+            before.fieldNames().forEachRemaining(fields::add);
+            after.fieldNames().forEachRemaining(fields::add);
+
+            for (String field : fields) {
+                diff(path.isEmpty() ? field : path + "." + field, before.get(field), after.get(field), changes);
+            }
+        } else if (!Objects.equals(normalise(before), normalise(after))) {
+            changes.add(path);
+        }
+    }
+
+    private static JsonNode normalise(JsonNode node) {
+        return node == null || node.isNull() ? NullNode.getInstance() : node;
+    }
+
+    private record Outcome(Duration duration, String error, List<String> changes) {
+    }
+}
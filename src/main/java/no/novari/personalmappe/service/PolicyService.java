@@ -1,41 +1,128 @@
 package no.novari.personalmappe.service;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import jakarta.annotation.PostConstruct;
 import lombok.extern.slf4j.Slf4j;
 import no.fint.model.resource.arkiv.personal.PersonalmappeResource;
+import no.novari.personalmappe.exception.PolicyTimeBudgetExceededException;
 import no.novari.personalmappe.policy.helper.LinkHelper;
+import no.novari.personalmappe.policy.helper.TimeBudget;
+import no.novari.personalmappe.properties.ProvisioningProperties;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.springframework.stereotype.Service;
 
 import javax.script.Invocable;
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineManager;
 import javax.script.ScriptException;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Runs transformation policies. Every invocation of a configured script is timed and counted per script, and a
+ * script that runs longer than {@code provisioning.policy.time-budget} is aborted.
+ */
 @Slf4j
 @Service
 public class PolicyService {
 
+    // The engine is shared and not thread safe. A lock rather than synchronized keeps virtual threads unpinned.
+    private final Lock lock = new ReentrantLock();
+    private final TimeBudget timeBudget = new TimeBudget();
+
+    private final ProvisioningProperties.PolicyProperties properties;
+    private final MeterRegistry meterRegistry;
+
     private ScriptEngine engine;
 
+    public PolicyService(ProvisioningProperties provisioningProperties, MeterRegistry meterRegistry) {
+        this.properties = provisioningProperties.getPolicy();
+        this.meterRegistry = meterRegistry;
+    }
+
     @PostConstruct
     public void init() {
         engine = new ScriptEngineManager().getEngineByName("nashorn");
         engine.put("resource", LinkHelper.resource());
+        engine.put(TimeBudget.NAME, timeBudget);
     }
 
+    /**
+     * Throws {@link PolicyTimeBudgetExceededException} when the script runs out of time. Other script errors are
+     * logged and give {@code null}.
+     */
     public PersonalmappeResource transform(String policy, PersonalmappeResource personalmappeResource) {
+        String script = getScriptName(policy);
+        Evaluation evaluation = evaluate(policy, personalmappeResource);
+
+        Timer.builder("provisioning.policy.duration")
+                .tag("script", script)
+                .publishPercentileHistogram()
+                .register(meterRegistry)
+                .record(evaluation.duration());
+        meterRegistry.counter("provisioning.policy.invocations", "script", script).increment();
+
+        if (evaluation.error() != null) {
+            boolean timedOut = evaluation.error() instanceof PolicyTimeBudgetExceededException;
+            meterRegistry.counter("provisioning.policy.failures", "script", script, "reason", timedOut ? "budget" : "error").increment();
+
+            if (timedOut) {
+                throw (PolicyTimeBudgetExceededException) evaluation.error();
+            }
+        }
+
+        return evaluation.result();
+    }
+
+    /**
+     * Runs the policy without recording metrics, as the policy editor does. Script errors and an exceeded time
+     * budget give an evaluation with the error. Other runtime exceptions are not caused by the script and are
+     * thrown.
+     */
+    public Evaluation evaluate(String policy, PersonalmappeResource personalmappeResource) {
+        lock.lock();
+        long started = System.nanoTime();
         try {
-            engine.eval(policy);
+            String functionName = getFunctionName(policy);
+
+            timeBudget.start(functionName, properties.getTimeBudget());
+            engine.eval(TimeBudget.instrument(policy));
+
+            log.info("Running transform policy: {}", functionName);
+            Object o = ((Invocable) engine).invokeFunction(functionName, personalmappeResource);
 
-            log.info("Running transform policy: {}", getFunctionName(policy));
-            Object o = ((Invocable) engine).invokeFunction(getFunctionName(policy), personalmappeResource);
-            return (PersonalmappeResource) o;
+            if (o != null && !(o instanceof PersonalmappeResource)) {
+                throw new ScriptException(functionName + " returned " + o.getClass().getSimpleName() + " instead of PersonalmappeResource");
+            }
+
+            return new Evaluation((PersonalmappeResource) o, Duration.ofNanos(System.nanoTime() - started), null);
         } catch (ScriptException | NoSuchMethodException e) {
-            log.error(e.getMessage(), e);
+            Exception error = timedOut(e).orElse(e);
+
+            if (error instanceof PolicyTimeBudgetExceededException) {
+                log.error(error.getMessage());
+            } else {
+                log.error(e.getMessage(), e);
+            }
+
+            return new Evaluation(null, Duration.ofNanos(System.nanoTime() - started), error);
+        } catch (RuntimeException e) {
+            PolicyTimeBudgetExceededException error = timedOut(e).orElseThrow(() -> e);
+            log.error(error.getMessage());
+
+            return new Evaluation(null, Duration.ofNanos(System.nanoTime() - started), error);
+        } finally {
+            timeBudget.stop();
+            lock.unlock();
         }
+    }
 
-        return null;
+    public Optional<Timer> getTimer(String policy) {
+        return Optional.ofNullable(meterRegistry.find("provisioning.policy.duration").tag("script", getScriptName(policy)).timer());
     }
 
     public String getFunctionName(String policy) throws NoSuchMethodException {
@@ -52,4 +139,22 @@ public class PolicyService {
             throw new NoSuchMethodException("Function signature validation failed");
         }
     }
+
+    private String getScriptName(String policy) {
+        try {
+            return getFunctionName(policy);
+        } catch (NoSuchMethodException e) {
+            return "invalid";
+        }
+    }
+
+    private static Optional<PolicyTimeBudgetExceededException> timedOut(Throwable throwable) {
+        return ExceptionUtils.getThrowableList(throwable).stream()
+                .filter(PolicyTimeBudgetExceededException.class::isInstance)
+                .map(PolicyTimeBudgetExceededException.class::cast)
+                .findFirst();
+    }
+
+    public record Evaluation(PersonalmappeResource result, Duration duration, Exception error) {
+    }
 }
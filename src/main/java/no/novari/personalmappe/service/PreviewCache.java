@@ -0,0 +1,53 @@
+package no.novari.personalmappe.service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import no.novari.personalmappe.model.Personnel;
+import no.novari.personalmappe.properties.ProvisioningProperties;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+
+/**
+ * Short-lived previews of personnel folders keyed by username, held in their compact form. Concurrent requests
+ * for the same username share a single fetch, and the entry is dropped whenever the user is provisioned. Only
+ * previews are kept: a fetch that fails or finds nobody is done again on the next request.
+ */
+@Component
+public class PreviewCache {
+
+    private final Cache<String, Mono<Personnel>> cache;
+
+    public PreviewCache(ProvisioningProperties provisioningProperties, MeterRegistry meterRegistry) {
+        this.cache = CacheBuilder.newBuilder()
+                .expireAfterWrite(provisioningProperties.getPreviewCache().getTtl())
+                .maximumSize(provisioningProperties.getPreviewCache().getMaximumSize())
+                .recordStats()
+                .build();
+
+        GuavaCacheMetrics.monitor(meterRegistry, cache, "provisioning.preview-cache");
+    }
+
+    public Mono<Personnel> get(String username, Function<String, Mono<Personnel>> loader) {
+        try {
+            return cache.get(username, () -> loader.apply(username)
+                    .doOnSuccess(personnel -> {
+                        if (personnel == null) {
+                            cache.invalidate(username);
+                        }
+                    })
+                    .doOnError(error -> cache.invalidate(username))
+                    .cache());
+        } catch (ExecutionException e) {
+            return Mono.error(e.getCause());
+        }
+    }
+
+    public void invalidate(String username) {
+        cache.invalidate(username);
+    }
+}
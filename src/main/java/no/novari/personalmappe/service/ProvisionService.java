@@ -4,41 +4,43 @@ import com.mongodb.MongoBulkWriteException;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import no.fint.model.felles.kompleksedatatyper.Identifikator;
-import no.fint.model.resource.FintLinks;
 import no.fint.model.resource.Link;
 import no.fint.model.resource.administrasjon.personal.PersonalressursResource;
 import no.fint.model.resource.arkiv.noark.AdministrativEnhetResource;
 import no.fint.model.resource.arkiv.noark.AdministrativEnhetResources;
-import no.fint.model.resource.arkiv.noark.ArkivressursResources;
 import no.fint.model.resource.arkiv.personal.PersonalmappeResource;
 import no.novari.personalmappe.exception.FinalStatusPendingException;
+import no.novari.personalmappe.exception.PolicyTimeBudgetExceededException;
 import no.novari.personalmappe.factory.PersonalmappeResourceFactory;
 import no.novari.personalmappe.model.GraphQLPersonalmappe;
 import no.novari.personalmappe.model.GraphQLQuery;
+import no.novari.personalmappe.model.LatencyStage;
 import no.novari.personalmappe.model.MongoDBPersonalmappe;
+import no.novari.personalmappe.model.MongoDBSchedule;
+import no.novari.personalmappe.model.Personnel;
+import no.novari.personalmappe.model.Transition;
 import no.novari.personalmappe.properties.OrganisationProperties;
 import no.novari.personalmappe.repository.FintRepository;
 import no.novari.personalmappe.repository.MongoDBRepository;
+import no.novari.personalmappe.repository.MongoDBScheduleRepository;
 import no.novari.personalmappe.utilities.GraphQLUtilities;
 import no.novari.personalmappe.utilities.PersonnelUtilities;
 import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.dao.OptimisticLockingFailureException;
-import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
 import org.springframework.web.reactive.function.client.WebClientResponseException;
-import org.springframework.web.util.UriComponentsBuilder;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
-import reactor.core.publisher.SynchronousSink;
-import reactor.util.retry.Retry;
+import reactor.core.scheduler.Scheduler;
 
 import java.net.URI;
 import java.time.Duration;
+import java.time.LocalDateTime;
 import java.util.*;
-import java.util.function.BiConsumer;
-import java.util.function.Function;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
@@ -48,9 +50,6 @@ public class ProvisionService {
     @Value("${fint.endpoints.personnel-folder}")
     private URI personnelFolderEndpoint;
 
-    @Value("${fint.endpoints.archive-resource}")
-    private URI archiveResourceEndpoint;
-
     @Value("${fint.endpoints.administrative-unit}")
     private URI administrativeUnitEndpoint;
 
@@ -65,159 +64,264 @@ public class ProvisionService {
     private final FintRepository fintRepository;
     private final ResponseService responseService;
     private final MongoDBRepository mongoDBRepository;
+    private final MongoDBScheduleRepository mongoDBScheduleRepository;
     private final PersonalmappeResourceFactory personalmappeResourceFactory;
     private final OrganisationProperties organisationProperties;
     private final PolicyService policyService;
-
-    public ProvisionService(FintRepository fintRepository, ResponseService responseService, PersonalmappeResourceFactory personalmappeResourceFactory, OrganisationProperties organisationProperties, MongoDBRepository mongoDBRepository, PolicyService policyService) {
+    private final StatusService statusService;
+    private final Scheduler cpuScheduler;
+    private final Scheduler blockingScheduler;
+    private final PreviewCache previewCache;
+    private final LatencyService latencyService;
+
+    public ProvisionService(FintRepository fintRepository, ResponseService responseService, PersonalmappeResourceFactory personalmappeResourceFactory, OrganisationProperties organisationProperties, MongoDBRepository mongoDBRepository, MongoDBScheduleRepository mongoDBScheduleRepository, PolicyService policyService, StatusService statusService,
+                            @Qualifier("cpuScheduler") Scheduler cpuScheduler, @Qualifier("blockingScheduler") Scheduler blockingScheduler, PreviewCache previewCache, LatencyService latencyService) {
         this.fintRepository = fintRepository;
         this.responseService = responseService;
         this.personalmappeResourceFactory = personalmappeResourceFactory;
         this.organisationProperties = organisationProperties;
         this.mongoDBRepository = mongoDBRepository;
+        this.mongoDBScheduleRepository = mongoDBScheduleRepository;
         this.policyService = policyService;
+        this.statusService = statusService;
+        this.cpuScheduler = cpuScheduler;
+        this.blockingScheduler = blockingScheduler;
+        this.previewCache = previewCache;
+        this.latencyService = latencyService;
     }
 
-    public void provisionOne(String username) {
+    public Mono<PersonalmappeResource> getOne(String username) {
         if (administrativeUnitSystemIds.isEmpty()) {
             updateAdministrativeUnitSystemIds();
         }
 
-        run(Collections.singletonList(username), 1).subscribe(log::trace);
+        // Errors are mapped outside the cache, so a failed fetch is not cached as a missing user.
+        return previewCache.get(username, this::loadPersonnel)
+                .onErrorResume(error -> personnelError(username, error))
+                .map(personalmappeResourceFactory::toPersonalmappeResource);
     }
 
-    public Mono<PersonalmappeResource> getOne(String username) {
-        if (administrativeUnitSystemIds.isEmpty()) {
-            updateAdministrativeUnitSystemIds();
-        }
+    public Mono<MongoDBPersonalmappe> provision(String username) {
+        return provision(username, Duration.ZERO);
+    }
+
+    /**
+     * The schedule of the user is updated once the folder is written, or skipped, and removed when the user has no
+     * personalressurs. A failed GraphQL query leaves it as it is.
+     */
+    public Mono<MongoDBPersonalmappe> provision(String username, Duration queued) {
+        return Mono.defer(() -> {
+            ProvisioningTimings timings = new ProvisioningTimings(queued);
+            AtomicReference<String> outcome = new AtomicReference<>("skipped");
+
+            return timings.time(LatencyStage.GRAPHQL, getPersonalressurs(username).map(Optional::of).defaultIfEmpty(Optional.empty()))
+                    .onErrorResume(error -> personnelError(username, error))
+                    .flatMap(personnelResource -> personnelResource
+                            .map(resource -> toPersonnel(resource)
+                                    .map(personalmappeResourceFactory::toPersonalmappeResource)
+                                    .flatMap(personnelFolder -> updatePersonnelFolder(personnelFolder, timings))
+                                    .doOnNext(mongoDBPersonnelFolder -> {
+                                        mongoDBPersonnelFolder.setTimings(timings.toMillis());
+                                        outcome.set(outcome(mongoDBPersonnelFolder));
+                                    })
+                                    .flatMap(this::save)
+                                    .flatMap(saved -> schedule(username, resource).thenReturn(saved))
+                                    .switchIfEmpty(Mono.defer(() -> schedule(username, resource).then(Mono.empty()))))
+                            .orElseGet(() -> unschedule(username).then(Mono.empty())))
+                    .doOnError(error -> outcome.set("error"))
+                    .doFinally(signal -> {
+                        previewCache.invalidate(username);
+                        latencyService.record(outcome.get(), timings.toMillis());
+                    });
+        });
+    }
+
+    // Only reads, as it also loads the previews.
+    private Mono<Personnel> loadPersonnel(String username) {
+        return getPersonalressurs(username)
+                .flatMap(this::toPersonnel);
+    }
+
+    private Mono<Personnel> toPersonnel(GraphQLPersonalmappe.Personalressurs personnelResource) {
+        return Mono.justOrEmpty(personalmappeResourceFactory.toPersonnel(personnelResource, organisationProperties, administrativeUnitSystemIds))
+                .filter(validPersonnel());
+    }
 
-        return getPersonnelFolder(username);
+    private <T> Mono<T> personnelError(String username, Throwable error) {
+        log.error("Error getting personnel folder for {} with error message: {}", username, error.getMessage());
+        return Mono.empty();
     }
 
-    public Flux<String> run(List<String> usernames, long limit) {
-        return Flux.fromIterable(usernames)
-                .take(limit)
-                .delayElements(Duration.ofMillis(1000))
-                .concatMap(this::getPersonnelFolder)
-                .flatMap(this::updatePersonnelFolder)
-                .doOnNext(this::save)
-                .map(MongoDBPersonalmappe::getUsername)
-                .doOnComplete(() -> log.info("Provisioning of {} user(s) have now completed.", usernames.size()));
+    public Mono<Personnel> buildPersonnel(String username) {
+        return getPersonalressurs(username)
+                .flatMap(personnelResource -> Mono.justOrEmpty(personalmappeResourceFactory.toPersonnel(personnelResource, organisationProperties, administrativeUnitSystemIds)));
     }
 
-    private Mono<PersonalmappeResource> getPersonnelFolder(String username) {
+    private Mono<GraphQLPersonalmappe.Personalressurs> getPersonalressurs(String username) {
         GraphQLQuery graphQLQuery = new GraphQLQuery(GRAPHQL_QUERY, Collections.singletonMap("brukernavn", username));
         log.trace("Let´s get personal folder for {}", username);
         return fintRepository.post(GraphQLPersonalmappe.class, graphQLQuery, graphqlEndpoint)
-                .map(graphQLPersonnelFolder -> Optional.ofNullable(graphQLPersonnelFolder.getResult())
+                .publishOn(cpuScheduler)
+                .mapNotNull(graphQLPersonnelFolder -> Optional.ofNullable(graphQLPersonnelFolder.getResult())
                         .map(GraphQLPersonalmappe.Result::getPersonalressurs)
-                        .map(personnelResource -> personalmappeResourceFactory.toPersonalmappeResource(personnelResource, organisationProperties, administrativeUnitSystemIds))
-                        .orElseGet(PersonalmappeResource::new))
-                .filter(validPersonnelFolder())
+                        .orElse(null));
+    }
+
+    /**
+     * Keeps the user's upcoming activation and deactivation instants, so {@link ScheduleService} provisions the
+     * user again when one of them is reached. A failure here never fails the provisioning.
+     */
+    private Mono<Void> schedule(String username, GraphQLPersonalmappe.Personalressurs personnelResource) {
+        String orgId = organisationProperties.getOrgId();
+        String id = orgId + "_" + username;
+        List<Transition> transitions = personalmappeResourceFactory.getTransitions(personnelResource, organisationProperties, LocalDateTime.now());
+
+        Mono<?> update = transitions.isEmpty()
+                ? mongoDBScheduleRepository.deleteById(id)
+                : mongoDBScheduleRepository.save(MongoDBSchedule.builder()
+                .id(id)
+                .orgId(orgId)
+                .username(username)
+                .dueAt(transitions.get(0).at())
+                .transitions(transitions)
+                .build());
+
+        return update
                 .onErrorResume(error -> {
-                    log.error("Error getting personnel folder for {} with error message: {}", username, error.getMessage());
+                    log.warn("Unable to schedule transitions for {}: {}", username, error.getMessage());
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+    /**
+     * Removes the schedule of a user without a personalressurs, including when GraphQL gave no result, so the
+     * user is not queued again at every lease.
+     */
+    private Mono<Void> unschedule(String username) {
+        return mongoDBScheduleRepository.deleteById(organisationProperties.getOrgId() + "_" + username)
+                .onErrorResume(error -> {
+                    log.warn("Unable to remove the schedule of {}: {}", username, error.getMessage());
                     return Mono.empty();
                 });
     }
 
-    private Mono<MongoDBPersonalmappe> updatePersonnelFolder(PersonalmappeResource personnelFolder) {
+    public PersonalmappeResource toPersonalmappeResource(Personnel personnel) {
+        return personalmappeResourceFactory.toPersonalmappeResource(personnel);
+    }
+
+    public String getId(PersonalmappeResource personnelFolder) {
+        return getId(organisationProperties.getOrgId(), personnelFolder);
+    }
+
+    private String getId(String orgId, PersonalmappeResource personnelFolder) {
+        return orgId + "_" + PersonnelUtilities.getNIN(personnelFolder);
+    }
+
+    private Mono<MongoDBPersonalmappe> updatePersonnelFolder(PersonalmappeResource personnelFolder, ProvisioningTimings timings) {
         log.debug("Update personal folder for {}", PersonnelUtilities.getUsername(personnelFolder));
         String orgId = organisationProperties.getOrgId();
 
-        String id = orgId + "_" + PersonnelUtilities.getNIN(personnelFolder);
+        String id = getId(orgId, personnelFolder);
 
-        Optional<MongoDBPersonalmappe> mongoDBPersonnelFolder = mongoDBRepository.findById(id);
-
-        return mongoDBPersonnelFolder
-                .map(dbPersonnelFolder -> update(personnelFolder, dbPersonnelFolder))
-                .orElseGet(() -> create(orgId, id, personnelFolder))
+        return mongoDBRepository.findById(id)
+                .map(Optional::of)
+                .defaultIfEmpty(Optional.empty())
+                .flatMap(mongoDBPersonnelFolder -> mongoDBPersonnelFolder
+                        .map(dbPersonnelFolder -> update(personnelFolder, dbPersonnelFolder, timings))
+                        .orElseGet(() -> create(orgId, id, personnelFolder, timings)))
                 .onErrorResume(throwable -> Mono.empty());
     }
 
-    private Mono<MongoDBPersonalmappe> create(String orgId, String id, PersonalmappeResource personnelFolder) {
+    private Mono<MongoDBPersonalmappe> create(String orgId, String id, PersonalmappeResource personnelFolder, ProvisioningTimings timings) {
         log.debug("Create personal folder for {}", PersonnelUtilities.getUsername(personnelFolder));
-        doTransformation(personnelFolder);
 
-        return fintRepository.postForEntity(personnelFolder, personnelFolderEndpoint)
+        return transform(personnelFolder)
+                .flatMap(transformed -> timings.time(LatencyStage.WRITE, fintRepository.postForEntity(transformed, personnelFolderEndpoint)))
                 .flatMap(responseEntity -> {
                     MongoDBPersonalmappe mongoDBPersonalmappe = responseService.pending(orgId, id, personnelFolder);
 
-                    return status(mongoDBPersonalmappe, responseEntity);
+                    return status(mongoDBPersonalmappe, responseEntity, timings);
                 })
-                .doOnError(WebClientResponseException.class, clientResponse -> log.error("Error creating personnel folder for {} with error message: {}", PersonnelUtilities.getUsername(personnelFolder), clientResponse.getMessage()));
+                .doOnError(WebClientResponseException.class, clientResponse -> log.error("Error creating personnel folder for {} with error message: {}", PersonnelUtilities.getUsername(personnelFolder), clientResponse.getMessage()))
+                .onErrorResume(PolicyTimeBudgetExceededException.class, ex -> Mono.just(responseService.policyFailed(responseService.pending(orgId, id, personnelFolder), ex)));
     }
 
-    private Mono<MongoDBPersonalmappe> update(PersonalmappeResource personnelFolder, MongoDBPersonalmappe mongoDBPersonnelFolder) {
-        doTransformation(personnelFolder);
-
-        Mono<ResponseEntity<Void>> responseEntity;
-
-        if (mongoDBPersonnelFolder.getAssociation() == null) {
-            responseEntity = fintRepository.postForEntity(personnelFolder, personnelFolderEndpoint);
-        } else {
-            responseEntity = fintRepository.putForEntity(personnelFolder, mongoDBPersonnelFolder.getAssociation());
-        }
-
-        return responseEntity
+    private Mono<MongoDBPersonalmappe> update(PersonalmappeResource personnelFolder, MongoDBPersonalmappe mongoDBPersonnelFolder, ProvisioningTimings timings) {
+        return transform(personnelFolder)
+                .flatMap(transformed -> timings.time(LatencyStage.WRITE, mongoDBPersonnelFolder.getAssociation() == null
+                        ? fintRepository.postForEntity(transformed, personnelFolderEndpoint)
+                        : fintRepository.putForEntity(transformed, mongoDBPersonnelFolder.getAssociation())))
                 .flatMap(entity -> {
                     MongoDBPersonalmappe dbPersonalmappe = responseService.pending(mongoDBPersonnelFolder, personnelFolder);
 
-                    return status(dbPersonalmappe, entity);
+                    return status(dbPersonalmappe, entity, timings);
                 })
-                .doOnError(WebClientResponseException.class, clientResponse -> log.error("Error updating personnel folder for {} with error message: {}", PersonnelUtilities.getUsername(personnelFolder), clientResponse.getMessage()));
+                .doOnError(WebClientResponseException.class, clientResponse -> log.error("Error updating personnel folder for {} with error message: {}", PersonnelUtilities.getUsername(personnelFolder), clientResponse.getMessage()))
+                .onErrorResume(PolicyTimeBudgetExceededException.class, ex -> Mono.just(responseService.policyFailed(responseService.pending(mongoDBPersonnelFolder, personnelFolder), ex)));
     }
 
-    private Mono<MongoDBPersonalmappe> status(MongoDBPersonalmappe mongoDBPersonnelFolder, ResponseEntity<Void> responseEntity) {
-        return fintRepository.getForEntity(Object.class, responseEntity.getHeaders().getLocation())
-                .map(entity -> {
-                    if (entity.getStatusCode().equals(HttpStatus.ACCEPTED)) {
-                        throw new FinalStatusPendingException();
-                    }
+    /**
+     * A status that is not final within {@code provisioning.status.timeout} is stored as pending and polled by
+     * {@link PendingStatusService}, so the attempt does not hold a provisioning slot while the archive works.
+     */
+    private Mono<MongoDBPersonalmappe> status(MongoDBPersonalmappe mongoDBPersonnelFolder, ResponseEntity<Void> responseEntity, ProvisioningTimings timings) {
+        return timings.time(LatencyStage.FINAL_STATUS, statusService.poll(responseEntity))
+                .map(entity -> responseService.success(mongoDBPersonnelFolder, entity))
+                .onErrorResume(WebClientResponseException.class, ex -> Mono.just(responseService.error(ex, mongoDBPersonnelFolder)))
+                .onErrorResume(FinalStatusPendingException.class, ex -> Mono.just(responseService.statusPending(mongoDBPersonnelFolder, ex)));
+    }
 
-                    return responseService.success(mongoDBPersonnelFolder, entity);
-                })
-                .retryWhen(Retry.backoff(10, Duration.ofSeconds(1))
-                        .filter(FinalStatusPendingException.class::isInstance)
-                        .doAfterRetry(exception -> log.info("{}", exception)))
-                .onErrorResume(WebClientResponseException.class, ex -> Mono.just(responseService.error(ex, mongoDBPersonnelFolder)));
+    private static String outcome(MongoDBPersonalmappe mongoDBPersonnelFolder) {
+        if (mongoDBPersonnelFolder.getStatus() == null) {
+            return "succeeded";
+        }
+
+        if (mongoDBPersonnelFolder.getStatus().isError()) {
+            return "failed";
+        }
+
+        return mongoDBPersonnelFolder.getPendingStatus() != null ? "pending" : "succeeded";
     }
 
-    private Predicate<PersonalmappeResource> validPersonnelFolder() {
+    public Predicate<Personnel> validPersonnel() {
         log.debug("Validate personal folder...");
-        return personnelFolder -> {
-            if (Objects.nonNull(personnelFolder.getNavn()) &&
-                    !personnelFolder.getPersonalressurs().isEmpty() &&
-                    !personnelFolder.getPerson().isEmpty() &&
-                    !personnelFolder.getArbeidssted().isEmpty() &&
-                    !personnelFolder.getLeder().isEmpty()) {
+        return personnel -> {
+            if (Objects.nonNull(personnel.name()) &&
+                    Objects.nonNull(personnel.username()) &&
+                    Objects.nonNull(personnel.nin()) &&
+                    Objects.nonNull(personnel.workplace()) &&
+                    Objects.nonNull(personnel.leader())) {
                 log.debug("...personal folder is OK.");
-                Optional<Link> identical = personnelFolder.getPersonalressurs().stream()
-                        .filter(link -> personnelFolder.getLeder().contains(link))
-                        .findAny();
 
-                if (identical.isPresent()) {
-                    log.trace("Identical subject and leader for personnel folder: {}", PersonnelUtilities.getUsername(personnelFolder));
+                if (personnel.username().equals(personnel.leader())) {
+                    log.trace("Identical subject and leader for personnel folder: {}", personnel.username());
                     return false;
                 }
 
                 Set<String> excluded = Arrays.stream(organisationProperties.getAdministrativeUnitsExcluded()).collect(Collectors.toSet());
 
-                return excluded.isEmpty() || personnelFolder.getArbeidssted().stream()
-                        .map(Link::getHref)
-                        .map(href -> StringUtils.substringAfterLast(href, "/"))
-                        .noneMatch(excluded::contains);
+                return excluded.isEmpty() || !excluded.contains(personnel.workplace());
             }
             log.trace(" ..invalid personal folder.");
             return false;
         };
     }
 
-    private void save(MongoDBPersonalmappe mongoDBPersonnelFolder) {
-        try {
-            mongoDBRepository.save(mongoDBPersonnelFolder);
-        } catch (OptimisticLockingFailureException | MongoBulkWriteException e) {
-            log.error("Error saving to database {} -> {}", e.getMessage(), mongoDBPersonnelFolder);
-        }
+    private Mono<MongoDBPersonalmappe> save(MongoDBPersonalmappe mongoDBPersonnelFolder) {
+        return mongoDBRepository.save(mongoDBPersonnelFolder)
+                .onErrorResume(e -> e instanceof OptimisticLockingFailureException || e instanceof MongoBulkWriteException, e -> {
+                    log.error("Error saving to database {} -> {}", e.getMessage(), mongoDBPersonnelFolder);
+                    return Mono.just(mongoDBPersonnelFolder);
+                });
+    }
+
+    public Mono<PersonalmappeResource> transform(PersonalmappeResource personalmappeResource) {
+        return Mono.fromCallable(() -> {
+                    doTransformation(personalmappeResource);
+                    return personalmappeResource;
+                })
+                .subscribeOn(blockingScheduler);
     }
 
     public void doTransformation(PersonalmappeResource personalmappeResource) {
@@ -227,35 +331,6 @@ public class ProvisionService {
         }
     }
 
-    public void updateArchiveResource(List<PersonalressursResource> personalressursList) {
-        final Set<String> selfLinks = personalressursList.stream().map(FintLinks::getSelfLinks).flatMap(List::stream).map(Link::getHref).collect(Collectors.toSet());
-        fintRepository.get(ArkivressursResources.class, archiveResourceEndpoint)
-                .flatMapMany(r -> Flux.fromStream(r.getContent().stream()))
-                .filter(a -> a.getPersonalressurs().stream().map(Link::getHref).anyMatch(selfLinks::contains))
-                .flatMap(arkivressurs ->
-                        arkivressurs
-                                .getSelfLinks()
-                                .stream()
-                                .map(Link::getHref)
-                                .filter(StringUtils::isNotBlank)
-                                .map(s -> UriComponentsBuilder.fromUriString(s).build().toUri())
-                                .findAny()
-                                .map(uri -> fintRepository.putForEntity(arkivressurs, uri))
-                                .orElseGet(Mono::empty))
-                .onErrorContinue((e, r) -> log.info("Error on {}", r))
-                .handle(transformNullable(r -> r.getHeaders().getLocation()))
-                .delayElements(Duration.ofSeconds(10))
-                .flatMap(fintRepository::headForEntity)
-                .onErrorContinue((e, r) -> log.info("Error on {}", r))
-                .doOnNext(it -> log.info("Arkivressurs: {} {}", it.getStatusCode(), it.getHeaders().getLocation()))
-                .count()
-                .subscribe(it -> log.info("Updated {} Arkivressurs objects.", it));
-    }
-
-    public static <T, U> BiConsumer<U, SynchronousSink<T>> transformNullable(Function<U, T> mapper) {
-        return (element, sink) -> Optional.ofNullable(mapper.apply(element)).ifPresent(sink::next);
-    }
-
     public void updateAdministrativeUnitSystemIds() {
         fintRepository.get(AdministrativEnhetResources.class, administrativeUnitEndpoint)
                 .flatMapIterable(AdministrativEnhetResources::getContent)
@@ -282,4 +357,11 @@ public class ProvisionService {
                 .sorted(Comparator.reverseOrder())
                 .collect(Collectors.toList());
     }
+
+    public Flux<String> getUsernames(Flux<PersonalressursResource> personnelResources) {
+        return personnelResources
+                .mapNotNull(PersonalressursResource::getBrukernavn)
+                .mapNotNull(Identifikator::getIdentifikatorverdi)
+                .filter(StringUtils::isNotBlank);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,194 @@
+package no.novari.personalmappe.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import no.novari.personalmappe.model.MongoDBPersonalmappe;
+import no.novari.personalmappe.model.Priority;
+import no.novari.personalmappe.properties.ProvisioningProperties;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Single entry point for provisioning. Every caller submits usernames to a priority lane and the
+ * executor dequeues them with smooth weighted round-robin into a shared, bounded pool of in-flight
+ * provisionings. Interactive requests bypass the dispatch pacing, the other lanes are released one per
+ * {@code dispatchInterval}.
+ */
+@Slf4j
+@Service
+public class ProvisioningExecutor {
+
+    private final ProvisionService provisionService;
+    private final ProvisioningProperties.ExecutorProperties properties;
+
+    private final Map<Priority, Queue<Task>> lanes = new EnumMap<>(Priority.class);
+    private final Map<Priority, Integer> credits = new EnumMap<>(Priority.class);
+    private int inFlight;
+
+    private Disposable dispatcher;
+
+    public ProvisioningExecutor(ProvisionService provisionService, ProvisioningProperties provisioningProperties, MeterRegistry meterRegistry) {
+        this.provisionService = provisionService;
+        this.properties = provisioningProperties.getExecutor();
+
+        for (Priority priority : Priority.values()) {
+            lanes.put(priority, new ArrayDeque<>());
+            credits.put(priority, 0);
+
+            Gauge.builder("provisioning.executor.queued", this, executor -> executor.queued(priority))
+                    .tag("priority", priority.name().toLowerCase())
+                    .register(meterRegistry);
+        }
+
+        Gauge.builder("provisioning.executor.in-flight", this, ProvisioningExecutor::inFlight)
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        dispatcher = Flux.interval(properties.getDispatchInterval())
+                .subscribe(tick -> dispatch());
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (dispatcher != null) {
+            dispatcher.dispose();
+        }
+    }
+
+    public void provisionOne(String username) {
+        if (provisionService.getAdministrativeUnitSystemIds().isEmpty()) {
+            provisionService.updateAdministrativeUnitSystemIds();
+        }
+
+        submit(username, Priority.INTERACTIVE).subscribe(log::trace);
+    }
+
+    public Flux<String> run(List<String> usernames, long limit, Priority priority) {
+        return Flux.fromIterable(usernames)
+                .take(limit)
+                .flatMap(username -> submit(username, priority), properties.getLaneCapacity())
+                .map(MongoDBPersonalmappe::getUsername)
+                .doOnComplete(() -> log.info("Provisioning of {} user(s) have now completed.", usernames.size()));
+    }
+
+    public Mono<MongoDBPersonalmappe> submit(String username, Priority priority) {
+        return Mono.defer(() -> {
+            Task task = new Task(username, priority, System.nanoTime(), Sinks.one());
+            enqueue(task);
+
+            if (priority == Priority.INTERACTIVE) {
+                dispatchInteractive();
+            }
+
+            return task.result().asMono();
+        });
+    }
+
+    synchronized void enqueue(Task task) {
+        lanes.get(task.priority()).add(task);
+    }
+
+    private void dispatch() {
+        Task task;
+        synchronized (this) {
+            if (inFlight >= properties.getConcurrency()) {
+                return;
+            }
+            task = next();
+            if (task == null) {
+                return;
+            }
+            inFlight++;
+        }
+        execute(task);
+    }
+
+    private void dispatchInteractive() {
+        Task task;
+        synchronized (this) {
+            if (inFlight >= properties.getConcurrency()) {
+                return;
+            }
+            task = lanes.get(Priority.INTERACTIVE).poll();
+            if (task == null) {
+                return;
+            }
+            inFlight++;
+        }
+        execute(task);
+    }
+
+    /**
+     * Smooth weighted round-robin over the non-empty lanes. Ties go to the higher priority.
+     */
+    synchronized Task next() {
+        Priority selected = null;
+        int total = 0;
+
+        for (Priority priority : Priority.values()) {
+            if (lanes.get(priority).isEmpty()) {
+                continue;
+            }
+
+            int weight = properties.getWeights().getOrDefault(priority, 1);
+            total += weight;
+            credits.merge(priority, weight, Integer::sum);
+
+            if (selected == null || credits.get(priority) > credits.get(selected)) {
+                selected = priority;
+            }
+        }
+
+        if (selected == null) {
+            return null;
+        }
+
+        credits.merge(selected, -total, Integer::sum);
+
+        return lanes.get(selected).poll();
+    }
+
+    private void execute(Task task) {
+        log.trace("Dispatching {} from {} lane", task.username(), task.priority());
+
+        // A provisioning that throws instead of signalling an error must not stop the dispatcher.
+        Mono.defer(() -> provisionService.provision(task.username(), Duration.ofNanos(System.nanoTime() - task.enqueuedAt())))
+                .doOnError(error -> log.error("Provisioning of {} failed: {}", task.username(), error.getMessage()))
+                .doFinally(signal -> {
+                    synchronized (this) {
+                        inFlight--;
+                    }
+                    dispatchInteractive();
+                })
+                .subscribe(
+                        value -> task.result().tryEmitValue(value),
+                        error -> task.result().tryEmitError(error),
+                        () -> task.result().tryEmitEmpty());
+    }
+
+    private synchronized int queued(Priority priority) {
+        return lanes.get(priority).size();
+    }
+
+    private synchronized int inFlight() {
+        return inFlight;
+    }
+
+    record Task(String username, Priority priority, long enqueuedAt, Sinks.One<MongoDBPersonalmappe> result) {
+    }
+}
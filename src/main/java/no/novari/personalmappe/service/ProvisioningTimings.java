@@ -0,0 +1,40 @@
+package no.novari.personalmappe.service;
+
+import no.novari.personalmappe.model.LatencyStage;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Stage timings of a single provisioning attempt.
+ */
+public class ProvisioningTimings {
+    private final long started = System.nanoTime();
+    private final Map<LatencyStage, Long> nanos = new EnumMap<>(LatencyStage.class);
+
+    public ProvisioningTimings(Duration queued) {
+        nanos.put(LatencyStage.QUEUED, queued.toNanos());
+    }
+
+    public <T> Mono<T> time(LatencyStage stage, Mono<T> mono) {
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+
+            return mono.doFinally(signal -> add(stage, System.nanoTime() - start));
+        });
+    }
+
+    public synchronized Map<LatencyStage, Long> toMillis() {
+        Map<LatencyStage, Long> millis = new EnumMap<>(LatencyStage.class);
+        nanos.forEach((stage, value) -> millis.put(stage, Duration.ofNanos(value).toMillis()));
+        millis.put(LatencyStage.TOTAL, Duration.ofNanos(nanos.get(LatencyStage.QUEUED) + System.nanoTime() - started).toMillis());
+
+        return millis;
+    }
+
+    private synchronized void add(LatencyStage stage, long value) {
+        nanos.merge(stage, value, Long::sum);
+    }
+}
@@ -0,0 +1,240 @@
+package no.novari.personalmappe.service;
+
+import lombok.extern.slf4j.Slf4j;
+import no.fint.model.resource.Link;
+import no.fint.model.resource.arkiv.personal.PersonalmappeResource;
+import no.fint.model.resource.arkiv.personal.PersonalmappeResources;
+import no.novari.personalmappe.model.MongoDBJob;
+import no.novari.personalmappe.model.MongoDBPersonalmappe;
+import no.novari.personalmappe.model.Priority;
+import no.novari.personalmappe.model.ReconciliationReport;
+import no.novari.personalmappe.properties.OrganisationProperties;
+import no.novari.personalmappe.properties.ProvisioningProperties;
+import no.novari.personalmappe.repository.FintRepository;
+import no.novari.personalmappe.utilities.PersonnelUtilities;
+import no.novari.personalmappe.utilities.StringInterner;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+/**
+ * Compares the stored personnel folders with the personalmappe collection of the archive. The collection is read
+ * in one paged pass, and only the self links, username, leader and workplace of each archived folder are kept.
+ * The stored folders are then streamed and joined by association, so the comparison makes no request per folder.
+ * A repair does: each missing folder is asked for once, to confirm it is gone, before its association is dropped.
+ */
+@Slf4j
+@Service
+public class ReconciliationService {
+    @Value("${fint.endpoints.personnel-folder}")
+    private URI personnelFolderEndpoint;
+
+    private final FintRepository fintRepository;
+    private final ReactiveMongoTemplate mongoTemplate;
+    private final WorkQueueService workQueueService;
+    private final OrganisationProperties organisationProperties;
+    private final ProvisioningProperties.ReconciliationProperties properties;
+    private final int pageSize;
+
+    public ReconciliationService(FintRepository fintRepository, ReactiveMongoTemplate mongoTemplate, WorkQueueService workQueueService,
+                                 OrganisationProperties organisationProperties, ProvisioningProperties provisioningProperties) {
+        this.fintRepository = fintRepository;
+        this.mongoTemplate = mongoTemplate;
+        this.workQueueService = workQueueService;
+        this.organisationProperties = organisationProperties;
+        this.properties = provisioningProperties.getReconciliation();
+        this.pageSize = provisioningProperties.getBulk().getPageSize();
+    }
+
+    /**
+     * With {@code repair}, folders missing in the archive lose their association, so they are created again, and
+     * missing and mismatched folders are queued for provisioning. Orphaned folders are only reported. Nothing is
+     * repaired when the archive looks incomplete, and a folder only counts as missing when the archive also
+     * answers that it does not exist when the folder itself is asked for.
+     */
+    public Mono<ReconciliationReport> reconcile(boolean repair) {
+        long started = System.nanoTime();
+
+        return fintRepository.getPaged(PersonalmappeResources.class, personnelFolderEndpoint, pageSize, PersonalmappeResources::getContent)
+                .collect(HashMap<String, ArchivedFolder>::new, (archive, personnelFolder) -> {
+                    ArchivedFolder archivedFolder = ArchivedFolder.of(personnelFolder);
+                    personnelFolder.getSelfLinks().stream()
+                            .map(Link::getHref)
+                            .filter(StringUtils::isNotBlank)
+                            .forEach(href -> archive.put(key(href), archivedFolder));
+                })
+                .flatMap(archive -> {
+                    Set<ArchivedFolder> archived = Collections.newSetFromMap(new IdentityHashMap<>());
+                    archived.addAll(archive.values());
+                    Set<ArchivedFolder> matched = Collections.newSetFromMap(new IdentityHashMap<>());
+                    long[] stored = new long[1];
+
+                    return mongoTemplate.find(query(where("orgId").is(organisationProperties.getOrgId()).and("association").ne(null)), MongoDBPersonalmappe.class)
+                            .doOnNext(mongoDBPersonalmappe -> stored[0]++)
+                            .<ReconciliationReport.Drift>handle((mongoDBPersonalmappe, sink) -> {
+                                ArchivedFolder archivedFolder = archive.get(key(mongoDBPersonalmappe.getAssociation().toString()));
+
+                                if (archivedFolder == null) {
+                                    sink.next(drift(ReconciliationReport.Drift.Kind.MISSING, mongoDBPersonalmappe, null));
+                                    return;
+                                }
+
+                                matched.add(archivedFolder);
+
+                                if (differs(mongoDBPersonalmappe.getLeader(), archivedFolder.leader()) || differs(mongoDBPersonalmappe.getWorkplace(), archivedFolder.workplace())) {
+                                    sink.next(drift(ReconciliationReport.Drift.Kind.MISMATCHED, mongoDBPersonalmappe, archivedFolder));
+                                }
+                            })
+                            .concatWith(Flux.defer(() -> Flux.fromIterable(archived)
+                                    .filter(archivedFolder -> !matched.contains(archivedFolder))
+                                    .map(this::orphaned)))
+                            .collectList()
+                            .flatMap(drift -> {
+                                String refused = repair ? refused(archived.size(), stored[0], drift) : null;
+
+                                return (repair && refused == null ? repair(drift) : Mono.<MongoDBJob>empty())
+                                        .map(MongoDBJob::getId)
+                                        .map(Optional::of)
+                                        .defaultIfEmpty(Optional.empty())
+                                        .map(repairJobId -> ReconciliationReport.builder()
+                                                .archived(archived.size())
+                                                .stored(stored[0])
+                                                .matched(matched.size())
+                                                .duration(Duration.ofNanos(System.nanoTime() - started))
+                                                .drift(drift.stream().collect(Collectors.groupingBy(ReconciliationReport.Drift::getKind,
+                                                        () -> new EnumMap<>(ReconciliationReport.Drift.Kind.class), Collectors.counting())))
+                                                .details(drift.stream().limit(properties.getMaxDetails()).toList())
+                                                .repairJobId(repairJobId.orElse(null))
+                                                .repairRefused(refused)
+                                                .build());
+                            });
+                })
+                .doOnNext(report -> log.info("Reconciliation of {} stored and {} archived personnel folder(s) found {}", report.getStored(), report.getArchived(), report.getDrift()));
+    }
+
+    /**
+     * An empty archive, or one missing a large share of the stored folders, is more likely a failed or partial
+     * read than lost folders, and repairing it would create every folder again.
+     */
+    private String refused(long archived, long stored, List<ReconciliationReport.Drift> drift) {
+        long missing = drift.stream()
+                .filter(entry -> entry.getKind() == ReconciliationReport.Drift.Kind.MISSING)
+                .count();
+
+        String refused = null;
+
+        if (archived == 0 && stored > 0) {
+            refused = "The archive returned no personnel folders";
+        } else if (stored > 0 && (double) missing / stored > properties.getMaxMissingRatio()) {
+            refused = String.format("%d of %d stored personnel folders are missing in the archive, more than the maximum ratio of %s",
+                    missing, stored, properties.getMaxMissingRatio());
+        }
+
+        if (refused != null) {
+            log.warn("Not repairing: {}", refused);
+        }
+
+        return refused;
+    }
+
+    private Mono<MongoDBJob> repair(List<ReconciliationReport.Drift> drift) {
+        List<String> usernames = drift.stream()
+                .filter(entry -> entry.getKind() != ReconciliationReport.Drift.Kind.ORPHANED)
+                .map(ReconciliationReport.Drift::getUsername)
+                .filter(StringUtils::isNotBlank)
+                .toList();
+
+        if (usernames.isEmpty()) {
+            return Mono.empty();
+        }
+
+        return Flux.fromIterable(drift)
+                .filter(entry -> entry.getKind() == ReconciliationReport.Drift.Kind.MISSING)
+                .flatMap(entry -> isMissing(entry.getAssociation())
+                        .filter(Boolean::booleanValue)
+                        .map(missing -> entry.getUsername()), properties.getConcurrency())
+                .collectList()
+                .flatMap(missing -> mongoTemplate.updateMulti(query(where("orgId").is(organisationProperties.getOrgId()).and("username").in(missing)),
+                                new Update().unset("association"), MongoDBPersonalmappe.class)
+                        .then(workQueueService.enqueue(usernames, Long.MAX_VALUE, Priority.BULK, MongoDBJob.Kind.RECONCILIATION))
+                        .doOnNext(job -> log.info("Repairing {} personnel folder(s), {} of them missing in the archive", job.getTotal(), missing.size())));
+    }
+
+    // Only a 404 or 410 confirms the folder is gone. Any other outcome keeps its association.
+    private Mono<Boolean> isMissing(URI association) {
+        return fintRepository.getResource(PersonalmappeResource.class, association)
+                .map(found -> false)
+                .defaultIfEmpty(false)
+                .onErrorResume(WebClientResponseException.class, ex -> Mono.just(ex.getStatusCode().value() == 404 || ex.getStatusCode().value() == 410))
+                .onErrorResume(error -> {
+                    log.warn("Unable to confirm that {} is missing in the archive: {}", association, error.getMessage());
+                    return Mono.just(false);
+                });
+    }
+
+    private ReconciliationReport.Drift drift(ReconciliationReport.Drift.Kind kind, MongoDBPersonalmappe mongoDBPersonalmappe, ArchivedFolder archivedFolder) {
+        return ReconciliationReport.Drift.builder()
+                .kind(kind)
+                .username(mongoDBPersonalmappe.getUsername())
+                .association(mongoDBPersonalmappe.getAssociation())
+                .leader(mongoDBPersonalmappe.getLeader())
+                .workplace(mongoDBPersonalmappe.getWorkplace())
+                .archivedLeader(archivedFolder == null ? null : archivedFolder.leader())
+                .archivedWorkplace(archivedFolder == null ? null : archivedFolder.workplace())
+                .build();
+    }
+
+    private ReconciliationReport.Drift orphaned(ArchivedFolder archivedFolder) {
+        return ReconciliationReport.Drift.builder()
+                .kind(ReconciliationReport.Drift.Kind.ORPHANED)
+                .username(archivedFolder.username())
+                .association(URI.create(archivedFolder.selfLink()))
+                .archivedLeader(archivedFolder.leader())
+                .archivedWorkplace(archivedFolder.workplace())
+                .build();
+    }
+
+    // A relation the archive does not return is not compared.
+    private static boolean differs(String stored, String archived) {
+        return archived != null && !StringUtils.equalsIgnoreCase(stored, archived);
+    }
+
+    // The association comes from a Location header and the self links from the collection, so only the path is compared.
+    static String key(String href) {
+        try {
+            return StringUtils.lowerCase(StringUtils.removeEnd(URI.create(href).getPath(), "/"));
+        } catch (IllegalArgumentException e) {
+            return StringUtils.lowerCase(href);
+        }
+    }
+
+    private record ArchivedFolder(String selfLink, String username, String leader, String workplace) {
+
+        static ArchivedFolder of(PersonalmappeResource personnelFolder) {
+            return new ArchivedFolder(
+                    personnelFolder.getSelfLinks().stream().map(Link::getHref).findFirst().orElse(null),
+                    PersonnelUtilities.getUsername(personnelFolder),
+                    StringInterner.intern(PersonnelUtilities.getLeader(personnelFolder)),
+                    StringInterner.intern(PersonnelUtilities.getWorkplace(personnelFolder)));
+        }
+    }
+}
@@ -5,7 +5,12 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.extern.slf4j.Slf4j;
 import no.fint.model.resource.Link;
 import no.fint.model.resource.arkiv.personal.PersonalmappeResource;
+import no.novari.personalmappe.exception.FinalStatusPendingException;
+import no.novari.personalmappe.exception.PolicyTimeBudgetExceededException;
+import no.novari.personalmappe.model.ErrorClass;
 import no.novari.personalmappe.model.MongoDBPersonalmappe;
+import no.novari.personalmappe.model.PendingStatus;
+import no.novari.personalmappe.properties.ProvisioningProperties;
 import no.novari.personalmappe.utilities.PersonnelUtilities;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
@@ -13,6 +18,10 @@ import org.springframework.stereotype.Service;
 import org.springframework.web.reactive.function.client.WebClientResponseException;
 
 import java.net.URI;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
 
 import static org.springframework.http.HttpStatus.*;
 
@@ -20,6 +29,14 @@ import static org.springframework.http.HttpStatus.*;
 @Service
 public class ResponseService {
 
+    private final ProvisioningProperties.RetryProperties properties;
+    private final ProvisioningProperties.StatusProperties statusProperties;
+
+    public ResponseService(ProvisioningProperties provisioningProperties) {
+        this.properties = provisioningProperties.getRetry();
+        this.statusProperties = provisioningProperties.getStatus();
+    }
+
     public MongoDBPersonalmappe pending(String orgId, String id, PersonalmappeResource personalmappeResource) {
         return MongoDBPersonalmappe.builder()
                 .id(id)
@@ -37,6 +54,35 @@ public class ResponseService {
         mongoDBPersonalmappe.setWorkplace(PersonnelUtilities.getWorkplace(personalmappeResource));
         mongoDBPersonalmappe.setStatus(HttpStatus.ACCEPTED);
         mongoDBPersonalmappe.setMessage(null);
+        mongoDBPersonalmappe.setPendingStatus(null);
+
+        return mongoDBPersonalmappe;
+    }
+
+    /**
+     * Leaves the folder accepted and schedules the next status poll in the background, at the {@code Retry-After}
+     * of the last status response or after half the time the status has been pending. A status that is not final
+     * within {@code provisioning.status.pending-max-age} fails as transient, so the folder is provisioned again.
+     */
+    public MongoDBPersonalmappe statusPending(MongoDBPersonalmappe mongoDBPersonalmappe, FinalStatusPendingException exception) {
+        LocalDateTime now = LocalDateTime.now();
+        LocalDateTime since = Optional.ofNullable(mongoDBPersonalmappe.getPendingStatus()).map(PendingStatus::since).orElse(now);
+
+        if (!since.plus(statusProperties.getPendingMaxAge()).isAfter(now)) {
+            log.warn("No final status for {} at {} since {}", mongoDBPersonalmappe.getUsername(), exception.getLocation(), since);
+            mongoDBPersonalmappe.setMessage("No final status since " + since);
+            return failed(mongoDBPersonalmappe, ErrorClass.TRANSIENT);
+        }
+
+        Duration wait = Optional.ofNullable(exception.getRetryAfter())
+                .orElseGet(() -> Duration.between(since, now).dividedBy(2));
+
+        if (wait.compareTo(statusProperties.getPendingMaxInterval()) > 0) {
+            wait = statusProperties.getPendingMaxInterval();
+        }
+
+        mongoDBPersonalmappe.setStatus(HttpStatus.ACCEPTED);
+        mongoDBPersonalmappe.setPendingStatus(new PendingStatus(exception.getLocation(), since, now.plus(wait)));
 
         return mongoDBPersonalmappe;
     }
@@ -46,7 +92,7 @@ public class ResponseService {
         mongoDBPersonalmappe.setAssociation(responseEntity.getHeaders().getLocation());
         mongoDBPersonalmappe.setMessage(null);
 
-        return mongoDBPersonalmappe;
+        return succeeded(mongoDBPersonalmappe);
     }
 
     public MongoDBPersonalmappe error(WebClientResponseException response, MongoDBPersonalmappe mongoDBPersonalmappe) {
@@ -82,9 +128,71 @@ public class ResponseService {
                 break;
         }
 
+        if (mongoDBPersonalmappe.getStatus().isError()) {
+            return failed(mongoDBPersonalmappe, classify(mongoDBPersonalmappe.getStatus()));
+        }
+
+        return succeeded(mongoDBPersonalmappe);
+    }
+
+    public MongoDBPersonalmappe policyFailed(MongoDBPersonalmappe mongoDBPersonalmappe, PolicyTimeBudgetExceededException exception) {
+        mongoDBPersonalmappe.setStatus(UNPROCESSABLE_ENTITY);
+        mongoDBPersonalmappe.setMessage(exception.getMessage());
+
+        return failed(mongoDBPersonalmappe, ErrorClass.PERMANENT);
+    }
+
+    /**
+     * Counts the failed attempt and schedules the next one with exponential backoff. Permanent errors are not
+     * retried, and transient errors are dead-lettered after {@code provisioning.retry.max-attempts} attempts.
+     */
+    public MongoDBPersonalmappe failed(MongoDBPersonalmappe mongoDBPersonalmappe, ErrorClass errorClass) {
+        mongoDBPersonalmappe.setErrorClass(errorClass);
+        mongoDBPersonalmappe.setAttempts(mongoDBPersonalmappe.getAttempts() + 1);
+        mongoDBPersonalmappe.setNextAttemptAt(null);
+        mongoDBPersonalmappe.setPendingStatus(null);
+
+        if (errorClass == ErrorClass.PERMANENT) {
+            return mongoDBPersonalmappe;
+        }
+
+        if (mongoDBPersonalmappe.getAttempts() >= properties.getMaxAttempts()) {
+            log.warn("Giving up provisioning of {} after {} attempts", mongoDBPersonalmappe.getUsername(), mongoDBPersonalmappe.getAttempts());
+            mongoDBPersonalmappe.setDeadLetter(true);
+            return mongoDBPersonalmappe;
+        }
+
+        mongoDBPersonalmappe.setNextAttemptAt(LocalDateTime.now().plus(backoff(mongoDBPersonalmappe.getAttempts())));
+
         return mongoDBPersonalmappe;
     }
 
+    Duration backoff(int attempts) {
+        Duration backoff = properties.getInitialBackoff().multipliedBy(1L << Math.min(attempts - 1, 20));
+
+        if (backoff.compareTo(properties.getMaxBackoff()) > 0) {
+            backoff = properties.getMaxBackoff();
+        }
+
+        return backoff.plusMillis(ThreadLocalRandom.current().nextLong(backoff.toMillis() / 10 + 1));
+    }
+
+    private MongoDBPersonalmappe succeeded(MongoDBPersonalmappe mongoDBPersonalmappe) {
+        mongoDBPersonalmappe.setErrorClass(null);
+        mongoDBPersonalmappe.setAttempts(0);
+        mongoDBPersonalmappe.setNextAttemptAt(null);
+        mongoDBPersonalmappe.setDeadLetter(false);
+        mongoDBPersonalmappe.setPendingStatus(null);
+
+        return mongoDBPersonalmappe;
+    }
+
+    private static ErrorClass classify(HttpStatus status) {
+        return status.is5xxServerError() || status == REQUEST_TIMEOUT || status == TOO_MANY_REQUESTS
+                ? ErrorClass.TRANSIENT
+                : ErrorClass.PERMANENT;
+    }
+
     private URI getSelfLink(PersonalmappeResource personalmappeResource) {
         return personalmappeResource.getSelfLinks().stream()
                 .map(Link::getHref)
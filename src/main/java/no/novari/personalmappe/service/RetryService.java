@@ -1,50 +1,131 @@
 package no.novari.personalmappe.service;
 
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
+import no.novari.personalmappe.model.ErrorClass;
 import no.novari.personalmappe.model.MongoDBPersonalmappe;
+import no.novari.personalmappe.model.Priority;
 import no.novari.personalmappe.properties.OrganisationProperties;
+import no.novari.personalmappe.properties.ProvisioningProperties;
 import no.novari.personalmappe.repository.MongoDBRepository;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.http.HttpStatus;
-import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
-import java.util.List;
+import java.time.LocalDateTime;
 
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+/**
+ * Retries failed personnel folders when their {@code nextAttemptAt} is due. Due folders are claimed for the
+ * lease period so an attempt is never started twice, and the outcome of the attempt schedules the next one.
+ */
 @Slf4j
 @Service
 public class RetryService {
 
-    private final ProvisionService provisionService;
+    private final ProvisioningExecutor provisioningExecutor;
     private final OrganisationProperties organisationProperties;
     private final MongoDBRepository mongoDBRepository;
+    private final ReactiveMongoTemplate mongoTemplate;
+    private final ResponseService responseService;
+    private final ProvisioningProperties.RetryProperties properties;
+
+    private Disposable poller;
 
-    public RetryService(ProvisionService provisionService, MongoDBRepository mongoDBRepository, OrganisationProperties organisationProperties) {
-        this.provisionService = provisionService;
+    public RetryService(ProvisioningExecutor provisioningExecutor, MongoDBRepository mongoDBRepository, ReactiveMongoTemplate mongoTemplate, ResponseService responseService,
+                        OrganisationProperties organisationProperties, ProvisioningProperties provisioningProperties) {
+        this.provisioningExecutor = provisioningExecutor;
         this.mongoDBRepository = mongoDBRepository;
+        this.mongoTemplate = mongoTemplate;
+        this.responseService = responseService;
         this.organisationProperties = organisationProperties;
+        this.properties = provisioningProperties.getRetry();
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        poller = schedulePreviousFailures()
+                .thenMany(Flux.interval(properties.getPollInterval()))
+                .onBackpressureDrop()
+                .filter(tick -> organisationProperties.isRetry())
+                .concatMap(tick -> retry().onErrorResume(error -> {
+                    log.warn("Retry poll failed: {}", error.getMessage());
+                    return Mono.empty();
+                }), 1)
+                .subscribe(null, error -> log.error("Retry poller stopped: {}", error.getMessage()));
     }
 
-    @Scheduled(cron = "${fint.cron.retry}")
-    public void run() {
-        if (organisationProperties.isRetry()) {
-            retry();
+    @PreDestroy
+    public void stop() {
+        if (poller != null) {
+            poller.dispose();
         }
     }
 
-    public void retry() {
+    public Mono<Void> retry() {
+        LocalDateTime now = LocalDateTime.now();
 
-        List<String> usernames = mongoDBRepository.findAll()
-                .stream()
-                .filter(documents ->
-                        documents.getStatus().equals(HttpStatus.INTERNAL_SERVER_ERROR) &&
-                                documents.getOrgId().equals(organisationProperties.getOrgId()))
-                .map(MongoDBPersonalmappe::getUsername)
-                .toList();
+        return mongoDBRepository.findByOrgIdAndNextAttemptAtLessThanEqual(organisationProperties.getOrgId(), now, Limit.of(properties.getBatchSize()))
+                .concatMap(mongoDBPersonalmappe -> claim(mongoDBPersonalmappe, now))
+                .collectList()
+                .filter(claimed -> !claimed.isEmpty())
+                .doOnNext(claimed -> log.info("As an extraordinary service from Arkivlaget, we're retrying provision of {} users. Cross your fingers.",
+                        claimed.size()))
+                .flatMapMany(Flux::fromIterable)
+                .flatMap(mongoDBPersonalmappe -> provisioningExecutor.submit(mongoDBPersonalmappe.getUsername(), Priority.RETRY)
+                        .onErrorResume(error -> Mono.empty())
+                        .switchIfEmpty(Mono.defer(() -> unresolved(mongoDBPersonalmappe))), properties.getBatchSize())
+                .then();
+    }
+
+    private Mono<MongoDBPersonalmappe> claim(MongoDBPersonalmappe mongoDBPersonalmappe, LocalDateTime now) {
+        return mongoTemplate.findAndModify(
+                query(where("_id").is(mongoDBPersonalmappe.getId()).and("nextAttemptAt").is(mongoDBPersonalmappe.getNextAttemptAt())),
+                Update.update("nextAttemptAt", now.plus(properties.getLease())),
+                FindAndModifyOptions.options().returnNew(true),
+                MongoDBPersonalmappe.class);
+    }
 
-        log.info("As an extraordinary service from Arkivlaget, we're retrying provision of {} users. Cross your fingers.",
-                usernames.size());
+    // The attempt ended without a stored outcome, e.g. an invalid personnel folder.
+    private Mono<MongoDBPersonalmappe> unresolved(MongoDBPersonalmappe claimed) {
+        return mongoDBRepository.findById(claimed.getId())
+                .map(mongoDBPersonalmappe -> {
+                    mongoDBPersonalmappe.setMessage("Retry did not reach a final status");
+                    return responseService.failed(mongoDBPersonalmappe, ErrorClass.TRANSIENT);
+                })
+                .flatMap(mongoDBRepository::save);
+    }
 
-        provisionService.run(usernames, usernames.size())
-                .subscribe(log::trace);
+    // Folders that failed before retries were scheduled per folder are made due once.
+    private Mono<Void> schedulePreviousFailures() {
+        return mongoTemplate.updateMulti(
+                        query(where("orgId").is(organisationProperties.getOrgId())
+                                .and("status").is(HttpStatus.INTERNAL_SERVER_ERROR)
+                                .and("nextAttemptAt").exists(false)
+                                .and("deadLetter").ne(true)),
+                        new Update()
+                                .set("nextAttemptAt", LocalDateTime.now())
+                                .set("errorClass", ErrorClass.TRANSIENT),
+                        MongoDBPersonalmappe.class)
+                .doOnNext(result -> {
+                    if (result.getModifiedCount() > 0) {
+                        log.info("Scheduled retry of {} previously failed user(s)", result.getModifiedCount());
+                    }
+                })
+                .onErrorResume(error -> {
+                    log.warn("Unable to schedule previously failed users: {}", error.getMessage());
+                    return Mono.empty();
+                })
+                .then();
     }
 }
@@ -0,0 +1,105 @@
+package no.novari.personalmappe.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import no.novari.personalmappe.model.MongoDBSchedule;
+import no.novari.personalmappe.model.Priority;
+import no.novari.personalmappe.properties.OrganisationProperties;
+import no.novari.personalmappe.properties.ProvisioningProperties;
+import no.novari.personalmappe.repository.MongoDBScheduleRepository;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.LocalDateTime;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+/**
+ * Provisions employees when an arbeidsforhold comes within the activation window or ends. The instants are
+ * recorded per employee every time the employee is provisioned. Due entries are claimed for the lease period and
+ * queued, and provisioning the employee records the next instant or removes the entry. An entry that is still
+ * due after {@code provisioning.schedule.max-claims} claims is given up.
+ */
+@Slf4j
+@Service
+public class ScheduleService {
+
+    private final WorkQueueService workQueueService;
+    private final MongoDBScheduleRepository mongoDBScheduleRepository;
+    private final ReactiveMongoTemplate mongoTemplate;
+    private final OrganisationProperties organisationProperties;
+    private final ProvisioningProperties.ScheduleProperties properties;
+
+    private Disposable poller;
+
+    public ScheduleService(WorkQueueService workQueueService, MongoDBScheduleRepository mongoDBScheduleRepository, ReactiveMongoTemplate mongoTemplate,
+                           OrganisationProperties organisationProperties, ProvisioningProperties provisioningProperties) {
+        this.workQueueService = workQueueService;
+        this.mongoDBScheduleRepository = mongoDBScheduleRepository;
+        this.mongoTemplate = mongoTemplate;
+        this.organisationProperties = organisationProperties;
+        this.properties = provisioningProperties.getSchedule();
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (!properties.isEnabled()) {
+            return;
+        }
+
+        poller = Flux.interval(properties.getPollInterval())
+                .onBackpressureDrop()
+                .concatMap(tick -> run().onErrorResume(error -> {
+                    log.warn("Schedule poll failed: {}", error.getMessage());
+                    return Mono.empty();
+                }), 1)
+                .subscribe(null, error -> log.error("Schedule poller stopped: {}", error.getMessage()));
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (poller != null) {
+            poller.dispose();
+        }
+    }
+
+    public Mono<Void> run() {
+        LocalDateTime now = LocalDateTime.now();
+
+        return mongoDBScheduleRepository.findByOrgIdAndDueAtLessThanEqual(organisationProperties.getOrgId(), now, Limit.of(properties.getBatchSize()))
+                .concatMap(schedule -> schedule.getClaims() >= properties.getMaxClaims()
+                        ? giveUp(schedule).then(Mono.<MongoDBSchedule>empty())
+                        : claim(schedule, now))
+                .map(MongoDBSchedule::getUsername)
+                .collectList()
+                .filter(usernames -> !usernames.isEmpty())
+                .flatMap(usernames -> workQueueService.enqueue(usernames, Long.MAX_VALUE, Priority.DELTA)
+                        .doOnNext(job -> log.info("Scheduled provisioning of {} user(s) with an arbeidsforhold starting or ending", job.getTotal())))
+                .then();
+    }
+
+    private Mono<MongoDBSchedule> claim(MongoDBSchedule schedule, LocalDateTime now) {
+        return mongoTemplate.findAndModify(
+                query(where("_id").is(schedule.getId()).and("dueAt").is(schedule.getDueAt())),
+                new Update().set("dueAt", now.plus(properties.getLease())).inc("claims", 1),
+                FindAndModifyOptions.options().returnNew(true),
+                MongoDBSchedule.class);
+    }
+
+    // Only the entry as it was read is removed, so an instant stored by a provisioning meanwhile is kept.
+    private Mono<Void> giveUp(MongoDBSchedule schedule) {
+        return mongoTemplate.remove(query(where("_id").is(schedule.getId()).and("dueAt").is(schedule.getDueAt())), MongoDBSchedule.class)
+                .filter(result -> result.getDeletedCount() > 0)
+                .doOnNext(result -> log.warn("Giving up the schedule of {}, still due at {} after {} claim(s)", schedule.getUsername(), schedule.getDueAt(), schedule.getClaims()))
+                .then();
+    }
+}
@@ -0,0 +1,178 @@
+package no.novari.personalmappe.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import no.novari.personalmappe.exception.FinalStatusPendingException;
+import no.novari.personalmappe.properties.ProvisioningProperties;
+import no.novari.personalmappe.repository.FintRepository;
+import no.novari.personalmappe.utilities.LatencyHistogram;
+import no.novari.personalmappe.utilities.RollingHistogram;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+
+import java.net.URI;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Polls the status of accepted requests. A {@code Retry-After} header decides when to ask next. Without one, the
+ * status is asked for when the recent completion times of the same endpoint say it is likely final, at their p50,
+ * p75, p90, p95 and p99, and with exponential backoff beyond that or until enough completions are seen.
+ */
+@Slf4j
+@Service
+public class StatusService {
+    private static final double[] EXPECTED = {50, 75, 90, 95, 99};
+
+    private final FintRepository fintRepository;
+    private final ProvisioningProperties.StatusProperties properties;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, RollingHistogram> completions = new ConcurrentHashMap<>();
+
+    public StatusService(FintRepository fintRepository, ProvisioningProperties provisioningProperties, MeterRegistry meterRegistry) {
+        this.fintRepository = fintRepository;
+        this.properties = provisioningProperties.getStatus();
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Polls until the status is final. When it is not final within {@code provisioning.status.timeout}, fails with
+     * a {@link FinalStatusPendingException} carrying the location, so the caller can continue in the background.
+     */
+    public Mono<ResponseEntity<Object>> poll(ResponseEntity<?> accepted) {
+        URI location = accepted.getHeaders().getLocation();
+        String endpoint = endpoint(location);
+        // Without a location there is no endpoint to learn the completion times of.
+        RollingHistogram histogram = location == null
+                ? null
+                : completions.computeIfAbsent(endpoint, key -> new RollingHistogram(properties.getWindow().dividedBy(10), 10));
+
+        return Mono.defer(() -> {
+            long started = System.currentTimeMillis();
+
+            return poll(location, endpoint, histogram, started, 0, wait(snapshot(histogram), 0, retryAfter(accepted.getHeaders()), 0));
+        });
+    }
+
+    /**
+     * Asks for the status once. A status that is not final fails with a {@link FinalStatusPendingException}.
+     */
+    public Mono<ResponseEntity<Object>> check(URI location) {
+        return fintRepository.getForEntity(Object.class, location)
+                .doOnSubscribe(subscription -> meterRegistry.counter("provisioning.status.polls", "endpoint", endpoint(location)).increment())
+                .map(entity -> {
+                    if (entity.getStatusCode().equals(HttpStatus.ACCEPTED)) {
+                        throw new FinalStatusPendingException(location, retryAfter(entity.getHeaders()));
+                    }
+
+                    return entity;
+                });
+    }
+
+    private Mono<ResponseEntity<Object>> poll(URI location, String endpoint, RollingHistogram histogram, long started, int attempt, Duration wait) {
+        Mono<ResponseEntity<Object>> status = wait.isZero() ? check(location) : Mono.delay(wait).then(check(location));
+
+        return status
+                .doOnNext(entity -> {
+                    if (histogram != null) {
+                        long now = System.currentTimeMillis();
+                        histogram.record(now - started, now);
+                    }
+                })
+                .onErrorResume(FinalStatusPendingException.class, pending -> {
+                    long elapsed = System.currentTimeMillis() - started;
+                    Duration next = wait(snapshot(histogram), elapsed, pending.getRetryAfter(), attempt + 1);
+
+                    if (elapsed + next.toMillis() > properties.getTimeout().toMillis()) {
+                        meterRegistry.counter("provisioning.status.timeouts", "endpoint", endpoint).increment();
+                        log.info("Status at {} not final after {} poll(s), continuing in the background", location, attempt + 1);
+                        return Mono.error(new FinalStatusPendingException(location, next));
+                    }
+
+                    return poll(location, endpoint, histogram, started, attempt + 1, next);
+                });
+    }
+
+    private LatencyHistogram snapshot(RollingHistogram histogram) {
+        if (histogram == null) {
+            return new LatencyHistogram();
+        }
+
+        return histogram.snapshot(properties.getWindow(), System.currentTimeMillis());
+    }
+
+    /**
+     * How long to wait before the next poll, given the completion times of the endpoint and the time elapsed
+     * since the request was accepted. The first poll is not delayed unless there is a reason to.
+     */
+    Duration wait(LatencyHistogram completions, long elapsedMillis, Duration retryAfter, int attempt) {
+        if (retryAfter != null) {
+            return retryAfter;
+        }
+
+        Duration floor = attempt == 0 ? Duration.ZERO : properties.getInitialInterval();
+
+        if (completions.getCount() >= properties.getMinSamples()) {
+            for (double percentile : EXPECTED) {
+                long expected = completions.percentile(percentile);
+
+                if (expected > elapsedMillis) {
+                    return bounded(Duration.ofMillis(expected - elapsedMillis), floor);
+                }
+            }
+        }
+
+        if (attempt == 0) {
+            return Duration.ZERO;
+        }
+
+        return bounded(properties.getInitialInterval().multipliedBy(1L << Math.min(attempt - 1, 20)), floor);
+    }
+
+    private Duration bounded(Duration wait, Duration floor) {
+        if (wait.compareTo(floor) < 0) {
+            return floor;
+        }
+
+        return wait.compareTo(properties.getMaxInterval()) > 0 ? properties.getMaxInterval() : wait;
+    }
+
+    /**
+     * {@code Retry-After} as delay-seconds or as an HTTP date, {@code null} if it is missing or invalid.
+     */
+    static Duration retryAfter(HttpHeaders headers) {
+        String value = StringUtils.trimToNull(headers.getFirst(HttpHeaders.RETRY_AFTER));
+
+        if (value == null) {
+            return null;
+        }
+
+        try {
+            return Duration.ofSeconds(Math.max(0, Long.parseLong(value)));
+        } catch (NumberFormatException e) {
+            try {
+                Duration until = Duration.between(ZonedDateTime.now(), ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME));
+                return until.isNegative() ? Duration.ZERO : until;
+            } catch (DateTimeParseException ex) {
+                return null;
+            }
+        }
+    }
+
+    // Status locations end with a per-request id, so the endpoint is the location without its last segment.
+    static String endpoint(URI location) {
+        if (location == null) {
+            return "unknown";
+        }
+
+        return StringUtils.defaultString(location.getHost()) + StringUtils.defaultIfEmpty(StringUtils.substringBeforeLast(location.getPath(), "/"), "/");
+    }
+}
@@ -0,0 +1,375 @@
+package no.novari.personalmappe.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import no.novari.personalmappe.model.MongoDBJob;
+import no.novari.personalmappe.model.MongoDBWorkItem;
+import no.novari.personalmappe.model.Priority;
+import no.novari.personalmappe.properties.OrganisationProperties;
+import no.novari.personalmappe.properties.ProvisioningProperties;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+/**
+ * Durable outbox in front of the {@link ProvisioningExecutor}. A run is stored as a job with one work item per
+ * username. Work items are claimed in small batches, handed to the executor and acknowledged when provisioning
+ * of the user has finished, so a restarted instance continues with the items that were never acknowledged.
+ * <p>
+ * Repeated requests for the same user on a coalesced lane are merged: the queued work item is superseded by the
+ * new one, which is held back until the burst of changes has settled. The new work item is stored before the older
+ * ones are superseded, so the user is never left without a queued request.
+ */
+@Slf4j
+@Service
+public class WorkQueueService {
+
+    private final ReactiveMongoTemplate mongoTemplate;
+    private final ProvisioningExecutor provisioningExecutor;
+    private final OrganisationProperties organisationProperties;
+    private final JobRegistry jobRegistry;
+    private final ProvisioningProperties.WorkQueueProperties properties;
+    private final ProvisioningProperties.CoalesceProperties coalesce;
+
+    private final Map<Priority, AtomicInteger> inProgress = new EnumMap<>(Priority.class);
+
+    private Disposable poller;
+
+    public WorkQueueService(ReactiveMongoTemplate mongoTemplate, ProvisioningExecutor provisioningExecutor, JobRegistry jobRegistry, OrganisationProperties organisationProperties, ProvisioningProperties provisioningProperties) {
+        this.mongoTemplate = mongoTemplate;
+        this.provisioningExecutor = provisioningExecutor;
+        this.jobRegistry = jobRegistry;
+        this.organisationProperties = organisationProperties;
+        this.properties = provisioningProperties.getWorkQueue();
+        this.coalesce = provisioningProperties.getCoalesce();
+
+        for (Priority priority : Priority.values()) {
+            inProgress.put(priority, new AtomicInteger());
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        // Work items claimed before the restart are claimed again when their lease expires, so items claimed by
+        // other instances are left alone.
+        poller = mongoTemplate.find(query(where("orgId").is(organisationProperties.getOrgId()).and("state").is(MongoDBJob.State.ENQUEUEING)), MongoDBJob.class)
+                .concatMap(job -> mongoTemplate.count(query(where("jobId").is(job.getId())), MongoDBWorkItem.class)
+                        .doOnNext(total -> log.info("Starting job {} with the {} user(s) enqueued before the restart", job.getId(), total))
+                        .flatMap(total -> start(job, total)))
+                .thenMany(mongoTemplate.find(query(where("orgId").is(organisationProperties.getOrgId()).and("state").is(MongoDBJob.State.RUNNING)), MongoDBJob.class))
+                .concatMap(this::recount)
+                .onErrorResume(error -> {
+                    log.warn("Unable to resume jobs: {}", error.getMessage());
+                    return Mono.empty();
+                })
+                .thenMany(Flux.interval(properties.getPollInterval()))
+                .onBackpressureDrop()
+                .concatMap(tick -> poll().onErrorResume(error -> {
+                    log.warn("Work queue poll failed: {}", error.getMessage());
+                    return Mono.empty();
+                }), 1)
+                .subscribe(null, error -> log.error("Work queue poller stopped: {}", error.getMessage()));
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (poller != null) {
+            poller.dispose();
+        }
+    }
+
+    public Mono<MongoDBJob> enqueue(List<String> usernames, long limit, Priority priority) {
+        return enqueue(usernames, limit, priority, MongoDBJob.Kind.PROVISIONING);
+    }
+
+    public Mono<MongoDBJob> enqueue(List<String> usernames, long limit, Priority priority, MongoDBJob.Kind kind) {
+        return enqueue(Flux.fromStream(usernames.stream().distinct()), limit, priority, kind);
+    }
+
+    public Mono<MongoDBJob> enqueue(Flux<String> usernames, long limit, Priority priority) {
+        return enqueue(usernames, limit, priority, MongoDBJob.Kind.PROVISIONING);
+    }
+
+    /**
+     * Enqueues the usernames as they arrive, in batches, so the list of users is never held in memory. The job
+     * stays {@code ENQUEUEING} until the stream completes and its total is known.
+     * <p>
+     * When the stream fails, the job is started with the users enqueued so far and the error is passed on. Their
+     * work items may already have superseded older requests, so removing them would lose those users.
+     */
+    public Mono<MongoDBJob> enqueue(Flux<String> usernames, long limit, Priority priority, MongoDBJob.Kind kind) {
+        return mongoTemplate.insert(MongoDBJob.builder()
+                        .id(UUID.randomUUID().toString())
+                        .orgId(organisationProperties.getOrgId())
+                        .priority(priority)
+                        .kind(kind)
+                        .state(MongoDBJob.State.ENQUEUEING)
+                        .build())
+                .flatMap(job -> {
+                    LocalDateTime enqueuedAt = LocalDateTime.now().truncatedTo(ChronoUnit.MILLIS);
+
+                    return usernames
+                            .take(limit)
+                            .index()
+                            .map(username -> workItem(job, username.getT2(), username.getT1(), enqueuedAt))
+                            .buffer(500)
+                            .concatMap(batch -> mongoTemplate.insert(batch, MongoDBWorkItem.class)
+                                    .flatMap(this::coalesce, 8)
+                                    .count())
+                            .reduce(0L, Long::sum)
+                            .flatMap(total -> start(job, total))
+                            .onErrorResume(error -> mongoTemplate.count(query(where("jobId").is(job.getId())), MongoDBWorkItem.class)
+                                    .doOnNext(total -> log.warn("Enqueueing job {} failed, starting it with the {} user(s) enqueued so far: {}", job.getId(), total, error.getMessage()))
+                                    .flatMap(total -> start(job, total))
+                                    .then(Mono.error(error)));
+                })
+                .doOnNext(job -> log.info("Enqueued {} user(s) in {} job {}", job.getTotal(), priority, job.getId()));
+    }
+
+    /**
+     * Acknowledges every queued, coalesced work item of the user as superseded, and returns them. Used when a
+     * newer request for the user replaces them, or when the user is provisioned right away.
+     */
+    public Flux<MongoDBWorkItem> supersede(String username) {
+        return supersede(username, where("username").is(username));
+    }
+
+    private Flux<MongoDBWorkItem> supersede(String username, Criteria criteria) {
+        return supersedeNext(username, criteria)
+                .expand(workItem -> supersedeNext(username, criteria));
+    }
+
+    public Mono<MongoDBJob> getJob(String id) {
+        return mongoTemplate.findOne(query(where("_id").is(id).and("orgId").is(organisationProperties.getOrgId())), MongoDBJob.class);
+    }
+
+    /**
+     * Whether a provisioning job of the lane is enqueueing or running. Reconciliation repairs share the lanes, but
+     * are not counted, so a repair never holds back the nightly bulk run. Jobs stored without a kind are
+     * provisioning jobs.
+     */
+    public Mono<Boolean> isRunning(Priority priority) {
+        return mongoTemplate.exists(query(where("orgId").is(organisationProperties.getOrgId())
+                        .and("priority").is(priority)
+                        .and("kind").ne(MongoDBJob.Kind.RECONCILIATION)
+                        .and("state").in(MongoDBJob.State.ENQUEUEING, MongoDBJob.State.RUNNING)),
+                MongoDBJob.class);
+    }
+
+    Mono<Void> poll() {
+        return Flux.fromArray(Priority.values())
+                .concatMap(this::poll)
+                .then();
+    }
+
+    private Flux<MongoDBWorkItem> poll(Priority priority) {
+        AtomicInteger counter = inProgress.get(priority);
+
+        return claimNext(priority, counter)
+                .expand(workItem -> claimNext(priority, counter))
+                .doOnNext(workItem -> provisioningExecutor.submit(workItem.getUsername(), priority)
+                        .map(folder -> folder.getStatus() == null
+                                ? new Outcome("UNKNOWN", false)
+                                : new Outcome(folder.getStatus().name(), folder.getStatus().isError()))
+                        .defaultIfEmpty(new Outcome("SKIPPED", false))
+                        .onErrorReturn(new Outcome("ERROR", true))
+                        .flatMap(outcome -> acknowledge(workItem, outcome))
+                        .doFinally(signal -> counter.decrementAndGet())
+                        .subscribe(null, error -> log.error("Unable to acknowledge work item {}: {}", workItem.getId(), error.getMessage())));
+    }
+
+    private Mono<MongoDBWorkItem> claimNext(Priority priority, AtomicInteger counter) {
+        if (counter.get() >= properties.getBatchSize()) {
+            return Mono.empty();
+        }
+
+        return claim(priority)
+                .doOnNext(workItem -> counter.incrementAndGet());
+    }
+
+    /**
+     * Work items for coalesced priorities are due when no newer request for the user has arrived within the
+     * window, but never later than {@code maxDelay} after the first request in the burst.
+     */
+    private MongoDBWorkItem workItem(MongoDBJob job, String username, long sequence, LocalDateTime enqueuedAt) {
+        return MongoDBWorkItem.builder()
+                .id(job.getId() + "_" + sequence)
+                .jobId(job.getId())
+                .orgId(job.getOrgId())
+                .username(username)
+                .priority(job.getPriority())
+                .state(MongoDBWorkItem.State.QUEUED)
+                .sequence(sequence)
+                .enqueuedAt(enqueuedAt)
+                .requestedAt(enqueuedAt)
+                .notBefore(coalesce.getPriorities().contains(job.getPriority()) ? notBefore(enqueuedAt, enqueuedAt) : enqueuedAt)
+                .build();
+    }
+
+    /**
+     * Supersedes the queued work items of the user that were enqueued before the stored one, and moves the stored
+     * one forward to the first request it replaces. Work items enqueued at the same time are ordered by job, so two
+     * concurrent jobs never supersede each other.
+     */
+    private Mono<MongoDBWorkItem> coalesce(MongoDBWorkItem workItem) {
+        if (!coalesce.getPriorities().contains(workItem.getPriority())) {
+            return Mono.just(workItem);
+        }
+
+        Criteria older = where("username").is(workItem.getUsername())
+                .and("_id").ne(workItem.getId())
+                .orOperator(
+                        where("enqueuedAt").lt(workItem.getEnqueuedAt()),
+                        where("enqueuedAt").is(workItem.getEnqueuedAt()).and("jobId").lt(workItem.getJobId()));
+
+        return supersede(workItem.getUsername(), older)
+                .map(superseded -> Optional.ofNullable(superseded.getRequestedAt()).orElse(superseded.getEnqueuedAt()))
+                .filter(requestedAt -> requestedAt.isBefore(workItem.getRequestedAt()))
+                .reduce((first, second) -> first.isBefore(second) ? first : second)
+                .flatMap(requestedAt -> {
+                    workItem.setRequestedAt(requestedAt);
+                    workItem.setNotBefore(notBefore(workItem.getEnqueuedAt(), requestedAt));
+
+                    return mongoTemplate.updateFirst(query(where("_id").is(workItem.getId()).and("state").is(MongoDBWorkItem.State.QUEUED)),
+                                    new Update().set("requestedAt", workItem.getRequestedAt()).set("notBefore", workItem.getNotBefore()),
+                                    MongoDBWorkItem.class)
+                            .thenReturn(workItem);
+                })
+                .defaultIfEmpty(workItem);
+    }
+
+    private LocalDateTime notBefore(LocalDateTime enqueuedAt, LocalDateTime requestedAt) {
+        LocalDateTime quiet = enqueuedAt.plus(coalesce.getWindow());
+        LocalDateTime deadline = requestedAt.plus(coalesce.getMaxDelay());
+
+        return quiet.isBefore(deadline) ? quiet : deadline;
+    }
+
+    private Mono<MongoDBWorkItem> supersedeNext(String username, Criteria criteria) {
+        Query query = query(where("orgId").is(organisationProperties.getOrgId())
+                .and("state").is(MongoDBWorkItem.State.QUEUED)
+                .and("priority").in(coalesce.getPriorities()))
+                .addCriteria(criteria);
+
+        return mongoTemplate.findAndModify(query, Update.update("state", MongoDBWorkItem.State.DONE), MongoDBWorkItem.class)
+                .flatMap(workItem -> progress(workItem, new Outcome("COALESCED", false))
+                        .thenReturn(workItem))
+                .doOnNext(workItem -> log.debug("Coalesced {} from job {}", username, workItem.getJobId()));
+    }
+
+    private Mono<MongoDBWorkItem> claim(Priority priority) {
+        LocalDateTime now = LocalDateTime.now();
+
+        Query query = query(where("orgId").is(organisationProperties.getOrgId())
+                .and("priority").is(priority)
+                .and("notBefore").not().gt(now)
+                .orOperator(
+                        where("state").is(MongoDBWorkItem.State.QUEUED),
+                        where("state").is(MongoDBWorkItem.State.CLAIMED).and("claimedAt").lt(now.minus(properties.getLease()))))
+                .with(Sort.by("enqueuedAt", "sequence"));
+
+        Update update = new Update()
+                .set("state", MongoDBWorkItem.State.CLAIMED)
+                .set("claimedAt", now)
+                .inc("attempts", 1);
+
+        return mongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().returnNew(true), MongoDBWorkItem.class);
+    }
+
+    /**
+     * Only the current claim is acknowledged. A provisioning that outlived its lease has been claimed again, and
+     * counting it twice would complete the job while some of its work items are still queued.
+     */
+    private Mono<Void> acknowledge(MongoDBWorkItem workItem, Outcome outcome) {
+        return mongoTemplate.updateFirst(query(where("_id").is(workItem.getId())
+                                .and("state").is(MongoDBWorkItem.State.CLAIMED)
+                                .and("claimedAt").is(workItem.getClaimedAt())
+                                .and("attempts").is(workItem.getAttempts())),
+                        Update.update("state", outcome.failed() ? MongoDBWorkItem.State.FAILED : MongoDBWorkItem.State.DONE),
+                        MongoDBWorkItem.class)
+                .flatMap(result -> {
+                    if (result.getModifiedCount() != 1) {
+                        log.debug("Work item {} of {} was claimed again, not acknowledging", workItem.getId(), workItem.getUsername());
+                        return Mono.empty();
+                    }
+
+                    return progress(workItem, outcome);
+                });
+    }
+
+    private Mono<Void> progress(MongoDBWorkItem workItem, Outcome outcome) {
+        return mongoTemplate.findAndModify(query(where("_id").is(workItem.getJobId())),
+                        new Update().inc("processed", 1).inc("failed", outcome.failed() ? 1 : 0),
+                        FindAndModifyOptions.options().returnNew(true),
+                        MongoDBJob.class)
+                .doOnNext(job -> jobRegistry.acknowledged(job, workItem.getUsername(), outcome.name()))
+                .filter(job -> job.getState() == MongoDBJob.State.RUNNING && job.getProcessed() >= job.getTotal())
+                .flatMap(this::complete);
+    }
+
+    private Mono<MongoDBJob> start(MongoDBJob job, long total) {
+        return mongoTemplate.findAndModify(query(where("_id").is(job.getId())),
+                        new Update().set("state", MongoDBJob.State.RUNNING).set("total", total),
+                        FindAndModifyOptions.options().returnNew(true),
+                        MongoDBJob.class)
+                .flatMap(started -> started.getProcessed() >= started.getTotal()
+                        ? complete(started).thenReturn(started)
+                        : Mono.just(started));
+    }
+
+    /**
+     * Completes a running job whose work items have all been acknowledged, with its counts taken from the work
+     * items, in case the instance stopped between acknowledging an item and counting it. Jobs with open work items
+     * are left to the instances working on them, as a recount would race with their counting.
+     */
+    private Mono<Void> recount(MongoDBJob job) {
+        return mongoTemplate.exists(query(where("jobId").is(job.getId()).and("state").in(MongoDBWorkItem.State.QUEUED, MongoDBWorkItem.State.CLAIMED)), MongoDBWorkItem.class)
+                .filter(open -> !open)
+                .flatMap(open -> Mono.zip(
+                        mongoTemplate.count(query(where("jobId").is(job.getId()).and("state").in(MongoDBWorkItem.State.DONE, MongoDBWorkItem.State.FAILED)), MongoDBWorkItem.class),
+                        mongoTemplate.count(query(where("jobId").is(job.getId()).and("state").is(MongoDBWorkItem.State.FAILED)), MongoDBWorkItem.class)))
+                .flatMap(counts -> mongoTemplate.findAndModify(query(where("_id").is(job.getId()).and("state").is(MongoDBJob.State.RUNNING)),
+                        new Update().set("processed", counts.getT1()).set("failed", counts.getT2()),
+                        FindAndModifyOptions.options().returnNew(true),
+                        MongoDBJob.class))
+                .doOnNext(recounted -> log.info("Completing job {} with all {} user(s) acknowledged before the restart", recounted.getId(), recounted.getProcessed()))
+                .flatMap(this::complete);
+    }
+
+    private Mono<Void> complete(MongoDBJob job) {
+        return mongoTemplate.updateFirst(query(where("_id").is(job.getId())),
+                        Update.update("state", MongoDBJob.State.COMPLETED),
+                        MongoDBJob.class)
+                .then(mongoTemplate.remove(query(where("jobId").is(job.getId())), MongoDBWorkItem.class))
+                .doOnSuccess(result -> {
+                    log.info("Provisioning of {} user(s) have now completed. {} failed.", job.getTotal(), job.getFailed());
+                    job.setState(MongoDBJob.State.COMPLETED);
+                    jobRegistry.completed(job);
+                })
+                .then();
+    }
+
+    private record Outcome(String name, boolean failed) {
+    }
+}
@@ -0,0 +1,149 @@
+package no.novari.personalmappe.utilities;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts a stream of single-line strings with bounded memory. The input is cut into chunks of {@code chunkSize}
+ * that are sorted in memory and written to temporary files, which are merged when the input completes. At most
+ * one chunk and one line per file is held in memory. The files are deleted when the sort completes, fails or is
+ * cancelled.
+ */
+public class ExternalSort {
+
+    public static Flux<String> sort(Flux<String> input, Comparator<String> comparator, int chunkSize, Scheduler scheduler) {
+        return Flux.using(Spills::new, spills -> input
+                        .buffer(chunkSize)
+                        .concatMap(chunk -> Mono.fromCallable(() -> spill(chunk, comparator, spills)).subscribeOn(scheduler))
+                        .then(Mono.fromCallable(spills::paths))
+                        .flatMapMany(paths -> Flux.using(() -> open(paths), runs -> merge(runs, comparator), ExternalSort::close)
+                                .subscribeOn(scheduler)),
+                Spills::delete);
+    }
+
+    private static Path spill(List<String> chunk, Comparator<String> comparator, Spills spills) throws IOException {
+        chunk.sort(comparator);
+
+        Path run = spills.create();
+
+        try (BufferedWriter writer = Files.newBufferedWriter(run, StandardCharsets.UTF_8)) {
+            for (String line : chunk) {
+                writer.write(line);
+                writer.newLine();
+            }
+        }
+
+        return run;
+    }
+
+    private static List<Run> open(List<Path> paths) throws IOException {
+        List<Run> runs = new ArrayList<>(paths.size());
+
+        for (Path path : paths) {
+            runs.add(new Run(path, Files.newBufferedReader(path, StandardCharsets.UTF_8)));
+        }
+
+        return runs;
+    }
+
+    private static Flux<String> merge(List<Run> runs, Comparator<String> comparator) {
+        return Flux.generate(() -> {
+            PriorityQueue<Head> heads = new PriorityQueue<>((first, second) -> comparator.compare(first.line(), second.line()));
+
+            for (Run run : runs) {
+                advance(run, heads);
+            }
+
+            return heads;
+        }, (heads, sink) -> {
+            Head head = heads.poll();
+
+            if (head == null) {
+                sink.complete();
+                return heads;
+            }
+
+            sink.next(head.line());
+            advance(head.run(), heads);
+
+            return heads;
+        });
+    }
+
+    private static void advance(Run run, PriorityQueue<Head> heads) {
+        try {
+            String line = run.reader().readLine();
+
+            if (line != null) {
+                heads.add(new Head(line, run));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void close(List<Run> runs) {
+        for (Run run : runs) {
+            try {
+                run.reader().close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * The files spilled by one sort. A spill that finishes after the sort was cancelled is refused, so no file
+     * outlives the sort.
+     */
+    private static final class Spills {
+        private final List<Path> paths = new ArrayList<>();
+        private boolean deleted;
+
+        synchronized Path create() throws IOException {
+            if (deleted) {
+                throw new IOException("The sort has ended");
+            }
+
+            Path path = Files.createTempFile("sort-", ".run");
+            paths.add(path);
+
+            return path;
+        }
+
+        synchronized List<Path> paths() {
+            return List.copyOf(paths);
+        }
+
+        synchronized void delete() {
+            deleted = true;
+
+            for (Path path : paths) {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException ignored) {
+                }
+            }
+
+            paths.clear();
+        }
+    }
+
+    private record Run(Path path, BufferedReader reader) {
+    }
+
+    private record Head(String line, Run run) {
+    }
+}
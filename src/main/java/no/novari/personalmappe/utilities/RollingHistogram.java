@@ -0,0 +1,49 @@
+package no.novari.personalmappe.utilities;
+
+import java.time.Duration;
+
+/**
+ * Ring of {@link LatencyHistogram}s, one per time slot. A snapshot merges the slots that overlap the requested
+ * window, so old values roll out slot by slot.
+ */
+public class RollingHistogram {
+    private final long slotMillis;
+    private final LatencyHistogram[] slots;
+    private final long[] epochs;
+
+    public RollingHistogram(Duration slotLength, int slotCount) {
+        this.slotMillis = slotLength.toMillis();
+        this.slots = new LatencyHistogram[slotCount];
+        this.epochs = new long[slotCount];
+    }
+
+    public synchronized void record(long value, long nowMillis) {
+        long epoch = nowMillis / slotMillis;
+        int index = (int) (epoch % slots.length);
+
+        if (slots[index] == null) {
+            slots[index] = new LatencyHistogram();
+        } else if (epochs[index] != epoch) {
+            slots[index].reset();
+        }
+
+        epochs[index] = epoch;
+        slots[index].record(value);
+    }
+
+    public synchronized LatencyHistogram snapshot(Duration window, long nowMillis) {
+        long current = nowMillis / slotMillis;
+        long span = Math.min(slots.length, Math.max(1, (window.toMillis() + slotMillis - 1) / slotMillis));
+        LatencyHistogram snapshot = new LatencyHistogram();
+
+        for (long epoch = current - span + 1; epoch <= current; epoch++) {
+            int index = (int) (epoch % slots.length);
+
+            if (slots[index] != null && epochs[index] == epoch) {
+                snapshot.add(slots[index]);
+            }
+        }
+
+        return snapshot;
+    }
+}
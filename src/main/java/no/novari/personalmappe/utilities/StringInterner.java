@@ -0,0 +1,19 @@
+package no.novari.personalmappe.utilities;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * Canonical instances of values repeated across employees, such as usernames of leaders and organisation ids.
+ * Entries are weakly held and disappear with the last personnel folder referring to them.
+ */
+public final class StringInterner {
+    private static final Interner<String> INTERNER = Interners.newWeakInterner();
+
+    private StringInterner() {
+    }
+
+    public static String intern(String value) {
+        return value == null ? null : INTERNER.intern(value);
+    }
+}
@@ -0,0 +1,61 @@
+package no.novari.personalmappe.configuration
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import reactor.core.scheduler.Schedulers
+import spock.lang.Specification
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class MeteredSchedulerSpec extends Specification {
+    SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry()
+
+    def "exports queued and running tasks as queue depth and utilisation"() {
+        given:
+        def scheduler = new MeteredScheduler(Schedulers.newSingle('test'), 'test', 1, meterRegistry)
+        def release = new CountDownLatch(1)
+        def started = new CountDownLatch(1)
+
+        when:
+        scheduler.schedule { started.countDown(); release.await() }
+        scheduler.schedule {}
+        started.await(1, TimeUnit.SECONDS)
+
+        then:
+        gauge('provisioning.scheduler.active') == 1
+        gauge('provisioning.scheduler.queued') == 1
+        gauge('provisioning.scheduler.utilisation') == 1.0
+
+        when:
+        release.countDown()
+        def done = new CountDownLatch(1)
+        scheduler.schedule { done.countDown() }
+        done.await(1, TimeUnit.SECONDS)
+        Thread.sleep(50)
+
+        then:
+        gauge('provisioning.scheduler.queued') == 0
+        gauge('provisioning.scheduler.active') == 0
+
+        cleanup:
+        scheduler.dispose()
+    }
+
+    def "tasks disposed before they run leave the queue"() {
+        given:
+        def scheduler = new MeteredScheduler(Schedulers.newSingle('test'), 'test', 1, meterRegistry)
+
+        when:
+        scheduler.schedule({}, 1, TimeUnit.HOURS).dispose()
+
+        then:
+        gauge('provisioning.scheduler.queued') == 0
+
+        cleanup:
+        scheduler.dispose()
+    }
+
+    private double gauge(String name) {
+        meterRegistry.get(name).tag('scheduler', 'test').gauge().value()
+    }
+}
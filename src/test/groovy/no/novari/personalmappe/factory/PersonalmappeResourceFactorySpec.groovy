@@ -6,6 +6,8 @@ import no.fint.model.felles.Person
 import no.fint.model.resource.Link
 import no.novari.personalmappe.factory.PersonalmappeResourceFactory
 import no.novari.personalmappe.model.GraphQLPersonalmappe
+import no.novari.personalmappe.model.Personnel
+import no.novari.personalmappe.model.Transition
 import no.novari.personalmappe.properties.OrganisationProperties
 import spock.lang.Specification
 
@@ -122,6 +124,65 @@ class PersonalmappeResourceFactorySpec extends Specification {
         resource.leder.first() == Link.with(Personalressurs.class, 'brukernavn', 'brukernavn-leder-1')
     }
 
+    def "personnel of employees with the same leader share the leader and workplace instances"() {
+        given:
+        def first = getPersonalressurs('brukernavn-1', new String('brukernavn-leder'), 'brukernavn-leder-leder', new String('organisasjonsid'), 'F', true, LocalDateTime.now().minusDays(1), null)
+        def second = getPersonalressurs('brukernavn-2', new String('brukernavn-leder'), 'brukernavn-leder-leder', new String('organisasjonsid'), 'F', true, LocalDateTime.now().minusDays(1), null)
+
+        when:
+        def firstPersonnel = personalmappeResourceFactory.toPersonnel(first, organisationProperties, ['organisasjonsid']).get()
+        def secondPersonnel = personalmappeResourceFactory.toPersonnel(second, organisationProperties, ['organisasjonsid']).get()
+
+        then:
+        firstPersonnel.leader().is(secondPersonnel.leader())
+        firstPersonnel.workplace().is(secondPersonnel.workplace())
+    }
+
+    def "personnel expands to the same links as the factory builds"() {
+        given:
+        def personnel = new Personnel('brukernavn', 'fodselsnummer', new Personnel.Name('fornavn', null, 'etternavn'), 'brukernavn-leder', 'organisasjonsid')
+
+        when:
+        def resource = personalmappeResourceFactory.toPersonalmappeResource(personnel)
+
+        then:
+        resource.navn.fornavn == 'fornavn'
+        resource.tittel == 'DUMMY'
+        resource.person.first().href == Link.with(Person.class, 'fodselsnummer', 'fodselsnummer').href
+        resource.personalressurs.first().href == Link.with(Personalressurs.class, 'brukernavn', 'brukernavn').href
+        resource.arbeidssted.first().href == Link.with(Organisasjonselement.class, 'organisasjonsid', 'organisasjonsid').href
+        resource.leder.first().href == Link.with(Personalressurs.class, 'brukernavn', 'brukernavn-leder').href
+    }
+
+    def "no valid arbeidsforhold gives no personnel"() {
+        given:
+        def personalressurs = getPersonalressurs('brukernavn', 'brukernavn-leder', 'brukernavn-leder-leder', 'organisasjonsid', 'X', true, LocalDateTime.now().minusDays(1), null)
+
+        expect:
+        personalmappeResourceFactory.toPersonnel(personalressurs, organisationProperties, ['organisasjonsid']).isEmpty()
+    }
+
+    def "transitions are the future activation and deactivation instants, earliest first"() {
+        given:
+        def now = LocalDateTime.now()
+        def personalressurs = getPersonalressurs('brukernavn', 'brukernavn-leder', 'brukernavn-leder-leder', 'organisasjonsid', 'F', true, now.plusWeeks(3), now.plusMonths(6))
+
+        when:
+        def transitions = personalmappeResourceFactory.getTransitions(personalressurs, organisationProperties, now)
+
+        then:
+        transitions == [new Transition(Transition.Kind.ACTIVATION, now.plusWeeks(1)), new Transition(Transition.Kind.DEACTIVATION, now.plusMonths(6))]
+    }
+
+    def "transitions in the past are left out"() {
+        given:
+        def now = LocalDateTime.now()
+        def personalressurs = getPersonalressurs('brukernavn', 'brukernavn-leder', 'brukernavn-leder-leder', 'organisasjonsid', 'F', true, now.minusDays(1), now.plusDays(1))
+
+        expect:
+        personalmappeResourceFactory.getTransitions(personalressurs, organisationProperties, now) == [new Transition(Transition.Kind.DEACTIVATION, now.plusDays(1))]
+    }
+
     GraphQLPersonalmappe.Personalressurs getPersonalressurs(String brukernavn, String brukernavnLeder, String brukernavnLederLeder, String organisasjonsId,
                                                             String personalressurskategori, boolean hovedstilling, LocalDateTime start, LocalDateTime slutt) {
         return new GraphQLPersonalmappe.Personalressurs(
@@ -0,0 +1,76 @@
+package no.novari.personalmappe.repository
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import no.novari.personalmappe.properties.OrganisationProperties
+import no.novari.personalmappe.properties.ProvisioningProperties
+import org.springframework.security.core.Authentication
+import org.springframework.security.oauth2.client.OAuth2AuthorizeRequest
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient
+import org.springframework.security.oauth2.client.ReactiveOAuth2AuthorizedClientManager
+import org.springframework.security.oauth2.core.OAuth2AccessToken
+import reactor.core.publisher.Mono
+import reactor.core.publisher.Sinks
+import spock.lang.Specification
+
+import java.time.Instant
+import java.time.temporal.ChronoUnit
+
+class AccessTokenHolderSpec extends Specification {
+    ReactiveOAuth2AuthorizedClientManager authorizedClientManager = Mock()
+    SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry()
+
+    AccessTokenHolder accessTokenHolder = new AccessTokenHolder(authorizedClientManager,
+            new OrganisationProperties(registration: 'fint', username: 'username', password: 'password'),
+            Mock(Authentication), new ProvisioningProperties(), meterRegistry)
+
+    def "concurrent callers share a single token fetch"() {
+        given:
+        def response = Sinks.one()
+
+        when:
+        def first = accessTokenHolder.getToken().toFuture()
+        def second = accessTokenHolder.getToken().toFuture()
+        response.tryEmitValue(authorizedClient(Instant.now().plus(1, ChronoUnit.HOURS)))
+
+        then:
+        1 * authorizedClientManager.authorize(_ as OAuth2AuthorizeRequest) >> response.asMono()
+        first.get() == 'token'
+        second.get() == 'token'
+    }
+
+    def "a valid token is returned without asking the client manager"() {
+        given:
+        1 * authorizedClientManager.authorize(_ as OAuth2AuthorizeRequest) >> Mono.just(authorizedClient(Instant.now().plus(1, ChronoUnit.HOURS)))
+        accessTokenHolder.getToken().block()
+
+        when:
+        def token = accessTokenHolder.getToken().block()
+
+        then:
+        0 * authorizedClientManager.authorize(_)
+        token == 'token'
+    }
+
+    def "a failed token fetch is counted and can be retried"() {
+        when:
+        accessTokenHolder.getToken().block()
+
+        then:
+        1 * authorizedClientManager.authorize(_ as OAuth2AuthorizeRequest) >> Mono.error(new IllegalStateException('idp down'))
+        thrown(IllegalStateException)
+        meterRegistry.counter('provisioning.token.failures').count() == 1
+
+        when:
+        def token = accessTokenHolder.getToken().block()
+
+        then:
+        1 * authorizedClientManager.authorize(_ as OAuth2AuthorizeRequest) >> Mono.just(authorizedClient(Instant.now().plus(1, ChronoUnit.HOURS)))
+        token == 'token'
+    }
+
+    OAuth2AuthorizedClient authorizedClient(Instant expiresAt) {
+        return Stub(OAuth2AuthorizedClient) {
+            getAccessToken() >> new OAuth2AccessToken(OAuth2AccessToken.TokenType.BEARER, 'token', Instant.now(), expiresAt)
+        }
+    }
+}
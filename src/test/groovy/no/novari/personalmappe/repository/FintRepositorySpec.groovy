@@ -6,14 +6,12 @@ import no.fint.model.resource.administrasjon.personal.PersonalressursResources
 import no.fint.model.resource.arkiv.personal.PersonalmappeResource
 import no.novari.personalmappe.model.GraphQLPersonalmappe
 import no.novari.personalmappe.model.GraphQLQuery
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
 import no.novari.personalmappe.properties.OrganisationProperties
+import no.novari.personalmappe.properties.ProvisioningProperties
 import no.novari.personalmappe.repository.FintRepository
 import okhttp3.mockwebserver.MockResponse
 import okhttp3.mockwebserver.MockWebServer
-import org.springframework.security.core.Authentication
-import org.springframework.security.oauth2.client.OAuth2AuthorizeRequest
-import org.springframework.security.oauth2.client.OAuth2AuthorizedClient
-import org.springframework.security.oauth2.client.ReactiveOAuth2AuthorizedClientManager
 import org.springframework.web.reactive.function.client.WebClient
 import reactor.core.publisher.Mono
 import spock.lang.Specification
@@ -22,8 +20,8 @@ class FintRepositorySpec extends Specification {
     MockWebServer mockWebServer = new MockWebServer()
     WebClient webClient
 
-    ReactiveOAuth2AuthorizedClientManager authorizedClientManager = Stub(ReactiveOAuth2AuthorizedClientManager) {
-        authorize(_ as OAuth2AuthorizeRequest) >> Mono.just(Mock(OAuth2AuthorizedClient))
+    AccessTokenHolder accessTokenHolder = Stub(AccessTokenHolder) {
+        getToken() >> Mono.just('token')
     }
 
     OrganisationProperties organisationProperties = new OrganisationProperties(
@@ -33,7 +31,9 @@ class FintRepositorySpec extends Specification {
 
     void setup() {
         webClient = WebClient.builder().build()
-        fintRepository = new FintRepository(webClient, authorizedClientManager, organisationProperties, Mock(Authentication))
+        fintRepository = new FintRepository(FintWebClients.of(webClient), accessTokenHolder,
+                new HttpResponseCache(new ProvisioningProperties(), new ObjectMapper(), new SimpleMeterRegistry()), organisationProperties,
+                new HedgedRequests(new ProvisioningProperties(), new SimpleMeterRegistry()))
     }
 
     def "get() for given type returns resources of given type"() {
@@ -50,6 +50,98 @@ class FintRepositorySpec extends Specification {
         resources.totalItems == 1
     }
 
+    def "get() revalidates cached response and reuses body when not modified"() {
+        given:
+        mockWebServer.enqueue(new MockResponse()
+                .setBody(new ObjectMapper().writeValueAsString(getPersonalressursResources()))
+                .setHeader('content-type', 'application/json')
+                .setHeader('etag', '"v1"')
+                .setResponseCode(200))
+        mockWebServer.enqueue(new MockResponse()
+                .setHeader('etag', '"v1"')
+                .setResponseCode(304))
+        def uri = URI.create(mockWebServer.url("/").toString())
+
+        when:
+        def first = fintRepository.get(PersonalressursResources.class, uri).block()
+        def second = fintRepository.get(PersonalressursResources.class, uri).block()
+
+        then:
+        mockWebServer.takeRequest().getHeader('If-None-Match') == null
+        mockWebServer.takeRequest().getHeader('If-None-Match') == '"v1"'
+        !second.is(first)
+        second.totalItems == 1
+    }
+
+    def "get() never hands out the cached collection itself"() {
+        given:
+        mockWebServer.enqueue(new MockResponse()
+                .setBody(new ObjectMapper().writeValueAsString(getPersonalressursResources()))
+                .setHeader('content-type', 'application/json')
+                .setHeader('etag', '"v1"')
+                .setResponseCode(200))
+        mockWebServer.enqueue(new MockResponse()
+                .setHeader('etag', '"v1"')
+                .setResponseCode(304))
+        def uri = URI.create(mockWebServer.url("/").toString())
+
+        when:
+        fintRepository.get(PersonalressursResources.class, uri).block().content.clear()
+        def second = fintRepository.get(PersonalressursResources.class, uri).block()
+
+        then:
+        second.content.size() == 1
+    }
+
+    def "get() drops the cached response when a new one has no validators"() {
+        given:
+        mockWebServer.enqueue(new MockResponse()
+                .setBody(new ObjectMapper().writeValueAsString(getPersonalressursResources()))
+                .setHeader('content-type', 'application/json')
+                .setHeader('etag', '"v1"')
+                .setResponseCode(200))
+        mockWebServer.enqueue(new MockResponse()
+                .setBody(new ObjectMapper().writeValueAsString(getPersonalressursResources()))
+                .setHeader('content-type', 'application/json')
+                .setResponseCode(200))
+        mockWebServer.enqueue(new MockResponse()
+                .setBody(new ObjectMapper().writeValueAsString(getPersonalressursResources()))
+                .setHeader('content-type', 'application/json')
+                .setResponseCode(200))
+        def uri = URI.create(mockWebServer.url("/").toString())
+
+        when:
+        3.times { fintRepository.get(PersonalressursResources.class, uri).block() }
+
+        then:
+        mockWebServer.takeRequest().getHeader('If-None-Match') == null
+        mockWebServer.takeRequest().getHeader('If-None-Match') == '"v1"'
+        mockWebServer.takeRequest().getHeader('If-None-Match') == null
+    }
+
+    def "get() looks up the cache when subscribed"() {
+        given:
+        mockWebServer.enqueue(new MockResponse()
+                .setBody(new ObjectMapper().writeValueAsString(getPersonalressursResources()))
+                .setHeader('content-type', 'application/json')
+                .setHeader('etag', '"v1"')
+                .setResponseCode(200))
+        mockWebServer.enqueue(new MockResponse()
+                .setHeader('etag', '"v1"')
+                .setResponseCode(304))
+        def uri = URI.create(mockWebServer.url("/").toString())
+        def assembled = fintRepository.get(PersonalressursResources.class, uri)
+
+        when:
+        fintRepository.get(PersonalressursResources.class, uri).block()
+        def second = assembled.block()
+
+        then:
+        mockWebServer.takeRequest().getHeader('If-None-Match') == null
+        mockWebServer.takeRequest().getHeader('If-None-Match') == '"v1"'
+        second.totalItems == 1
+    }
+
     def "getUpdates() for given type returns resources of given type"() {
         given:
         mockWebServer.enqueue(new MockResponse()
@@ -62,11 +154,35 @@ class FintRepositorySpec extends Specification {
                 .setResponseCode(200))
 
         when:
-        def resources = fintRepository.getUpdates(PersonalressursResources.class, URI.create(mockWebServer.url("/").toString())).block()
+        def uri = URI.create(mockWebServer.url("/").toString())
+        def resources = fintRepository.getUpdates(PersonalressursResources.class, uri).block()
 
         then:
         resources.totalItems == 1
-        fintRepository.sinceTimestamp['mock'] == 1234
+        fintRepository.sinceTimestamp["mock_$uri" as String] == 1234
+    }
+
+    def "getPaged() requests pages until a short page is returned"() {
+        given:
+        mockWebServer.enqueue(new MockResponse()
+                .setBody(new ObjectMapper().writeValueAsString(getPersonalressursResources()))
+                .setHeader('content-type', 'application/json')
+                .setResponseCode(200))
+        mockWebServer.enqueue(new MockResponse()
+                .setBody(new ObjectMapper().writeValueAsString(new PersonalressursResources()))
+                .setHeader('content-type', 'application/json')
+                .setResponseCode(200))
+
+        when:
+        def resources = fintRepository.getPaged(PersonalressursResources.class, URI.create(mockWebServer.url("/").toString()), 1, PersonalressursResources::getContent)
+                .collectList()
+                .block()
+
+        then:
+        resources.size() == 1
+        mockWebServer.takeRequest().requestUrl.queryParameter('offset') == '0'
+        mockWebServer.takeRequest().requestUrl.queryParameter('offset') == '1'
+        mockWebServer.requestCount == 2
     }
 
     def "getForEntity() returns response entity"() {
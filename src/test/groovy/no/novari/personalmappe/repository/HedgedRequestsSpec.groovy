@@ -0,0 +1,73 @@
+package no.novari.personalmappe.repository
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import no.novari.personalmappe.properties.ProvisioningProperties
+import reactor.core.publisher.Mono
+import spock.lang.Specification
+
+import java.time.Duration
+import java.util.concurrent.atomic.AtomicInteger
+
+class HedgedRequestsSpec extends Specification {
+    SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry()
+    ProvisioningProperties provisioningProperties = new ProvisioningProperties()
+
+    void setup() {
+        provisioningProperties.hedge.enabled = true
+        provisioningProperties.hedge.minSamples = 0
+        provisioningProperties.hedge.minDelay = Duration.ofMillis(50)
+        provisioningProperties.hedge.budget = 1
+    }
+
+    def "a slow request is hedged and the first answer wins"() {
+        given:
+        def hedgedRequests = new HedgedRequests(provisioningProperties, meterRegistry)
+        def calls = new AtomicInteger()
+        def request = { calls.getAndIncrement() == 0 ? Mono.just('primary').delayElement(Duration.ofSeconds(5)) : Mono.just('hedge') }
+
+        when:
+        def result = hedgedRequests.hedge('graphql', request).block(Duration.ofSeconds(2))
+
+        then:
+        result == 'hedge'
+        calls.get() == 2
+        meterRegistry.counter('provisioning.hedge.sent', 'request', 'graphql').count() == 1
+        meterRegistry.counter('provisioning.hedge.won', 'request', 'graphql').count() == 1
+    }
+
+    def "no hedge is sent when the budget is spent"() {
+        given:
+        provisioningProperties.hedge.budget = 0.5
+        def hedgedRequests = new HedgedRequests(provisioningProperties, meterRegistry)
+        def calls = new AtomicInteger()
+        def request = { calls.incrementAndGet(); Mono.just('primary').delayElement(Duration.ofMillis(200)) }
+
+        when:
+        def result = hedgedRequests.hedge('graphql', request).block(Duration.ofSeconds(2))
+
+        then:
+        result == 'primary'
+        calls.get() == 1
+        meterRegistry.counter('provisioning.hedge.denied', 'request', 'graphql').count() == 1
+    }
+
+    def "a failing hedge leaves the answer to the primary request"() {
+        given:
+        def hedgedRequests = new HedgedRequests(provisioningProperties, meterRegistry)
+        def calls = new AtomicInteger()
+        def request = { calls.getAndIncrement() == 0 ? Mono.just('primary').delayElement(Duration.ofMillis(200)) : Mono.error(new IllegalStateException()) }
+
+        expect:
+        hedgedRequests.hedge('graphql', request).block(Duration.ofSeconds(2)) == 'primary'
+    }
+
+    def "requests are passed through when hedging is disabled"() {
+        given:
+        provisioningProperties.hedge.enabled = false
+        def hedgedRequests = new HedgedRequests(provisioningProperties, meterRegistry)
+
+        expect:
+        hedgedRequests.hedge('graphql', { Mono.just('primary') }).block() == 'primary'
+        meterRegistry.find('provisioning.hedge.requests').counter() == null
+    }
+}
@@ -0,0 +1,36 @@
+package no.novari.personalmappe.repository
+
+import no.novari.personalmappe.model.MongoDBPersonalmappe
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+@DataMongoTest
+class MongoDBRepositorySpec extends Specification {
+
+    @Autowired
+    ReactiveMongoTemplate mongoTemplate
+
+    def "the indexes of the pollers are created on the personnel folders"() {
+        expect:
+        new PollingConditions(timeout: 5).eventually {
+            assert indexes().containsAll(['retry', 'pendingStatus'])
+        }
+
+        and:
+        mongoTemplate.getCollectionName(MongoDBPersonalmappe) == 'mongoDBPersonalmappe'
+    }
+
+    def "the indexes of the impact analysis are created on the personnel folders"() {
+        expect:
+        new PollingConditions(timeout: 5).eventually {
+            assert indexes().containsAll(['leader', 'workplace'])
+        }
+    }
+
+    private List<String> indexes() {
+        return mongoTemplate.indexOps(MongoDBPersonalmappe).getIndexInfo().map { it.name }.collectList().block()
+    }
+}
@@ -0,0 +1,144 @@
+package no.novari.personalmappe.service
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import no.fint.model.felles.kompleksedatatyper.Identifikator
+import no.fint.model.resource.Link
+import no.fint.model.resource.administrasjon.personal.PersonalressursResource
+import no.fint.model.resource.administrasjon.personal.PersonalressursResources
+import no.fint.model.resource.arkiv.noark.ArkivressursResource
+import no.fint.model.resource.arkiv.noark.ArkivressursResources
+import no.novari.personalmappe.model.MongoDBArkivressurs
+import no.novari.personalmappe.properties.OrganisationProperties
+import no.novari.personalmappe.properties.ProvisioningProperties
+import no.novari.personalmappe.repository.FintRepository
+import no.novari.personalmappe.repository.MongoDBArkivressursRepository
+import org.springframework.http.ResponseEntity
+import org.springframework.web.reactive.function.client.WebClientResponseException
+import reactor.core.publisher.Flux
+import reactor.core.publisher.Mono
+import reactor.core.scheduler.Schedulers
+import spock.lang.Specification
+
+import java.time.Duration
+
+class ArchiveResourceServiceSpec extends Specification {
+    FintRepository fintRepository = Mock()
+    StatusService statusService = Mock()
+    MongoDBArkivressursRepository mongoDBArkivressursRepository = Mock()
+    ProvisioningProperties provisioningProperties = new ProvisioningProperties()
+    SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry()
+
+    Map<String, MongoDBArkivressurs> stored = [:]
+
+    ArchiveResourceService archiveResourceService
+
+    void setup() {
+        provisioningProperties.archiveResource.interval = Duration.ofMillis(1)
+        archiveResourceService = new ArchiveResourceService(fintRepository, statusService, mongoDBArkivressursRepository,
+                new OrganisationProperties(orgId: 'org-id'), provisioningProperties, new ObjectMapper(), meterRegistry, Schedulers.immediate())
+
+        fintRepository.getPaged(PersonalressursResources, _, _, _) >> Flux.just(personalressurs('ole'), personalressurs('kari'))
+        mongoDBArkivressursRepository.findById(_ as String) >> { String id -> Mono.justOrEmpty(stored[id]) }
+        mongoDBArkivressursRepository.save(_ as MongoDBArkivressurs) >> { MongoDBArkivressurs arkivressurs ->
+            stored[arkivressurs.id] = arkivressurs
+            Mono.just(arkivressurs)
+        }
+    }
+
+    def "changed arkivressurs are put and unchanged ones are skipped"() {
+        given:
+        fintRepository.getPaged(ArkivressursResources, _, _, _) >> Flux.just(arkivressurs('1', 'ole'), arkivressurs('2', 'kari'), arkivressurs('3', 'unknown'))
+
+        when:
+        def first = archiveResourceService.run().block()
+
+        then:
+        2 * fintRepository.putForEntity(_, _) >> Mono.just(ResponseEntity.noContent().build())
+        first == [204: 2L]
+        stored.keySet() == ['org-id_1', 'org-id_2'] as Set
+        stored.values().every { it.status == 204 && it.hash }
+
+        when:
+        def second = archiveResourceService.run().block()
+
+        then:
+        0 * fintRepository.putForEntity(_, _)
+        second == [:]
+        meterRegistry.counter('provisioning.archive-resource', 'outcome', 'unchanged').count() == 2
+    }
+
+    def "each candidate is loaded once"() {
+        given:
+        fintRepository.getPaged(ArkivressursResources, _, _, _) >> Flux.just(arkivressurs('1', 'ole'))
+        fintRepository.putForEntity(_, _) >> Mono.just(ResponseEntity.noContent().build())
+
+        when:
+        archiveResourceService.run().block()
+
+        then:
+        1 * mongoDBArkivressursRepository.findById('org-id_1') >> Mono.empty()
+    }
+
+    def "the final status is polled when the put is accepted"() {
+        given:
+        def accepted = ResponseEntity.accepted().location(URI.create('https://example.com/status/1')).build()
+        fintRepository.getPaged(ArkivressursResources, _, _, _) >> Flux.just(arkivressurs('1', 'ole'))
+        fintRepository.putForEntity(_, _) >> Mono.just(accepted)
+
+        when:
+        archiveResourceService.run().block()
+
+        then:
+        1 * statusService.poll(accepted) >> Mono.just(ResponseEntity.ok().build())
+        stored['org-id_1'].status == 200
+    }
+
+    def "non-standard status codes are stored and retried"() {
+        given:
+        fintRepository.getPaged(ArkivressursResources, _, _, _) >> Flux.just(arkivressurs('1', 'ole'))
+
+        when:
+        def outcomes = archiveResourceService.run().block()
+
+        then:
+        1 * fintRepository.putForEntity(_, _) >> Mono.error(WebClientResponseException.create(599, 'Network timeout', null, 'timeout'.bytes, null))
+        outcomes == [599: 1L]
+        stored['org-id_1'].message == 'timeout'
+
+        when:
+        archiveResourceService.run().block()
+
+        then:
+        1 * fintRepository.putForEntity(_, _) >> Mono.just(ResponseEntity.noContent().build())
+        stored['org-id_1'].status == 204
+    }
+
+    def "arkivressurs are matched across more personalressurs than fit in one sorted chunk"() {
+        given:
+        provisioningProperties.bulk.sortChunkSize = 2
+        fintRepository.getPaged(ArkivressursResources, _, _, _) >> Flux.just(arkivressurs('2', 'kari'), arkivressurs('1', 'ole'))
+
+        when:
+        def outcomes = archiveResourceService.run().block()
+
+        then:
+        2 * fintRepository.putForEntity(_, _) >> Mono.just(ResponseEntity.noContent().build())
+        outcomes == [204: 2L]
+    }
+
+    static PersonalressursResource personalressurs(String username) {
+        def personalressurs = new PersonalressursResource()
+        personalressurs.brukernavn = new Identifikator(identifikatorverdi: username)
+        personalressurs.addSelf(Link.with("https://example.com/administrasjon/personal/personalressurs/brukernavn/$username"))
+        return personalressurs
+    }
+
+    static ArkivressursResource arkivressurs(String id, String username) {
+        def arkivressurs = new ArkivressursResource()
+        arkivressurs.addSelf(Link.with("https://example.com/arkiv/noark/arkivressurs/systemid/$id"))
+        arkivressurs.addPersonalressurs(Link.with("https://example.com/administrasjon/personal/personalressurs/brukernavn/$username"))
+        return arkivressurs
+    }
+
+}
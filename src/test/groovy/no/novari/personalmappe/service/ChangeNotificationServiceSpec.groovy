@@ -0,0 +1,105 @@
+package no.novari.personalmappe.service
+
+import no.fint.model.felles.kompleksedatatyper.Identifikator
+import no.fint.model.resource.Link
+import no.fint.model.resource.administrasjon.personal.ArbeidsforholdResource
+import no.fint.model.resource.administrasjon.personal.PersonalressursResource
+import no.novari.personalmappe.model.ChangeNotification
+import no.novari.personalmappe.model.MongoDBJob
+import no.novari.personalmappe.model.Priority
+import no.novari.personalmappe.repository.FintRepository
+import reactor.core.publisher.Mono
+import spock.lang.Specification
+
+class ChangeNotificationServiceSpec extends Specification {
+    FintRepository fintRepository = Mock()
+    WorkQueueService workQueueService = Mock()
+
+    ChangeNotificationService changeNotificationService = new ChangeNotificationService(fintRepository, workQueueService)
+
+    def setup() {
+        changeNotificationService.personnelResourceEndpoint = URI.create('https://api.felleskomponent.no/administrasjon/personal/personalressurs')
+        changeNotificationService.employmentEndpoint = URI.create('https://api.felleskomponent.no/administrasjon/personal/arbeidsforhold')
+    }
+
+    def "usernames and personalressurs links are queued on the delta lane"() {
+        given:
+        def notification = new ChangeNotification(
+                usernames: ['ole', 'kari'],
+                links: ['https://api.felleskomponent.no/administrasjon/personal/personalressurs/brukernavn/ole',
+                        'https://api.felleskomponent.no/administrasjon/personal/personalressurs/ansattnummer/123'])
+
+        when:
+        changeNotificationService.accept(notification).block()
+
+        then:
+        1 * fintRepository.getResource(PersonalressursResource, URI.create('https://api.felleskomponent.no/administrasjon/personal/personalressurs/ansattnummer/123')) >>
+                Mono.just(new PersonalressursResource(brukernavn: new Identifikator(identifikatorverdi: 'per')))
+        1 * workQueueService.enqueue(['ole', 'kari', 'per'], 3, Priority.DELTA) >> Mono.just(MongoDBJob.builder().build())
+    }
+
+    def "arbeidsforhold links are resolved through personalressurs"() {
+        given:
+        def arbeidsforhold = new ArbeidsforholdResource()
+        arbeidsforhold.addPersonalressurs(Link.with('https://api.felleskomponent.no/administrasjon/personal/personalressurs/brukernavn/ole'))
+
+        def notification = new ChangeNotification(
+                type: ChangeNotification.Type.ARBEIDSFORHOLD,
+                links: ['https://api.felleskomponent.no/administrasjon/personal/arbeidsforhold/systemid/1'])
+
+        when:
+        changeNotificationService.accept(notification).block()
+
+        then:
+        1 * fintRepository.getResource(ArbeidsforholdResource, _) >> Mono.just(arbeidsforhold)
+        1 * workQueueService.enqueue(['ole'], 1, Priority.DELTA) >> Mono.just(MongoDBJob.builder().build())
+    }
+
+    def "nothing is queued when no username can be resolved"() {
+        given:
+        def notification = new ChangeNotification(links: ['https://api.felleskomponent.no/administrasjon/personal/personalressurs/ansattnummer/123'])
+
+        when:
+        changeNotificationService.accept(notification).block()
+
+        then:
+        1 * fintRepository.getResource(PersonalressursResource, _) >> Mono.error(new IllegalStateException())
+        0 * workQueueService.enqueue(*_)
+    }
+
+    def "links outside the endpoint of their type are not allowed"() {
+        expect:
+        changeNotificationService.allowed(new ChangeNotification(type: type, links: [href])) == allowed
+
+        where:
+        type                                   | href                                                                                            || allowed
+        ChangeNotification.Type.PERSONALRESSURS | 'https://api.felleskomponent.no/administrasjon/personal/personalressurs/ansattnummer/123'       || true
+        ChangeNotification.Type.ARBEIDSFORHOLD  | 'https://api.felleskomponent.no/administrasjon/personal/arbeidsforhold/systemid/1'              || true
+        ChangeNotification.Type.ARBEIDSFORHOLD  | 'https://api.felleskomponent.no/administrasjon/personal/personalressurs/ansattnummer/123'       || false
+        ChangeNotification.Type.PERSONALRESSURS | 'https://attacker.example.com/administrasjon/personal/personalressurs/ansattnummer/123'         || false
+        ChangeNotification.Type.PERSONALRESSURS | 'http://api.felleskomponent.no/administrasjon/personal/personalressurs/ansattnummer/123'        || false
+        ChangeNotification.Type.PERSONALRESSURS | 'https://api.felleskomponent.no:8443/administrasjon/personal/personalressurs/ansattnummer/123'  || false
+        ChangeNotification.Type.PERSONALRESSURS | 'https://user@api.felleskomponent.no/administrasjon/personal/personalressurs/ansattnummer/123'  || false
+        ChangeNotification.Type.PERSONALRESSURS | 'https://api.felleskomponent.no/administrasjon/personal/personalressurs/../../../admin'         || false
+        ChangeNotification.Type.PERSONALRESSURS | 'https://api.felleskomponent.no/administrasjon/personal/personalressursX/1'                      || false
+        ChangeNotification.Type.PERSONALRESSURS | '/administrasjon/personal/personalressurs/ansattnummer/123'                                      || false
+    }
+
+    def "personalressurs links of an arbeidsforhold outside the endpoint are not followed"() {
+        given:
+        def arbeidsforhold = new ArbeidsforholdResource()
+        arbeidsforhold.addPersonalressurs(Link.with('https://attacker.example.com/personalressurs/ansattnummer/123'))
+
+        def notification = new ChangeNotification(
+                type: ChangeNotification.Type.ARBEIDSFORHOLD,
+                links: ['https://api.felleskomponent.no/administrasjon/personal/arbeidsforhold/systemid/1'])
+
+        when:
+        changeNotificationService.accept(notification).block()
+
+        then:
+        1 * fintRepository.getResource(ArbeidsforholdResource, _) >> Mono.just(arbeidsforhold)
+        0 * fintRepository.getResource(PersonalressursResource, _)
+        0 * workQueueService.enqueue(*_)
+    }
+}
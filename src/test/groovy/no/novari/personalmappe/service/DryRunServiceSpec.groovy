@@ -0,0 +1,107 @@
+package no.novari.personalmappe.service
+
+import no.fint.model.resource.administrasjon.personal.PersonalressursResources
+import no.fint.model.resource.arkiv.personal.PersonalmappeResource
+import no.novari.personalmappe.factory.PersonalmappeResourceFactory
+import no.novari.personalmappe.model.DryRunResult
+import no.novari.personalmappe.model.MongoDBPersonalmappe
+import no.novari.personalmappe.model.Personnel
+import no.novari.personalmappe.properties.ProvisioningProperties
+import no.novari.personalmappe.repository.FintRepository
+import no.novari.personalmappe.repository.MongoDBRepository
+import no.novari.personalmappe.utilities.PersonnelUtilities
+import reactor.core.publisher.Mono
+import spock.lang.Specification
+
+import java.util.function.Predicate
+
+class DryRunServiceSpec extends Specification {
+    ProvisionService provisionService = Mock()
+    FintRepository fintRepository = Mock()
+    MongoDBRepository mongoDBRepository = Mock()
+    PersonalmappeResourceFactory personalmappeResourceFactory = new PersonalmappeResourceFactory()
+
+    DryRunService dryRunService = new DryRunService(provisionService, fintRepository, mongoDBRepository, new ProvisioningProperties())
+
+    Map<String, MongoDBPersonalmappe> stored = [
+            'org-id_kari': MongoDBPersonalmappe.builder().username('kari').leader('old-leader').workplace('workplace').build(),
+            'org-id_per' : MongoDBPersonalmappe.builder().username('per').leader('leader').workplace('workplace').build(),
+            'org-id_liv' : MongoDBPersonalmappe.builder().username('liv').leader('leader').workplace('old-workplace').build()
+    ]
+
+    Set<String> failing = []
+
+    void setup() {
+        provisionService.getAdministrativeUnitSystemIds() >> ['workplace']
+        fintRepository.get(PersonalressursResources, _) >> Mono.just(new PersonalressursResources())
+        provisionService.getUsernames(_ as List) >> ['ole', 'kari', 'per', 'liv', 'nils']
+        provisionService.buildPersonnel(_ as String) >> { String username ->
+            if (username in failing) {
+                return Mono.error(new IllegalStateException('GraphQL unavailable'))
+            }
+            username == 'nils' ? Mono.empty() : Mono.just(personnel(username))
+        }
+        provisionService.validPersonnel() >> ({ true } as Predicate)
+        provisionService.toPersonalmappeResource(_ as Personnel) >> { Personnel personnel -> personalmappeResourceFactory.toPersonalmappeResource(personnel) }
+        provisionService.transform(_ as PersonalmappeResource) >> { PersonalmappeResource personnelFolder -> Mono.just(personnelFolder) }
+        provisionService.getId(_ as PersonalmappeResource) >> { PersonalmappeResource personnelFolder -> 'org-id_' + PersonnelUtilities.getUsername(personnelFolder) }
+        mongoDBRepository.findById(_ as String) >> { String id -> Mono.justOrEmpty(stored[id]) }
+    }
+
+    def "a dry run reports what provisioning would do"() {
+        when:
+        def report = dryRunService.dryRun(0).block()
+
+        then:
+        report.total == 5
+        report.results.collectEntries { [(it.username): it.outcome] } == [
+                ole : DryRunResult.Outcome.NEW,
+                kari: DryRunResult.Outcome.CHANGED_LEADER,
+                per : DryRunResult.Outcome.UNCHANGED,
+                liv : DryRunResult.Outcome.CHANGED_WORKPLACE,
+                nils: DryRunResult.Outcome.INVALID]
+        report.outcomes == [
+                (DryRunResult.Outcome.NEW)              : 1L,
+                (DryRunResult.Outcome.CHANGED_LEADER)   : 1L,
+                (DryRunResult.Outcome.CHANGED_WORKPLACE): 1L,
+                (DryRunResult.Outcome.UNCHANGED)        : 1L,
+                (DryRunResult.Outcome.INVALID)          : 1L]
+        with(report.results.find { it.username == 'kari' }) {
+            previousLeader == 'old-leader'
+            leader == 'leader'
+        }
+    }
+
+    def "a dry run never writes to the archive or the database"() {
+        when:
+        dryRunService.dryRun(0).block()
+
+        then:
+        0 * fintRepository./(post|put)ForEntity/(*_)
+        0 * mongoDBRepository./(save|insert|delete).*/(*_)
+        0 * provisionService.provision(*_)
+    }
+
+    def "the limit bounds the number of users"() {
+        expect:
+        dryRunService.dryRun(2).block().total == 2
+    }
+
+    def "an error building one user is reported as invalid"() {
+        given:
+        failing << 'ole'
+
+        when:
+        def report = dryRunService.dryRun(0).block()
+
+        then:
+        with(report.results.find { it.username == 'ole' }) {
+            outcome == DryRunResult.Outcome.INVALID
+            message == 'GraphQL unavailable'
+        }
+    }
+
+    static Personnel personnel(String username) {
+        return new Personnel(username, '12345678901', new Personnel.Name('fornavn', null, 'etternavn'), 'leader', 'workplace')
+    }
+}
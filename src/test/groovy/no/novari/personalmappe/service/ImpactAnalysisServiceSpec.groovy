@@ -0,0 +1,56 @@
+package no.novari.personalmappe.service
+
+import no.fint.model.administrasjon.personal.Personalressurs
+import no.fint.model.felles.kompleksedatatyper.Identifikator
+import no.fint.model.resource.Link
+import no.fint.model.resource.administrasjon.organisasjon.OrganisasjonselementResource
+import no.novari.personalmappe.model.MongoDBPersonalmappe
+import no.novari.personalmappe.properties.OrganisationProperties
+import no.novari.personalmappe.repository.FintRepository
+import no.novari.personalmappe.repository.MongoDBRepository
+import reactor.core.publisher.Flux
+import spock.lang.Specification
+
+class ImpactAnalysisServiceSpec extends Specification {
+    FintRepository fintRepository = Mock()
+    MongoDBRepository mongoDBRepository = Mock()
+    WorkQueueService workQueueService = Mock()
+
+    ImpactAnalysisService impactAnalysisService = new ImpactAnalysisService(fintRepository, mongoDBRepository, workQueueService, new OrganisationProperties(orgId: 'org-id'))
+
+    def "a new leader affects the unit's employees, the previous and new leader and the folders they lead"() {
+        given:
+        def unit = new OrganisasjonselementResource(organisasjonsId: new Identifikator(identifikatorverdi: '100'))
+        unit.addLeder(Link.with(Personalressurs, 'brukernavn', 'new-leader'))
+
+        when:
+        def usernames = impactAnalysisService.getAffectedUsernames([unit]).block()
+
+        then:
+        1 * mongoDBRepository.findByOrgIdAndWorkplaceIn('org-id', ['100'] as Set) >> Flux.just(
+                folder('employee', 'old-leader', '100'),
+                folder('sub-unit-leader', 'old-leader', '100'))
+        1 * mongoDBRepository.findByOrgIdAndLeaderIn('org-id', ['old-leader', 'new-leader'] as Set) >> Flux.just(
+                folder('employee', 'old-leader', '100'),
+                folder('other-unit-employee', 'new-leader', '200'))
+
+        usernames as Set == ['employee', 'sub-unit-leader', 'old-leader', 'new-leader', 'other-unit-employee'] as Set
+    }
+
+    def "units without stored folders and leaders affect nobody"() {
+        given:
+        def unit = new OrganisasjonselementResource(organisasjonsId: new Identifikator(identifikatorverdi: '100'))
+
+        when:
+        def usernames = impactAnalysisService.getAffectedUsernames([unit]).block()
+
+        then:
+        1 * mongoDBRepository.findByOrgIdAndWorkplaceIn('org-id', ['100'] as Set) >> Flux.empty()
+        1 * mongoDBRepository.findByOrgIdAndLeaderIn('org-id', [] as Set) >> Flux.empty()
+        usernames.isEmpty()
+    }
+
+    private static MongoDBPersonalmappe folder(String username, String leader, String workplace) {
+        MongoDBPersonalmappe.builder().username(username).leader(leader).workplace(workplace).build()
+    }
+}
@@ -0,0 +1,85 @@
+package no.novari.personalmappe.service
+
+import no.novari.personalmappe.model.JobEvent
+import no.novari.personalmappe.model.MongoDBJob
+import no.novari.personalmappe.properties.ProvisioningProperties
+import reactor.core.publisher.Mono
+import reactor.test.StepVerifier
+import spock.lang.Specification
+
+import java.time.LocalDateTime
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class JobRegistrySpec extends Specification {
+    JobRegistry jobRegistry = new JobRegistry(new ProvisioningProperties())
+
+    def "streams snapshot, per-user outcomes and progress until the job completes"() {
+        given:
+        def job = job(MongoDBJob.State.RUNNING, 0, 0)
+
+        expect:
+        StepVerifier.create(jobRegistry.events(job, Mono.just(job)))
+                .expectNextMatches { it.type == JobEvent.Type.PROGRESS && it.processed == 0 && it.total == 2 }
+                .then { jobRegistry.acknowledged(job(MongoDBJob.State.RUNNING, 1, 0), 'user-1', 'CREATED') }
+                .expectNextMatches { it.type == JobEvent.Type.USER && it.username == 'user-1' && it.outcome == 'CREATED' }
+                .expectNextMatches { it.type == JobEvent.Type.PROGRESS && it.processed == 1 && it.eta != null }
+                .then { jobRegistry.completed(job(MongoDBJob.State.COMPLETED, 2, 1)) }
+                .expectNextMatches { it.type == JobEvent.Type.COMPLETED && it.processed == 2 && it.failed == 1 }
+                .verifyComplete()
+    }
+
+    def "completed jobs emit a single completed event"() {
+        expect:
+        StepVerifier.create(jobRegistry.events(job(MongoDBJob.State.COMPLETED, 2, 0), Mono.empty()))
+                .expectNextMatches { it.type == JobEvent.Type.COMPLETED }
+                .verifyComplete()
+    }
+
+    def "a job that completes before its events are subscribed ends with a completed event"() {
+        expect:
+        StepVerifier.create(jobRegistry.events(job(MongoDBJob.State.RUNNING, 1, 0), Mono.just(job(MongoDBJob.State.COMPLETED, 2, 0))))
+                .expectNextMatches { it.type == JobEvent.Type.PROGRESS && it.processed == 1 }
+                .expectNextMatches { it.type == JobEvent.Type.COMPLETED && it.processed == 2 }
+                .verifyComplete()
+    }
+
+    def "concurrent acknowledgements are all emitted"() {
+        given:
+        def job = job(MongoDBJob.State.RUNNING, 0, 0)
+        def events = jobRegistry.events(job, Mono.just(job))
+                .filter { it.type == JobEvent.Type.USER }
+                .take(200)
+                .collectList()
+                .toFuture()
+        def pool = Executors.newFixedThreadPool(8)
+
+        when:
+        (1..200).each { index -> pool.submit { jobRegistry.acknowledged(job, "user-$index", 'CREATED') } }
+
+        then:
+        events.get(5, TimeUnit.SECONDS).size() == 200
+
+        cleanup:
+        pool.shutdownNow()
+    }
+
+    def "events without subscribers are dropped"() {
+        when:
+        jobRegistry.acknowledged(job(MongoDBJob.State.RUNNING, 1, 0), 'user-1', 'CREATED')
+
+        then:
+        jobRegistry.sinks.isEmpty()
+    }
+
+    static MongoDBJob job(MongoDBJob.State state, long processed, long failed) {
+        return MongoDBJob.builder()
+                .id('job')
+                .state(state)
+                .total(2)
+                .processed(processed)
+                .failed(failed)
+                .createdDate(LocalDateTime.now().minusMinutes(1))
+                .build()
+    }
+}
@@ -0,0 +1,80 @@
+package no.novari.personalmappe.service
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import no.novari.personalmappe.TestFactory
+import no.novari.personalmappe.properties.OrganisationProperties
+import no.novari.personalmappe.properties.ProvisioningProperties
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate
+import reactor.core.publisher.Flux
+import reactor.core.scheduler.Schedulers
+import spock.lang.Specification
+
+class PolicyBatchServiceSpec extends Specification {
+
+    ObjectMapper objectMapper = new ObjectMapper()
+    PolicyBatchService service
+
+    void setup() {
+        def provisioningProperties = new ProvisioningProperties()
+        def policyService = new PolicyService(provisioningProperties, new SimpleMeterRegistry())
+        policyService.init()
+        service = new PolicyBatchService(policyService, Mock(ProvisionService), Mock(ReactiveMongoTemplate), new OrganisationProperties(),
+                provisioningProperties, objectMapper, Schedulers.immediate())
+    }
+
+    def "Upload reports changed fields and latency"() {
+        given:
+        def line = objectMapper.writeValueAsString(TestFactory.createPersonalmappeResource())
+        def policy = "function titlePolicy(o) { o.setOffentligTittel('Test'); return o; }"
+
+        when:
+        def report = service.upload(policy, Flux.just(line, "", line, line)).block()
+
+        then:
+        report.total == 3
+        report.evaluated == 3
+        report.failed == 0
+        report.changes == [offentligTittel: 3L]
+        report.throughputPerSecond > 0
+        report.p50Millis <= report.p99Millis
+        report.p99Millis <= report.maxMillis
+    }
+
+    def "Upload groups script errors by message"() {
+        given:
+        def line = objectMapper.writeValueAsString(TestFactory.createPersonalmappeResource())
+
+        when:
+        def report = service.upload("function noResult(o) { return null; }", Flux.just(line, line)).block()
+
+        then:
+        report.failed == 2
+        report.errors == ["The policy returned no result": 2L]
+    }
+
+    def "Unchanged personnel folders have no changes"() {
+        given:
+        def line = objectMapper.writeValueAsString(TestFactory.createPersonalmappeResource())
+
+        when:
+        def report = service.upload("function same(o) { return o; }", Flux.just(line)).block()
+
+        then:
+        report.unchanged == 1
+        report.changes.isEmpty()
+    }
+
+    def "Diff compares objects field by field and arrays as a whole"() {
+        given:
+        def before = objectMapper.readTree('{"a": {"b": 1, "c": [1]}, "d": null}')
+        def after = objectMapper.readTree('{"a": {"b": 2, "c": [1, 2]}}')
+        def changes = []
+
+        when:
+        PolicyBatchService.diff("", before, after, changes)
+
+        then:
+        changes == ["a.b", "a.c"]
+    }
+}
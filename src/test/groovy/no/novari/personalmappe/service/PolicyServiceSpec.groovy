@@ -1,18 +1,29 @@
 package no.novari.personalmappe.service
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
 import no.fint.model.resource.arkiv.personal.PersonalmappeResource
 import no.novari.personalmappe.TestFactory
+import no.novari.personalmappe.exception.PolicyTimeBudgetExceededException
+import no.novari.personalmappe.exception.UnableToGetLink
+import no.novari.personalmappe.policy.helper.TimeBudget
+import no.novari.personalmappe.properties.ProvisioningProperties
 import spock.lang.Specification
 
+import javax.script.ScriptException
+import java.time.Duration
+
 class PolicyServiceSpec extends Specification {
 
     String simplePolicy = "function simplePolicy(object) {return object;}"
     PersonalmappeResource personalmappeResource
     PolicyService service
+    SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry()
 
     void setup() {
         personalmappeResource = TestFactory.createPersonalmappeResource()
-        service = new PolicyService()
+        def provisioningProperties = new ProvisioningProperties()
+        provisioningProperties.policy.timeBudget = Duration.ofMillis(200)
+        service = new PolicyService(provisioningProperties, meterRegistry)
         service.init()
     }
 
@@ -54,6 +65,91 @@ class PolicyServiceSpec extends Specification {
         result.links['saksstatus'].stream().filter({ l -> l.getHref().endsWith("/99") }).count()
     }
 
+    def "Transformations are timed and counted per script"() {
+        when:
+        service.transform(simplePolicy, personalmappeResource)
+        service.transform(simplePolicy, personalmappeResource)
+
+        then:
+        meterRegistry.get('provisioning.policy.duration').tag('script', 'simplePolicy').timer().count() == 2
+        meterRegistry.get('provisioning.policy.invocations').tag('script', 'simplePolicy').counter().count() == 2
+    }
+
+    def "Runaway policy is aborted when the time budget is exceeded"() {
+        given:
+        def loopingPolicy = "function loopingPolicy(object) {" +
+                "var i = 0; while (true) { i++; }" +
+                "}"
+
+        when:
+        service.transform(loopingPolicy, personalmappeResource)
+
+        then:
+        def e = thrown(PolicyTimeBudgetExceededException)
+        e.message.contains('loopingPolicy')
+        meterRegistry.get('provisioning.policy.failures').tags('script', 'loopingPolicy', 'reason', 'budget').counter().count() == 1
+
+        and: 'the engine can be used again'
+        service.transform(simplePolicy, personalmappeResource)
+    }
+
+    def "Recursive policy is aborted when the time budget is exceeded"() {
+        given:
+        def recursivePolicy = "function recursivePolicy(object) {" +
+                "function spin(n) { return n > 0 ? spin(n - 1) + spin(n - 1) : 0; }" +
+                "spin(64); return object;" +
+                "}"
+
+        when:
+        def evaluation = service.evaluate(recursivePolicy, personalmappeResource)
+
+        then:
+        evaluation.error() instanceof PolicyTimeBudgetExceededException
+        evaluation.duration() < Duration.ofSeconds(5)
+    }
+
+    def "Loop checks are not inserted into strings and comments"() {
+        expect:
+        TimeBudget.instrument("function f(o) { // while (x) {\n var s = 'for (;;) {'; for (var i = 0; i < 2; i++) { } }") ==
+                "function f(o) {__budget.check(); // while (x) {\n var s = 'for (;;) {'; for (var i = 0; i < 2; i++) {__budget.check(); } }"
+    }
+
+    def "Loops without braces are rejected, but not the while ending a do"() {
+        when:
+        TimeBudget.instrument("function f(o) {\n var x = 0;\n while (true) x++;\n return o; }")
+
+        then:
+        def e = thrown(ScriptException)
+        e.lineNumber == 3
+
+        expect:
+        TimeBudget.instrument("function f(o) { var i = 0; do { i++; } while (i < 2); return o; }") ==
+                "function f(o) {__budget.check(); var i = 0; do {__budget.check(); i++; } while (i < 2); return o; }"
+    }
+
+    def "A policy with a loop without braces gives an error instead of running unchecked"() {
+        when:
+        def evaluation = service.evaluate("function loopingPolicy(object) { var i = 0; while (true) i++; }", personalmappeResource)
+
+        then:
+        evaluation.error() instanceof ScriptException
+        evaluation.result() == null
+    }
+
+    def "Script errors give an error and runtime exceptions from the helpers are thrown"() {
+        when:
+        def evaluation = service.evaluate("function failingPolicy(object) { throw 'failed'; }", personalmappeResource)
+
+        then:
+        evaluation.error() instanceof ScriptException
+
+        when:
+        service.evaluate("function failingPolicy(object) { return resource(object).link('missing').getLink(); }", personalmappeResource)
+
+        then:
+        thrown(UnableToGetLink)
+    }
+
     def "Get function name"() {
         when:
         def name = service.getFunctionName(simplePolicy)
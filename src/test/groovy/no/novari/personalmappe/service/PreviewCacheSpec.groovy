@@ -0,0 +1,71 @@
+package no.novari.personalmappe.service
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import no.novari.personalmappe.model.Personnel
+import no.novari.personalmappe.properties.ProvisioningProperties
+import reactor.core.publisher.Mono
+import reactor.core.publisher.Sinks
+import spock.lang.Specification
+
+import java.util.concurrent.atomic.AtomicInteger
+
+class PreviewCacheSpec extends Specification {
+    PreviewCache previewCache = new PreviewCache(new ProvisioningProperties(), new SimpleMeterRegistry())
+
+    def "concurrent requests for the same username share a single fetch"() {
+        given:
+        def fetches = new AtomicInteger()
+        def sink = Sinks.<Personnel> one()
+        def loader = { String username -> Mono.defer { fetches.incrementAndGet(); sink.asMono() } }
+
+        when:
+        def first = previewCache.get('username', loader).toFuture()
+        def second = previewCache.get('username', loader).toFuture()
+        sink.tryEmitValue(new Personnel('preview', null, null, null, null))
+
+        then:
+        fetches.get() == 1
+        first.get().username() == 'preview'
+        second.get().is(first.get())
+    }
+
+    def "invalidate drops the cached preview"() {
+        given:
+        def fetches = new AtomicInteger()
+        def loader = { String username -> Mono.fromCallable { fetches.incrementAndGet(); new Personnel('username', null, null, null, null) } }
+
+        when:
+        previewCache.get('username', loader).block()
+        previewCache.invalidate('username')
+        previewCache.get('username', loader).block()
+
+        then:
+        fetches.get() == 2
+    }
+
+    def "failed fetches are not cached"() {
+        given:
+        def fetches = new AtomicInteger()
+        def loader = { String username -> Mono.<Personnel> defer { fetches.incrementAndGet(); Mono.error(new IllegalStateException()) } }
+
+        when:
+        previewCache.get('username', loader).onErrorResume { Mono.empty() }.block()
+        previewCache.get('username', loader).onErrorResume { Mono.empty() }.block()
+
+        then:
+        fetches.get() == 2
+    }
+
+    def "fetches that find nobody are not cached"() {
+        given:
+        def fetches = new AtomicInteger()
+        def loader = { String username -> Mono.<Personnel> defer { fetches.incrementAndGet(); Mono.empty() } }
+
+        when:
+        previewCache.get('username', loader).block()
+        previewCache.get('username', loader).block()
+
+        then:
+        fetches.get() == 2
+    }
+}
@@ -1,18 +1,18 @@
 package no.novari.personalmappe.service
 
-import no.fint.model.administrasjon.organisasjon.Organisasjonselement
-import no.fint.model.administrasjon.personal.Personalressurs
-import no.fint.model.felles.Person
-import no.fint.model.felles.kompleksedatatyper.Personnavn
-import no.fint.model.resource.Link
-import no.fint.model.resource.arkiv.noark.PartResource
-import no.fint.model.resource.arkiv.personal.PersonalmappeResource
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
 import no.novari.personalmappe.factory.PersonalmappeResourceFactory
 import no.novari.personalmappe.model.GraphQLPersonalmappe
+import no.novari.personalmappe.model.LatencyStage
 import no.novari.personalmappe.model.MongoDBPersonalmappe
+import no.novari.personalmappe.model.MongoDBSchedule
+import no.novari.personalmappe.model.Personnel
+import no.novari.personalmappe.model.Transition
 import no.novari.personalmappe.properties.OrganisationProperties
+import no.novari.personalmappe.properties.ProvisioningProperties
 import no.novari.personalmappe.repository.FintRepository
 import no.novari.personalmappe.repository.MongoDBRepository
+import no.novari.personalmappe.repository.MongoDBScheduleRepository
 import no.novari.personalmappe.service.PolicyService
 import no.novari.personalmappe.service.ProvisionService
 import no.novari.personalmappe.service.ResponseService
@@ -22,37 +22,48 @@ import org.springframework.http.HttpStatus
 import org.springframework.http.ResponseEntity
 import org.springframework.web.reactive.function.client.WebClientResponseException
 import reactor.core.publisher.Mono
+import reactor.core.scheduler.Schedulers
 import reactor.test.StepVerifier
 import spock.lang.Specification
 
+import java.time.Duration
+import java.time.LocalDateTime
+
 @DataMongoTest
 class ProvisionServiceSpec extends Specification {
     FintRepository fintRepository = Mock()
     ResponseService responseHandlerService = Mock()
     OrganisationProperties organisationProperties = Mock()
-    PersonalmappeResourceFactory personalmappeResourceFactory = Mock()
+    PersonalmappeResourceFactory personalmappeResourceFactory = Spy()
     PolicyService policyService = Mock()
 
     @Autowired
     MongoDBRepository mongoDBRepository
 
+    @Autowired
+    MongoDBScheduleRepository mongoDBScheduleRepository
+
+    LatencyService latencyService = new LatencyService(new OrganisationProperties(orgId: 'org-id'))
+
     ProvisionService provisionService
 
     void setup() {
-        provisionService = new ProvisionService(fintRepository, responseHandlerService, personalmappeResourceFactory, organisationProperties, mongoDBRepository, policyService)
+        provisionService = new ProvisionService(fintRepository, responseHandlerService, personalmappeResourceFactory, organisationProperties, mongoDBRepository, mongoDBScheduleRepository, policyService, new StatusService(fintRepository, new ProvisioningProperties(), new SimpleMeterRegistry()), Schedulers.immediate(), Schedulers.immediate(),
+                new PreviewCache(new ProvisioningProperties(), new SimpleMeterRegistry()), latencyService)
     }
 
     void cleanup() {
-        mongoDBRepository.deleteAll()
+        mongoDBRepository.deleteAll().block()
+        mongoDBScheduleRepository.deleteAll().block()
     }
 
-    def "run returns flux and stores document when all mandatory fields and relations are present"() {
+    def "provision returns folder and stores document when all mandatory fields and relations are present"() {
         given:
         1 * fintRepository.post(_, _, _) >> Mono.just(newGraphQLPersonnelFolder())
-        1 * personalmappeResourceFactory.toPersonalmappeResource(_, _, _) >> newPersonnelFolder('username', 'username-leader', 'workplace')
+        1 * personalmappeResourceFactory.toPersonnel(_, _, _) >> Optional.of(newPersonnel('username', 'username-leader', 'workplace'))
         1 * organisationProperties.getAdministrativeUnitsExcluded() >> []
 
-        1 * organisationProperties.getOrgId() >> 'org-id'
+        organisationProperties.getOrgId() >> 'org-id'
 
         1 * fintRepository.postForEntity(_, _) >> Mono.just(ResponseEntity.accepted().location(URI.create('/status')).build())
         1 * responseHandlerService.pending(_, _, _) >> newMongoDbPersonnelFolder(HttpStatus.ACCEPTED)
@@ -61,84 +72,137 @@ class ProvisionServiceSpec extends Specification {
         1 * responseHandlerService.success(_, _) >> newMongoDbPersonnelFolder(HttpStatus.CREATED)
 
         when:
-        def flux = provisionService.run(['username'], 1)
+        def mono = provisionService.provision('username')
 
         then:
-        StepVerifier.create(flux)
+        StepVerifier.create(mono)
                 .expectNextCount(1)
                 .verifyComplete()
 
-        mongoDBRepository.count() == 1
+        mongoDBRepository.count().block() == 1
+        mongoDBRepository.findAll().blockFirst().timings.keySet() == [LatencyStage.QUEUED, LatencyStage.GRAPHQL, LatencyStage.WRITE, LatencyStage.FINAL_STATUS, LatencyStage.TOTAL] as Set
+        latencyService.stats(Duration.ofMinutes(1)).entries.find { it.outcome == 'succeeded' && it.stage == LatencyStage.TOTAL }.count == 1
     }
 
-    def "run return empty flux if subject and leader are identical"() {
+    def "provision returns empty if subject and leader are identical"() {
         given:
         1 * fintRepository.post(_, _, _) >> Mono.just(newGraphQLPersonnelFolder())
-        1 * personalmappeResourceFactory.toPersonalmappeResource(_, _, _) >> newPersonnelFolder('username', 'username', 'workplace')
+        1 * personalmappeResourceFactory.toPersonnel(_, _, _) >> Optional.of(newPersonnel('username', 'username', 'workplace'))
 
         when:
-        def flux = provisionService.run(['username'], 1)
+        def mono = provisionService.provision('username')
 
         then:
-        StepVerifier.create(flux)
+        StepVerifier.create(mono)
                 .verifyComplete()
 
-        mongoDBRepository.count() == 0
+        mongoDBRepository.count().block() == 0
     }
 
-    def "run returns empty flux if workplace is included in list of excluded administrative units"() {
+    def "provision returns empty if workplace is included in list of excluded administrative units"() {
         given:
         1 * fintRepository.post(_, _, _) >> Mono.just(newGraphQLPersonnelFolder())
-        1 * personalmappeResourceFactory.toPersonalmappeResource(_, _, _) >> newPersonnelFolder('username', 'username-leader', 'workplace')
+        1 * personalmappeResourceFactory.toPersonnel(_, _, _) >> Optional.of(newPersonnel('username', 'username-leader', 'workplace'))
         1 * organisationProperties.getAdministrativeUnitsExcluded() >> ['workplace']
 
         when:
-        def flux = provisionService.run(['username'], 1)
+        def mono = provisionService.provision('username')
 
         then:
-        StepVerifier.create(flux)
+        StepVerifier.create(mono)
                 .verifyComplete()
 
-        mongoDBRepository.count() == 0
+        mongoDBRepository.count().block() == 0
     }
 
-    def "run returns empty flux on error"() {
+    def "provision returns empty on error"() {
         given:
         1 * fintRepository.post(_, _, _) >> Mono.just(newGraphQLPersonnelFolder())
-        1 * personalmappeResourceFactory.toPersonalmappeResource(_, _, _) >> newPersonnelFolder('username', 'username-leader', 'workplace')
+        1 * personalmappeResourceFactory.toPersonnel(_, _, _) >> Optional.of(newPersonnel('username', 'username-leader', 'workplace'))
         1 * organisationProperties.getAdministrativeUnitsExcluded() >> []
 
-        1 * organisationProperties.getOrgId() >> 'org-id'
+        organisationProperties.getOrgId() >> 'org-id'
 
         1 * fintRepository.postForEntity(_, _) >> Mono.error(new WebClientResponseException(HttpStatus.BAD_REQUEST.value(), HttpStatus.BAD_REQUEST.name(), null, null, null))
 
         when:
-        def flux = provisionService.run(['username'], 1)
+        def mono = provisionService.provision('username')
 
         then:
-        StepVerifier.create(flux)
+        StepVerifier.create(mono)
                 .verifyComplete()
 
-        mongoDBRepository.count() == 0
+        mongoDBRepository.count().block() == 0
     }
 
-    def newPersonnelFolder(String username, String usernameLeader, String workplace) {
-        def resource = new PersonalmappeResource(
-                navn: new Personnavn(
-                        fornavn: 'fornavn',
-                        mellomnavn: 'mellomnavn',
-                        etternavn: 'ettternavn'
-                ),
-                part: [new PartResource()],
-                tittel: 'DUMMY',
-        )
+    def "a preview is fetched again after a failed fetch"() {
+        given:
+        provisionService.administrativeUnitSystemIds = ['workplace']
+        organisationProperties.getAdministrativeUnitsExcluded() >> []
+        personalmappeResourceFactory.toPersonnel(_, _, _) >> Optional.of(newPersonnel('username', 'username-leader', 'workplace'))
+        2 * fintRepository.post(_, _, _) >>> [Mono.error(new IllegalStateException('GraphQL unavailable')), Mono.just(newGraphQLPersonnelFolder())]
+
+        when:
+        def failed = provisionService.getOne('username').block()
+        def preview = provisionService.getOne('username').block()
+
+        then:
+        failed == null
+        preview != null
+    }
+
+    def "provision records upcoming transitions of the user"() {
+        given:
+        def start = LocalDateTime.now().plusMonths(1)
+        1 * fintRepository.post(_, _, _) >> Mono.just(newGraphQLPersonnelFolder(start))
+        organisationProperties.getOrgId() >> 'org-id'
+        organisationProperties.getPersonnelResourceCategory() >> (['F'] as String[])
+
+        when:
+        provisionService.provision('username').block()
+
+        then:
+        def schedule = mongoDBScheduleRepository.findById('org-id_username').block()
+        schedule.dueAt == start.minusWeeks(2)
+        schedule.transitions*.kind == [Transition.Kind.ACTIVATION]
+        mongoDBRepository.count().block() == 0
+    }
 
-        resource.addPerson(Link.with(Person.class, "fodselsnummer", "fodselsnummer"))
-        resource.addPersonalressurs(Link.with(Personalressurs.class, "brukernavn", username))
-        resource.addArbeidssted(Link.with(Organisasjonselement.class, "organisasjonsid", workplace))
-        resource.addLeder(Link.with(Personalressurs.class, "brukernavn", usernameLeader))
+    def "the schedule of a user without a personalressurs is removed"() {
+        given:
+        organisationProperties.getOrgId() >> 'org-id'
+        mongoDBScheduleRepository.save(MongoDBSchedule.builder()
+                .id('org-id_username')
+                .orgId('org-id')
+                .username('username')
+                .dueAt(LocalDateTime.now())
+                .build()).block()
+        1 * fintRepository.post(_, _, _) >> Mono.just(new GraphQLPersonalmappe(result: new GraphQLPersonalmappe.Result()))
+
+        when:
+        def folder = provisionService.provision('username').block()
+
+        then:
+        folder == null
+        mongoDBScheduleRepository.findById('org-id_username').block() == null
+    }
+
+    def "a preview leaves the schedule of the user untouched"() {
+        given:
+        def start = LocalDateTime.now().plusMonths(1)
+        1 * fintRepository.post(_, _, _) >> Mono.just(newGraphQLPersonnelFolder(start))
+        organisationProperties.getOrgId() >> 'org-id'
+        organisationProperties.getPersonnelResourceCategory() >> (['F'] as String[])
 
-        return resource
+        when:
+        provisionService.getOne('username').block()
+
+        then:
+        mongoDBScheduleRepository.count().block() == 0
+    }
+
+    def newPersonnel(String username, String usernameLeader, String workplace) {
+        return new Personnel(username, 'fodselsnummer', new Personnel.Name('fornavn', 'mellomnavn', 'ettternavn'), usernameLeader, workplace)
     }
 
     def newMongoDbPersonnelFolder(HttpStatus httpStatus) {
@@ -149,6 +213,17 @@ class ProvisionServiceSpec extends Specification {
                 .build()
     }
 
+    def newGraphQLPersonnelFolder(LocalDateTime start) {
+        return new GraphQLPersonalmappe(result: new GraphQLPersonalmappe.Result(
+                personalressurs: new GraphQLPersonalmappe.Personalressurs(
+                        arbeidsforhold: [new GraphQLPersonalmappe.Arbeidsforhold(
+                                hovedstilling: true,
+                                gyldighetsperiode: new GraphQLPersonalmappe.Periode(start: start),
+                                personalressurs: new GraphQLPersonalmappe.Personalressurs(
+                                        personalressurskategori: new GraphQLPersonalmappe.Personalressurskategori(kode: 'F')))]))
+        )
+    }
+
     def newGraphQLPersonnelFolder() {
         return new GraphQLPersonalmappe(result: new GraphQLPersonalmappe.Result(
                 personalressurs: new GraphQLPersonalmappe.Personalressurs())
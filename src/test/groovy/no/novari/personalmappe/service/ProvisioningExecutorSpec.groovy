@@ -0,0 +1,101 @@
+package no.novari.personalmappe.service
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import no.novari.personalmappe.model.MongoDBPersonalmappe
+import no.novari.personalmappe.model.Priority
+import no.novari.personalmappe.properties.ProvisioningProperties
+import reactor.core.publisher.Mono
+import reactor.core.publisher.Sinks
+import reactor.test.StepVerifier
+import spock.lang.Specification
+
+import java.time.Duration
+
+class ProvisioningExecutorSpec extends Specification {
+    ProvisionService provisionService = Mock()
+    ProvisioningProperties provisioningProperties = new ProvisioningProperties()
+
+    ProvisioningExecutor provisioningExecutor
+
+    void setup() {
+        provisioningProperties.executor.dispatchInterval = Duration.ofMillis(10)
+        provisioningExecutor = new ProvisioningExecutor(provisionService, provisioningProperties, new SimpleMeterRegistry())
+    }
+
+    void cleanup() {
+        provisioningExecutor.stop()
+    }
+
+    def "interactive tasks are dequeued before queued bulk tasks"() {
+        given:
+        3.times { provisioningExecutor.enqueue(task("bulk-$it", Priority.BULK)) }
+        2.times { provisioningExecutor.enqueue(task("interactive-$it", Priority.INTERACTIVE)) }
+
+        when:
+        def order = (1..5).collect { provisioningExecutor.next().priority() }
+
+        then:
+        order == [Priority.INTERACTIVE, Priority.INTERACTIVE, Priority.BULK, Priority.BULK, Priority.BULK]
+    }
+
+    def "lanes are dequeued according to their weights"() {
+        given:
+        10.times { provisioningExecutor.enqueue(task("delta-$it", Priority.DELTA)) }
+        10.times { provisioningExecutor.enqueue(task("bulk-$it", Priority.BULK)) }
+
+        when:
+        def order = (1..5).collect { provisioningExecutor.next().priority() }
+
+        then:
+        order.count { it == Priority.DELTA } == 4
+        order.count { it == Priority.BULK } == 1
+    }
+
+    def "next returns null when all lanes are empty"() {
+        expect:
+        provisioningExecutor.next() == null
+    }
+
+    def "interactive submit is dispatched without waiting for the dispatcher"() {
+        given:
+        1 * provisionService.provision('username', _) >> Mono.just(MongoDBPersonalmappe.builder().username('username').build())
+
+        expect:
+        StepVerifier.create(provisioningExecutor.submit('username', Priority.INTERACTIVE))
+                .expectNextMatches { it.username == 'username' }
+                .verifyComplete()
+    }
+
+    def "run provisions all usernames through the dispatcher"() {
+        given:
+        provisionService.provision(_ as String, _) >> { String username, queued -> Mono.just(MongoDBPersonalmappe.builder().username(username).build()) }
+        provisioningExecutor.start()
+
+        expect:
+        StepVerifier.create(provisioningExecutor.run(['a', 'b', 'c'], 2, Priority.BULK))
+                .expectNextCount(2)
+                .expectComplete()
+                .verify(Duration.ofSeconds(5))
+    }
+
+    def "a provisioning that throws does not stop the dispatcher"() {
+        given:
+        provisionService.provision('broken', _) >> { throw new IllegalStateException('broken') }
+        provisionService.provision('username', _) >> Mono.just(MongoDBPersonalmappe.builder().username('username').build())
+        provisioningExecutor.start()
+
+        expect:
+        StepVerifier.create(provisioningExecutor.submit('broken', Priority.BULK))
+                .expectError(IllegalStateException)
+                .verify(Duration.ofSeconds(5))
+
+        StepVerifier.create(provisioningExecutor.submit('username', Priority.BULK))
+                .expectNextMatches { it.username == 'username' }
+                .expectComplete()
+                .verify(Duration.ofSeconds(5))
+    }
+
+    static ProvisioningExecutor.Task task(String username, Priority priority) {
+        return new ProvisioningExecutor.Task(username, priority, System.nanoTime(), Sinks.one())
+    }
+}
@@ -0,0 +1,150 @@
+package no.novari.personalmappe.service
+
+import no.fint.model.administrasjon.organisasjon.Organisasjonselement
+import no.fint.model.administrasjon.personal.Personalressurs
+import no.fint.model.resource.Link
+import no.fint.model.resource.arkiv.personal.PersonalmappeResource
+import no.novari.personalmappe.model.MongoDBJob
+import no.novari.personalmappe.model.MongoDBPersonalmappe
+import no.novari.personalmappe.model.Priority
+import no.novari.personalmappe.model.ReconciliationReport
+import no.novari.personalmappe.properties.OrganisationProperties
+import no.novari.personalmappe.properties.ProvisioningProperties
+import no.novari.personalmappe.repository.FintRepository
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate
+import org.springframework.web.reactive.function.client.WebClientResponseException
+import reactor.core.publisher.Flux
+import reactor.core.publisher.Mono
+import spock.lang.Specification
+
+@DataMongoTest
+class ReconciliationServiceSpec extends Specification {
+    FintRepository fintRepository = Mock()
+    WorkQueueService workQueueService = Mock()
+
+    @Autowired
+    ReactiveMongoTemplate mongoTemplate
+
+    ProvisioningProperties provisioningProperties = new ProvisioningProperties()
+
+    ReconciliationService reconciliationService
+
+    void setup() {
+        provisioningProperties.reconciliation.maxMissingRatio = 0.5
+        reconciliationService = new ReconciliationService(fintRepository, mongoTemplate, workQueueService, new OrganisationProperties(orgId: 'org-id'), provisioningProperties)
+
+        [stored('matched', 'https://api/personalmappe/systemid/1', 'leader', '100'),
+         stored('mismatched', 'https://api/personalmappe/systemid/2', 'leader', '100'),
+         stored('missing', 'https://api/personalmappe/systemid/3', 'leader', '100')].each { mongoTemplate.save(it).block() }
+    }
+
+    void cleanup() {
+        mongoTemplate.dropCollection(MongoDBPersonalmappe).block()
+    }
+
+    def "stored folders are joined with the archive by association"() {
+        when:
+        def report = reconciliationService.reconcile(false).block()
+
+        then:
+        1 * fintRepository.getPaged(_, _, _, _) >> Flux.just(
+                archived('matched', 'https://api/personalmappe/systemid/1', 'LEADER', '100'),
+                archived('mismatched', 'https://api/personalmappe/systemid/2', 'leader', '200'),
+                archived('orphaned', 'https://api/personalmappe/systemid/4', 'leader', '100'))
+        0 * workQueueService._
+
+        report.stored == 3
+        report.archived == 3
+        report.matched == 2
+        report.drift == [(ReconciliationReport.Drift.Kind.MISSING)   : 1L,
+                         (ReconciliationReport.Drift.Kind.ORPHANED)  : 1L,
+                         (ReconciliationReport.Drift.Kind.MISMATCHED): 1L]
+        report.details.find { it.kind == ReconciliationReport.Drift.Kind.MISMATCHED }.archivedWorkplace == '200'
+        report.details.find { it.kind == ReconciliationReport.Drift.Kind.ORPHANED }.username == 'orphaned'
+    }
+
+    def "repair drops the association of missing folders and queues missing and mismatched users"() {
+        when:
+        def report = reconciliationService.reconcile(true).block()
+
+        then:
+        1 * fintRepository.getPaged(_, _, _, _) >> Flux.just(
+                archived('matched', 'https://api/personalmappe/systemid/1', 'leader', '100'),
+                archived('mismatched', 'https://api/personalmappe/systemid/2', 'other-leader', '100'))
+        1 * fintRepository.getResource(PersonalmappeResource, URI.create('https://api/personalmappe/systemid/3')) >> Mono.error(notFound())
+        1 * workQueueService.enqueue(['mismatched', 'missing'], Long.MAX_VALUE, Priority.BULK, MongoDBJob.Kind.RECONCILIATION) >> Mono.just(MongoDBJob.builder().id('job').total(2).build())
+
+        report.repairJobId == 'job'
+        mongoTemplate.findById('org-id_missing', MongoDBPersonalmappe).block().association == null
+        mongoTemplate.findById('org-id_mismatched', MongoDBPersonalmappe).block().association != null
+    }
+
+    def "repair keeps the association of a missing folder the archive still returns"() {
+        when:
+        reconciliationService.reconcile(true).block()
+
+        then:
+        1 * fintRepository.getPaged(_, _, _, _) >> Flux.just(
+                archived('matched', 'https://api/personalmappe/systemid/1', 'leader', '100'),
+                archived('mismatched', 'https://api/personalmappe/systemid/2', 'leader', '100'))
+        1 * fintRepository.getResource(PersonalmappeResource, URI.create('https://api/personalmappe/systemid/3')) >>
+                Mono.just(archived('missing', 'https://api/personalmappe/systemid/3', 'leader', '100'))
+        1 * workQueueService.enqueue(['missing'], Long.MAX_VALUE, Priority.BULK, MongoDBJob.Kind.RECONCILIATION) >> Mono.just(MongoDBJob.builder().id('job').total(1).build())
+
+        mongoTemplate.findById('org-id_missing', MongoDBPersonalmappe).block().association != null
+    }
+
+    def "repair is refused when the archive returns no folders"() {
+        when:
+        def report = reconciliationService.reconcile(true).block()
+
+        then:
+        1 * fintRepository.getPaged(_, _, _, _) >> Flux.empty()
+        0 * fintRepository.getResource(*_)
+        0 * workQueueService._
+
+        report.drift == [(ReconciliationReport.Drift.Kind.MISSING): 3L]
+        report.repairRefused
+        report.repairJobId == null
+        mongoTemplate.findAll(MongoDBPersonalmappe).collectList().block().every { it.association != null }
+    }
+
+    def "repair is refused when more folders are missing than the maximum ratio"() {
+        when:
+        def report = reconciliationService.reconcile(true).block()
+
+        then:
+        1 * fintRepository.getPaged(_, _, _, _) >> Flux.just(archived('matched', 'https://api/personalmappe/systemid/1', 'leader', '100'))
+        0 * fintRepository.getResource(*_)
+        0 * workQueueService._
+
+        report.repairRefused.contains('2 of 3')
+        mongoTemplate.findAll(MongoDBPersonalmappe).collectList().block().every { it.association != null }
+    }
+
+    private static MongoDBPersonalmappe stored(String username, String association, String leader, String workplace) {
+        MongoDBPersonalmappe.builder()
+                .id('org-id_' + username)
+                .orgId('org-id')
+                .username(username)
+                .association(URI.create(association))
+                .leader(leader)
+                .workplace(workplace)
+                .build()
+    }
+
+    private static WebClientResponseException notFound() {
+        return WebClientResponseException.create(404, 'Not Found', null, null, null)
+    }
+
+    private static PersonalmappeResource archived(String username, String selfLink, String leader, String workplace) {
+        def resource = new PersonalmappeResource()
+        resource.addSelf(Link.with(selfLink))
+        resource.addPersonalressurs(Link.with(Personalressurs, 'brukernavn', username))
+        resource.addLeder(Link.with(Personalressurs, 'brukernavn', leader))
+        resource.addArbeidssted(Link.with(Organisasjonselement, 'organisasjonsid', workplace))
+        resource
+    }
+}
@@ -0,0 +1,102 @@
+package no.novari.personalmappe.service
+
+import no.novari.personalmappe.exception.FinalStatusPendingException
+import no.novari.personalmappe.model.ErrorClass
+import no.novari.personalmappe.model.MongoDBPersonalmappe
+import no.novari.personalmappe.model.PendingStatus
+import no.novari.personalmappe.properties.ProvisioningProperties
+import org.springframework.http.HttpStatus
+import org.springframework.web.reactive.function.client.WebClientResponseException
+import spock.lang.Specification
+
+import java.time.Duration
+import java.time.LocalDateTime
+
+class ResponseServiceSpec extends Specification {
+    ProvisioningProperties provisioningProperties = new ProvisioningProperties()
+    ResponseService responseService = new ResponseService(provisioningProperties)
+
+    def "transient errors are scheduled with exponential backoff"() {
+        given:
+        def folder = MongoDBPersonalmappe.builder().attempts(2).build()
+
+        when:
+        responseService.error(exception(HttpStatus.INTERNAL_SERVER_ERROR), folder)
+
+        then:
+        folder.status == HttpStatus.INTERNAL_SERVER_ERROR
+        folder.errorClass == ErrorClass.TRANSIENT
+        folder.attempts == 3
+        folder.nextAttemptAt.isAfter(LocalDateTime.now().plusMinutes(19))
+        folder.nextAttemptAt.isBefore(LocalDateTime.now().plusMinutes(23))
+        !folder.deadLetter
+    }
+
+    def "permanent errors are not retried"() {
+        given:
+        def folder = MongoDBPersonalmappe.builder().build()
+
+        when:
+        responseService.error(exception(HttpStatus.BAD_REQUEST), folder)
+
+        then:
+        folder.errorClass == ErrorClass.PERMANENT
+        folder.nextAttemptAt == null
+        !folder.deadLetter
+    }
+
+    def "transient errors are dead-lettered after max attempts"() {
+        given:
+        def folder = MongoDBPersonalmappe.builder().attempts(provisioningProperties.retry.maxAttempts - 1).build()
+
+        when:
+        responseService.failed(folder, ErrorClass.TRANSIENT)
+
+        then:
+        folder.deadLetter
+        folder.nextAttemptAt == null
+    }
+
+    def "a pending status is polled again at its Retry-After"() {
+        given:
+        def folder = MongoDBPersonalmappe.builder().status(HttpStatus.ACCEPTED).build()
+
+        when:
+        responseService.statusPending(folder, new FinalStatusPendingException(URI.create('https://example.com/status/1'), Duration.ofMinutes(3)))
+
+        then:
+        folder.status == HttpStatus.ACCEPTED
+        folder.pendingStatus.location() == URI.create('https://example.com/status/1')
+        folder.pendingStatus.checkAt().isAfter(LocalDateTime.now().plusMinutes(2))
+        folder.pendingStatus.checkAt().isBefore(LocalDateTime.now().plusMinutes(4))
+        folder.attempts == 0
+    }
+
+    def "a status pending beyond the max age fails as transient"() {
+        given:
+        def since = LocalDateTime.now().minus(provisioningProperties.status.pendingMaxAge).minusMinutes(1)
+        def folder = MongoDBPersonalmappe.builder()
+                .status(HttpStatus.ACCEPTED)
+                .pendingStatus(new PendingStatus(URI.create('https://example.com/status/1'), since, LocalDateTime.now()))
+                .build()
+
+        when:
+        responseService.statusPending(folder, new FinalStatusPendingException(URI.create('https://example.com/status/1'), null))
+
+        then:
+        folder.pendingStatus == null
+        folder.errorClass == ErrorClass.TRANSIENT
+        folder.attempts == 1
+        folder.nextAttemptAt != null
+    }
+
+    def "backoff is capped"() {
+        expect:
+        responseService.backoff(30) >= provisioningProperties.retry.maxBackoff
+        responseService.backoff(30) <= provisioningProperties.retry.maxBackoff.plus(Duration.ofHours(3))
+    }
+
+    def exception(HttpStatus status) {
+        return new WebClientResponseException(status.value(), status.name(), null, null, null)
+    }
+}
@@ -0,0 +1,128 @@
+package no.novari.personalmappe.service
+
+import no.novari.personalmappe.model.MongoDBJob
+import no.novari.personalmappe.model.MongoDBSchedule
+import no.novari.personalmappe.model.Priority
+import no.novari.personalmappe.properties.OrganisationProperties
+import no.novari.personalmappe.properties.ProvisioningProperties
+import no.novari.personalmappe.repository.MongoDBScheduleRepository
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate
+import reactor.core.publisher.Mono
+import spock.lang.Specification
+
+import java.time.Duration
+import java.time.LocalDateTime
+import java.time.temporal.ChronoUnit
+
+@DataMongoTest
+class ScheduleServiceSpec extends Specification {
+    WorkQueueService workQueueService = Mock()
+
+    @Autowired
+    MongoDBScheduleRepository mongoDBScheduleRepository
+
+    @Autowired
+    ReactiveMongoTemplate mongoTemplate
+
+    ProvisioningProperties provisioningProperties = new ProvisioningProperties()
+
+    ScheduleService scheduleService
+
+    void setup() {
+        provisioningProperties.schedule.lease = Duration.ofMinutes(30)
+        provisioningProperties.schedule.maxClaims = 2
+
+        scheduleService = new ScheduleService(workQueueService, mongoDBScheduleRepository, mongoTemplate,
+                new OrganisationProperties(orgId: 'org-id'), provisioningProperties)
+    }
+
+    void cleanup() {
+        mongoDBScheduleRepository.deleteAll().block()
+    }
+
+    def "due users are claimed and queued on the delta lane"() {
+        given:
+        save('ole', LocalDateTime.now().minusMinutes(1))
+        save('kari', LocalDateTime.now().plusDays(1))
+
+        when:
+        scheduleService.run().block()
+
+        then:
+        1 * workQueueService.enqueue(['ole'], Long.MAX_VALUE, Priority.DELTA) >> Mono.just(MongoDBJob.builder().total(1).build())
+
+        and:
+        with(mongoDBScheduleRepository.findById('org-id_ole').block()) {
+            claims == 1
+            dueAt.isAfter(LocalDateTime.now().plusMinutes(29))
+        }
+    }
+
+    def "claimed users are not queued again before the lease expires"() {
+        given:
+        save('ole', LocalDateTime.now().minusMinutes(1))
+
+        when:
+        scheduleService.run().block()
+        scheduleService.run().block()
+
+        then:
+        1 * workQueueService.enqueue(['ole'], _, _) >> Mono.just(MongoDBJob.builder().total(1).build())
+    }
+
+    def "users still due after the lease are queued again until the claims run out"() {
+        given:
+        save('ole', LocalDateTime.now().minusMinutes(1))
+
+        when:
+        2.times {
+            scheduleService.run().block()
+            expire('ole')
+        }
+
+        then:
+        2 * workQueueService.enqueue(['ole'], _, _) >> Mono.just(MongoDBJob.builder().total(1).build())
+
+        when:
+        scheduleService.run().block()
+
+        then:
+        0 * workQueueService.enqueue(*_)
+        mongoDBScheduleRepository.findById('org-id_ole').block() == null
+    }
+
+    def "a schedule stored again by provisioning is queued with fresh claims"() {
+        given:
+        workQueueService.enqueue(*_) >> Mono.just(MongoDBJob.builder().total(1).build())
+        save('ole', LocalDateTime.now().minusMinutes(1))
+        2.times {
+            scheduleService.run().block()
+            expire('ole')
+        }
+
+        when:
+        save('ole', LocalDateTime.now().minusMinutes(1))
+        scheduleService.run().block()
+
+        then:
+        1 * workQueueService.enqueue(['ole'], _, _) >> Mono.just(MongoDBJob.builder().total(1).build())
+        mongoDBScheduleRepository.findById('org-id_ole').block().claims == 1
+    }
+
+    private void save(String username, LocalDateTime dueAt) {
+        mongoDBScheduleRepository.save(MongoDBSchedule.builder()
+                .id("org-id_$username")
+                .orgId('org-id')
+                .username(username)
+                .dueAt(dueAt.truncatedTo(ChronoUnit.MILLIS))
+                .build()).block()
+    }
+
+    private void expire(String username) {
+        def schedule = mongoDBScheduleRepository.findById("org-id_$username").block()
+        schedule.dueAt = LocalDateTime.now().minusMinutes(1).truncatedTo(ChronoUnit.MILLIS)
+        mongoDBScheduleRepository.save(schedule).block()
+    }
+}
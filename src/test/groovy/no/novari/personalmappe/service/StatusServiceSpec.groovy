@@ -0,0 +1,112 @@
+package no.novari.personalmappe.service
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import no.novari.personalmappe.exception.FinalStatusPendingException
+import no.novari.personalmappe.properties.ProvisioningProperties
+import no.novari.personalmappe.repository.FintRepository
+import no.novari.personalmappe.utilities.LatencyHistogram
+import org.springframework.http.HttpHeaders
+import org.springframework.http.ResponseEntity
+import reactor.core.publisher.Mono
+import spock.lang.Specification
+
+import java.time.Duration
+import java.time.ZoneOffset
+import java.time.ZonedDateTime
+import java.time.format.DateTimeFormatter
+
+class StatusServiceSpec extends Specification {
+    FintRepository fintRepository = Mock()
+    ProvisioningProperties provisioningProperties = new ProvisioningProperties()
+    SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry()
+    StatusService statusService = new StatusService(fintRepository, provisioningProperties, meterRegistry)
+
+    URI location = URI.create('https://example.com/arkiv/personal/personalmappe/status/1')
+
+    def "the status is polled until it is final"() {
+        given:
+        fintRepository.getForEntity(_, location) >>> [
+                Mono.just(ResponseEntity.accepted().header(HttpHeaders.RETRY_AFTER, '0').build()),
+                Mono.just(ResponseEntity.created(URI.create('https://example.com/arkiv/personal/personalmappe/1')).build())]
+
+        when:
+        def entity = statusService.poll(ResponseEntity.accepted().location(location).build()).block(Duration.ofSeconds(5))
+
+        then:
+        entity.headers.location == URI.create('https://example.com/arkiv/personal/personalmappe/1')
+        meterRegistry.counter('provisioning.status.polls', 'endpoint', 'example.com/arkiv/personal/personalmappe/status').count() == 2
+    }
+
+    def "a status that is not final within the timeout is handed back with its location"() {
+        given:
+        provisioningProperties.status.timeout = Duration.ofMinutes(1)
+        fintRepository.getForEntity(_, location) >> Mono.just(ResponseEntity.accepted().header(HttpHeaders.RETRY_AFTER, '120').build())
+
+        when:
+        statusService.poll(ResponseEntity.accepted().location(location).build()).block(Duration.ofSeconds(5))
+
+        then:
+        def exception = thrown(FinalStatusPendingException)
+        exception.location == location
+        exception.retryAfter == Duration.ofSeconds(120)
+        meterRegistry.counter('provisioning.status.timeouts', 'endpoint', 'example.com/arkiv/personal/personalmappe/status').count() == 1
+    }
+
+    def "completions without a location are not recorded"() {
+        given:
+        fintRepository.getForEntity(_, null) >> Mono.just(ResponseEntity.ok().build())
+
+        when:
+        statusService.poll(ResponseEntity.accepted().build()).block(Duration.ofSeconds(5))
+
+        then:
+        statusService.completions.isEmpty()
+    }
+
+    def "Retry-After decides the next poll"() {
+        expect:
+        statusService.wait(new LatencyHistogram(), 0, Duration.ofSeconds(7), 3) == Duration.ofSeconds(7)
+    }
+
+    def "polls target the expected completion times"() {
+        given:
+        def completions = new LatencyHistogram()
+        (1..100).each { completions.record(it * 100) }
+
+        expect:
+        statusService.wait(completions, 0, null, 0).toMillis() == completions.percentile(50)
+        statusService.wait(completions, completions.percentile(50), null, 1).toMillis() == completions.percentile(75) - completions.percentile(50)
+        statusService.wait(completions, 60_000, null, 3) == Duration.ofSeconds(4)
+    }
+
+    def "without completion times the first poll is immediate and later polls back off"() {
+        expect:
+        statusService.wait(new LatencyHistogram(), 0, null, 0) == Duration.ZERO
+        statusService.wait(new LatencyHistogram(), 0, null, 1) == Duration.ofSeconds(1)
+        statusService.wait(new LatencyHistogram(), 0, null, 4) == Duration.ofSeconds(8)
+        statusService.wait(new LatencyHistogram(), 0, null, 20) == provisioningProperties.status.maxInterval
+    }
+
+    def "Retry-After is read as seconds or as a date"() {
+        given:
+        def date = ZonedDateTime.now(ZoneOffset.UTC).plusMinutes(2).format(DateTimeFormatter.RFC_1123_DATE_TIME)
+
+        expect:
+        StatusService.retryAfter(headers('30')) == Duration.ofSeconds(30)
+        StatusService.retryAfter(headers(date)) > Duration.ofSeconds(100)
+        StatusService.retryAfter(headers('soon')) == null
+        StatusService.retryAfter(new HttpHeaders()) == null
+    }
+
+    def "the endpoint is the location without its id"() {
+        expect:
+        StatusService.endpoint(location) == 'example.com/arkiv/personal/personalmappe/status'
+        StatusService.endpoint(URI.create('/status')) == '/'
+    }
+
+    private static HttpHeaders headers(String retryAfter) {
+        def headers = new HttpHeaders()
+        headers.set(HttpHeaders.RETRY_AFTER, retryAfter)
+        return headers
+    }
+}
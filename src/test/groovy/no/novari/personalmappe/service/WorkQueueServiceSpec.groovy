@@ -0,0 +1,205 @@
+package no.novari.personalmappe.service
+
+import no.novari.personalmappe.model.MongoDBJob
+import no.novari.personalmappe.model.MongoDBPersonalmappe
+import no.novari.personalmappe.model.MongoDBWorkItem
+import no.novari.personalmappe.model.Priority
+import no.novari.personalmappe.properties.OrganisationProperties
+import no.novari.personalmappe.properties.ProvisioningProperties
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate
+import reactor.core.publisher.Flux
+import reactor.core.publisher.Mono
+import reactor.core.publisher.Sinks
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.time.Duration
+import java.time.LocalDateTime
+import java.time.temporal.ChronoUnit
+
+@DataMongoTest
+class WorkQueueServiceSpec extends Specification {
+    ProvisioningExecutor provisioningExecutor = Mock()
+
+    @Autowired
+    ReactiveMongoTemplate mongoTemplate
+
+    ProvisioningProperties provisioningProperties = new ProvisioningProperties()
+
+    WorkQueueService workQueueService
+
+    void setup() {
+        provisioningProperties.coalesce.window = Duration.ofMinutes(1)
+        provisioningProperties.coalesce.maxDelay = Duration.ofMinutes(5)
+
+        workQueueService = new WorkQueueService(mongoTemplate, provisioningExecutor, new JobRegistry(provisioningProperties),
+                new OrganisationProperties(orgId: 'org-id'), provisioningProperties)
+    }
+
+    void cleanup() {
+        workQueueService.stop()
+        mongoTemplate.dropCollection(MongoDBJob).block()
+        mongoTemplate.dropCollection(MongoDBWorkItem).block()
+    }
+
+    def "repeated delta requests for a user are merged into the latest job"() {
+        when:
+        def first = workQueueService.enqueue(['ole'], 1, Priority.DELTA).block()
+        def second = workQueueService.enqueue(['ole', 'kari'], 2, Priority.DELTA).block()
+
+        then:
+        def items = mongoTemplate.findAll(MongoDBWorkItem).collectList().block()
+        items.findAll { it.username == 'ole' && it.state == MongoDBWorkItem.State.QUEUED }*.jobId == [second.id]
+        items.find { it.jobId == first.id }.state == MongoDBWorkItem.State.DONE
+
+        and:
+        with(workQueueService.getJob(first.id).block()) {
+            processed == 1
+            failed == 0
+            state == MongoDBJob.State.COMPLETED
+        }
+    }
+
+    def "coalesced work items wait for the window but never beyond the maximum delay"() {
+        given:
+        def requestedAt = LocalDateTime.now().minusMinutes(10).truncatedTo(ChronoUnit.MILLIS)
+        def job = workQueueService.enqueue(['ole'], 1, Priority.DELTA).block()
+        mongoTemplate.findAll(MongoDBWorkItem).doOnNext { it.requestedAt = requestedAt }.flatMap { mongoTemplate.save(it) }.blockLast()
+
+        when:
+        workQueueService.enqueue(['ole'], 1, Priority.DELTA).block()
+
+        then:
+        def item = mongoTemplate.findAll(MongoDBWorkItem).filter { it.state == MongoDBWorkItem.State.QUEUED }.blockFirst()
+        item.requestedAt == requestedAt
+        item.notBefore == requestedAt.plusMinutes(5)
+        item.jobId != job.id
+    }
+
+    def "concurrent delta requests for a user leave exactly one queued work item"() {
+        when:
+        Mono.zip((1..4).collect { workQueueService.enqueue(['ole'], 1, Priority.DELTA) }, { it }).block()
+
+        then:
+        mongoTemplate.findAll(MongoDBWorkItem).filter { it.state == MongoDBWorkItem.State.QUEUED }.count().block() == 1
+    }
+
+    def "a job whose usernames fail is started with the users enqueued so far"() {
+        when:
+        def usernames = Flux.range(1, 750).map { "user-$it".toString() }
+        workQueueService.enqueue(Flux.concat(usernames, Flux.error(new IllegalStateException('page failed'))), Long.MAX_VALUE, Priority.BULK).block()
+
+        then:
+        thrown(IllegalStateException)
+        with(mongoTemplate.findAll(MongoDBJob).blockFirst()) {
+            state == MongoDBJob.State.RUNNING
+            total == 500
+        }
+    }
+
+    def "work items are not claimed before they are due"() {
+        given:
+        workQueueService.enqueue(['ole'], 1, Priority.DELTA).block()
+        workQueueService.enqueue(['kari'], 1, Priority.BULK).block()
+
+        when:
+        workQueueService.poll().block()
+
+        then:
+        0 * provisioningExecutor.submit('ole', _)
+        1 * provisioningExecutor.submit('kari', Priority.BULK) >> Mono.empty()
+    }
+
+    def "a reconciliation repair does not count as a running bulk job"() {
+        when:
+        workQueueService.enqueue(['ole'], 1, Priority.BULK, MongoDBJob.Kind.RECONCILIATION).block()
+
+        then:
+        !workQueueService.isRunning(Priority.BULK).block()
+
+        when:
+        workQueueService.enqueue(['kari'], 1, Priority.BULK).block()
+
+        then:
+        workQueueService.isRunning(Priority.BULK).block()
+    }
+
+    def "superseding a user acknowledges the queued work items"() {
+        given:
+        def job = workQueueService.enqueue(['ole'], 1, Priority.DELTA).block()
+
+        when:
+        def superseded = workQueueService.supersede('ole').collectList().block()
+
+        then:
+        superseded*.jobId == [job.id]
+        workQueueService.getJob(job.id).block().state == MongoDBJob.State.COMPLETED
+    }
+
+    def "a work item claimed again after its lease is only acknowledged by the current claim"() {
+        given:
+        def firstAttempt = Sinks.<MongoDBPersonalmappe> one()
+        provisioningExecutor.submit('ole', _) >>> [firstAttempt.asMono(), Mono.never()]
+        provisioningExecutor.submit('kari', _) >> Mono.never()
+        def job = workQueueService.enqueue(['ole', 'kari'], 2, Priority.BULK).block()
+        workQueueService.poll().block()
+
+        and:
+        provisioningProperties.workQueue.lease = Duration.ZERO
+        Thread.sleep(10)
+        workQueueService.poll().block()
+
+        when:
+        firstAttempt.tryEmitValue(MongoDBPersonalmappe.builder().username('ole').build())
+        Thread.sleep(500)
+
+        then:
+        with(workQueueService.getJob(job.id).block()) {
+            processed == 0
+            state == MongoDBJob.State.RUNNING
+        }
+        mongoTemplate.findAll(MongoDBWorkItem).collectList().block().every { it.state == MongoDBWorkItem.State.CLAIMED && it.attempts == 2 }
+    }
+
+    def "a running job whose work items were all acknowledged is completed on start"() {
+        given:
+        mongoTemplate.insert(MongoDBJob.builder().id('job').orgId('org-id').priority(Priority.BULK).state(MongoDBJob.State.RUNNING).total(2).processed(1).build()).block()
+        mongoTemplate.insert(MongoDBWorkItem.builder().id('job_0').jobId('job').orgId('org-id').username('ole').priority(Priority.BULK).state(MongoDBWorkItem.State.DONE).build()).block()
+        mongoTemplate.insert(MongoDBWorkItem.builder().id('job_1').jobId('job').orgId('org-id').username('kari').priority(Priority.BULK).state(MongoDBWorkItem.State.FAILED).build()).block()
+
+        when:
+        workQueueService.start()
+
+        then:
+        new PollingConditions(timeout: 5).eventually {
+            with(workQueueService.getJob('job').block()) {
+                state == MongoDBJob.State.COMPLETED
+                processed == 2
+                failed == 1
+            }
+        }
+        !workQueueService.isRunning(Priority.BULK).block()
+    }
+
+    def "claims of other instances are left to their lease on start"() {
+        given:
+        def claimedAt = LocalDateTime.now().truncatedTo(ChronoUnit.MILLIS)
+        mongoTemplate.insert(MongoDBJob.builder().id('job').orgId('org-id').priority(Priority.BULK).state(MongoDBJob.State.RUNNING).total(1).build()).block()
+        mongoTemplate.insert(MongoDBWorkItem.builder().id('job_0').jobId('job').orgId('org-id').username('ole').priority(Priority.BULK)
+                .state(MongoDBWorkItem.State.CLAIMED).claimedAt(claimedAt).attempts(1).enqueuedAt(claimedAt).notBefore(claimedAt).build()).block()
+
+        when:
+        workQueueService.start()
+        Thread.sleep(500)
+
+        then:
+        0 * provisioningExecutor.submit(_, _)
+        with(mongoTemplate.findById('job_0', MongoDBWorkItem).block()) {
+            state == MongoDBWorkItem.State.CLAIMED
+            attempts == 1
+        }
+        workQueueService.getJob('job').block().state == MongoDBJob.State.RUNNING
+    }
+}
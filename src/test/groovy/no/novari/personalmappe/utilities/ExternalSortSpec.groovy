@@ -0,0 +1,77 @@
+package no.novari.personalmappe.utilities
+
+import reactor.core.publisher.Flux
+import reactor.core.scheduler.Schedulers
+import spock.lang.Specification
+
+class ExternalSortSpec extends Specification {
+
+    def "sorts input larger than a chunk by merging the spilled runs"() {
+        given:
+        def input = (1..1000).collect { String.format('user-%04d', it) }
+        Collections.shuffle(input, new Random(42))
+
+        when:
+        def sorted = ExternalSort.sort(Flux.fromIterable(input), Comparator.reverseOrder(), 64, Schedulers.immediate())
+                .collectList()
+                .block()
+
+        then:
+        sorted == input.sort(false, Comparator.reverseOrder())
+    }
+
+    def "duplicates end up next to each other"() {
+        when:
+        def sorted = ExternalSort.sort(Flux.just('b', 'a', 'c', 'a', 'b'), Comparator.naturalOrder(), 2, Schedulers.immediate())
+                .distinctUntilChanged()
+                .collectList()
+                .block()
+
+        then:
+        sorted == ['a', 'b', 'c']
+    }
+
+    def "empty input gives an empty result"() {
+        expect:
+        ExternalSort.sort(Flux.empty(), Comparator.naturalOrder(), 10, Schedulers.immediate()).collectList().block().isEmpty()
+    }
+
+    def "spilled runs are deleted when the sort completes or fails"() {
+        given:
+        def before = runs()
+
+        when:
+        ExternalSort.sort(Flux.fromIterable((1..100).collect { "user-$it".toString() }), Comparator.naturalOrder(), 10, Schedulers.immediate()).blockLast()
+
+        then:
+        runs() == before
+
+        when:
+        ExternalSort.sort(Flux.concat(Flux.fromIterable((1..100).collect { "user-$it".toString() }), Flux.error(new IllegalStateException())),
+                Comparator.naturalOrder(), 10, Schedulers.immediate()).blockLast()
+
+        then:
+        thrown(IllegalStateException)
+        runs() == before
+    }
+
+    def "spilled runs are deleted when the sort is cancelled"() {
+        given:
+        def before = runs()
+
+        when:
+        def first = ExternalSort.sort(Flux.fromIterable((1..100).collect { "user-$it".toString() }), Comparator.naturalOrder(), 10, Schedulers.immediate())
+                .take(1)
+                .blockLast()
+
+        then:
+        first == 'user-1'
+        runs() == before
+    }
+
+    private static Set<String> runs() {
+        return new File(System.getProperty('java.io.tmpdir')).list()
+                .findAll { it.startsWith('sort-') && it.endsWith('.run') }
+                .toSet()
+    }
+}
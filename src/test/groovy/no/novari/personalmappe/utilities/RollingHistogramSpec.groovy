@@ -0,0 +1,41 @@
+package no.novari.personalmappe.utilities
+
+import spock.lang.Specification
+
+import java.time.Duration
+
+class RollingHistogramSpec extends Specification {
+
+    def "percentiles are within the bucket precision"() {
+        given:
+        def histogram = new LatencyHistogram()
+        (1..10000).each { histogram.record(it) }
+
+        expect:
+        histogram.count == 10000
+        Math.abs(histogram.percentile(50) - 5000) <= 5000 * 0.04
+        Math.abs(histogram.percentile(99) - 9900) <= 9900 * 0.04
+        histogram.percentile(100) == 10000
+    }
+
+    def "bucket indexes are contiguous"() {
+        expect:
+        (0L..100000L).every { LatencyHistogram.highestEquivalentValue(LatencyHistogram.index(it)) >= it }
+        LatencyHistogram.index(64) == LatencyHistogram.index(63) + 1
+    }
+
+    def "values roll out of the window"() {
+        given:
+        def rolling = new RollingHistogram(Duration.ofMinutes(1), 60)
+        def now = Duration.ofDays(1).toMillis()
+
+        when:
+        rolling.record(100, now - Duration.ofMinutes(30).toMillis())
+        rolling.record(200, now)
+
+        then:
+        rolling.snapshot(Duration.ofMinutes(5), now).count == 1
+        rolling.snapshot(Duration.ofHours(1), now).count == 2
+        rolling.snapshot(Duration.ofHours(1), now + Duration.ofMinutes(40).toMillis()).count == 1
+    }
+}